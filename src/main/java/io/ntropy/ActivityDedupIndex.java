@@ -0,0 +1,234 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+Activity ids we've already written, so the same activity coming back from both the REST calls and a bulk export, or
+from the overlap between one run's window and the next, is only written once. Each activity is reduced to a 64 bit
+hash of its canonical type (see ActivityTypes, the REST and bulk names differ) and id, and the hashes are kept in
+generations of a day each (by when we saw them, not when the activity happened), one memory mapped OffHeapLongSet
+file per generation:
+    <directory>/dedup-<utc day number>.idx
+so the index survives restarts, costs the heap nothing, and dropping a day is deleting a file. Generations older than
+retentionDays are deleted on commit and when the index is opened.
+
+New ids go into a pending set in a direct buffer and only reach the mapped files on commit, which callers make after
+the activities have been flushed to disk. A crash before then loses the pending ids along with the unflushed
+activities, so they get written again on the next run rather than being dropped as duplicates of something that never
+made it out.
+ */
+public class ActivityDedupIndex implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityDedupIndex.class);
+
+    private static final Pattern GENERATION_FILE = Pattern.compile("dedup-(\\d+)\\.idx");
+    private static final long GENERATION_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int INITIAL_CAPACITY = 1 << 20;
+    //the most a single mapped buffer can hold
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    private static class Generation {
+        private File file;
+        private MappedByteBuffer buffer;
+        private OffHeapLongSet ids;
+        private boolean dirty = false;
+    }
+
+    private File directory;
+    private int retentionDays;
+    //utc day number -> generation
+    private TreeMap<Long, Generation> generations = Maps.newTreeMap();
+    private OffHeapLongSet pending = newPendingSet(INITIAL_CAPACITY);
+    private boolean warnedFull = false;
+
+    public ActivityDedupIndex(String directoryName, int retentionDays) {
+        this.directory = new File(directoryName);
+        this.retentionDays = retentionDays;
+    }
+
+    //maps the generations that are still within the retention and deletes the rest
+    public synchronized void open() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("couldn't create dedup index directory %s", directory));
+        }
+        File[] files = directory.listFiles();
+        long oldestDay = today() - retentionDays + 1;
+        long ids = 0;
+        for(File file : (files == null) ? new File[0] : files) {
+            Matcher matcher = GENERATION_FILE.matcher(file.getName());
+            if(!matcher.matches()) continue;
+            long day = Long.parseLong(matcher.group(1));
+            if(day < oldestDay) {
+                deleteGeneration(file);
+                continue;
+            }
+            Generation generation = mapGeneration(file, 0);
+            if(generation == null) {
+                LOG.warn("dedup index file {} is damaged, starting that day over", file);
+                deleteGeneration(file);
+                continue;
+            }
+            generations.put(day, generation);
+            ids += generation.ids.size();
+        }
+        LOG.info("opened dedup index {} with {} activity ids over {} days", directory, ids, generations.size());
+    }
+
+    //true the first time an activity is seen, false if it's a duplicate
+    public synchronized boolean add(String activityType, String activityId) {
+        long key = key(activityType, activityId);
+        for(Generation generation : generations.values()) {
+            if(generation.ids.contains(key)) return false;
+        }
+        if(pending.isFull()) {
+            if(pending.capacity() >= MAX_CAPACITY) {
+                //can't remember any more until the next commit, so this one might get written twice
+                if(!warnedFull) {
+                    LOG.warn("dedup index has {} ids waiting to be committed and can't take more until the next flush", pending.size());
+                    warnedFull = true;
+                }
+                return !pending.contains(key);
+            }
+            pending = copyInto(pending, newPendingSet(pending.capacity() * 2));
+        }
+        return pending.add(key);
+    }
+
+    //moves the pending ids into today's generation and syncs it to disk, then drops expired generations
+    public synchronized void commit() throws IOException {
+        if(pending.size() > 0) {
+            long today = today();
+            Generation generation = generations.get(today);
+            if(generation == null) {
+                generation = mapGeneration(new File(directory, String.format("dedup-%s.idx", today)), INITIAL_CAPACITY);
+                generations.put(today, generation);
+            }
+            for(int slot = 0; slot < pending.capacity(); slot++) {
+                long key = pending.getSlot(slot);
+                if(key == 0) continue;
+                if(generation.ids.isFull()) {
+                    if(generation.ids.capacity() >= MAX_CAPACITY) {
+                        LOG.warn("dedup index for today is full at {} ids, not remembering any more until tomorrow", generation.ids.size());
+                        break;
+                    }
+                    generation = growGeneration(today, generation);
+                }
+                generation.ids.add(key);
+                generation.dirty = true;
+            }
+            pending = newPendingSet(INITIAL_CAPACITY);
+            warnedFull = false;
+        }
+        for(Generation generation : generations.values()) {
+            if(generation.dirty) {
+                generation.buffer.force();
+                generation.dirty = false;
+            }
+        }
+        long oldestDay = today() - retentionDays + 1;
+        Iterator<Map.Entry<Long, Generation>> expired = generations.headMap(oldestDay).entrySet().iterator();
+        while(expired.hasNext()) {
+            deleteGeneration(expired.next().getValue().file);
+            expired.remove();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        commit();
+        //the mappings themselves go when they're collected, java 6 has no way to unmap them
+        generations.clear();
+    }
+
+    //fnv-1a over the canonical type and id, then the murmur3 finaliser so the low bits are usable as a slot
+    private static long key(String activityType, String activityId) {
+        long hash = 0xcbf29ce484222325L;
+        byte[] bytes = (ActivityTypes.canonical(activityType) + ":" + activityId).getBytes(Charsets.UTF_8);
+        for(byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash == 0) ? 1 : hash;
+    }
+
+    private static long today() {
+        return System.currentTimeMillis() / GENERATION_MILLIS;
+    }
+
+    private static OffHeapLongSet newPendingSet(int capacity) {
+        return OffHeapLongSet.create(ByteBuffer.allocateDirect((int) OffHeapLongSet.bytesFor(capacity)), capacity);
+    }
+
+    private static OffHeapLongSet copyInto(OffHeapLongSet from, OffHeapLongSet to) {
+        for(int slot = 0; slot < from.capacity(); slot++) {
+            long key = from.getSlot(slot);
+            if(key != 0) to.add(key);
+        }
+        return to;
+    }
+
+    //maps an existing generation file when capacity is 0, otherwise creates a new one with that capacity
+    private Generation mapGeneration(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            Generation generation = new Generation();
+            generation.file = file;
+            if(capacity > 0) {
+                raf.setLength(0);
+                raf.setLength(OffHeapLongSet.bytesFor(capacity));
+            }
+            generation.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            generation.ids = (capacity > 0) ? OffHeapLongSet.create(generation.buffer, capacity) : OffHeapLongSet.open(generation.buffer);
+            generation.dirty = capacity > 0;
+            return (generation.ids == null) ? null : generation;
+        } finally {
+            //the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    //copies the generation into a file twice the size and swaps it in
+    private Generation growGeneration(long day, Generation generation) throws IOException {
+        File tempFile = new File(directory, generation.file.getName() + ".tmp");
+        Generation grown = mapGeneration(tempFile, generation.ids.capacity() * 2);
+        copyInto(generation.ids, grown.ids);
+        grown.buffer.force();
+        if(!tempFile.renameTo(generation.file)) {
+            throw new IOException(String.format("couldn't move %s over %s", tempFile, generation.file));
+        }
+        grown.file = generation.file;
+        generations.put(day, grown);
+        LOG.info("grew the dedup index for day {} to {} slots", day, grown.ids.capacity());
+        return grown;
+    }
+
+    private static void deleteGeneration(File file) {
+        if(file.delete()) {
+            LOG.info("dropped dedup index generation {}", file);
+        } else {
+            LOG.warn("couldn't delete dedup index generation {}", file);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.ntropy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/*
+How busy each contact and activity type was the last time its calls ran, in activities per second, e.g.
+    emailOpen.12345=0.0213
+so a contact that needed its window split last run starts out split the same way instead of paying for a full page
+first. Only contacts that came close to a full page are kept, a contact that's gone quiet is dropped on its next call,
+so the file stays at the handful of busy contacts rather than growing with the database. Saved the same way as the
+sync checkpoints, to a temp file that's renamed over the original.
+ */
+public class ActivityDensityCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityDensityCache.class);
+
+    //below this many activities in a call a single request was enough, so there's nothing worth remembering
+    private static final int MIN_ROWS_TO_REMEMBER = ActivityWindowSplitter.TARGET_ROWS_PER_WINDOW;
+
+    private File file;
+    //a Hashtable underneath, so the calls can all record into it at once
+    private Properties densities = new Properties();
+
+    public ActivityDensityCache(String fileName) {
+        this.file = new File(fileName);
+    }
+
+    public void load() throws IOException {
+        Properties loaded = new Properties();
+        if(!file.exists()) {
+            LOG.info("no activity densities at {}, busy contacts will be split as their pages come back full", file);
+            densities = loaded;
+            return;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            loaded.load(in);
+        } finally {
+            in.close();
+        }
+        densities = loaded;
+        LOG.info("loaded activity densities for {} busy contacts from {}", densities.size(), file);
+    }
+
+    //activities per second the contact had last time, null if it wasn't busy enough to need splitting
+    public Double getDensity(int contactId, String activityType) {
+        String density = densities.getProperty(key(contactId, activityType));
+        if(density == null) return null;
+        try {
+            return Double.valueOf(density);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    public void record(int contactId, String activityType, int activities, long windowSeconds) {
+        String key = key(contactId, activityType);
+        if(activities < MIN_ROWS_TO_REMEMBER || windowSeconds <= 0) {
+            densities.remove(key);
+        } else {
+            densities.setProperty(key, Double.toString((double) activities / windowSeconds));
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        PropertiesFiles.save(densities, file, "activities per second of the contacts whose activity calls needed splitting");
+        LOG.info("saved activity densities for {} busy contacts to {}", densities.size(), file);
+    }
+
+    private static String key(int contactId, String activityType) {
+        return activityType + "." + contactId;
+    }
+}
@@ -0,0 +1,283 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Works out which activities one api returned and the other didn't, rather than just whether the counts match. Every
+activity from both paths is reduced to an (activity type, ActivityId, source, ContactId, date) record and spilled into
+an ExternalRecordSorter, so memory stays bounded however many there are. Once the sync is done the sorted records are
+walked grouped by type and id, and anything only one api returned goes into a second sorter keyed by contact to write
+the per contact report. Reports, all tab separated:
+    reconciliationByType.tsv      per type: activities from each api, matched, only in REST, only in bulk, outside the
+                                  window both apis covered, and duplicate rows within each api
+    reconciliationByContact.tsv   per contact and type with differences: how many were only in REST and only in bulk
+    reconciliationMissing.tsv     every unmatched activity, by contact: type, ActivityId, ContactId, date, which api had it
+Activities are only reported missing if their date is inside the window both apis synced for the type, so a bulk type
+picking up from an older checkpoint than the REST calls doesn't show up as a pile of differences.
+ */
+public class ActivityReconciler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ActivityReconciler.class);
+
+    private static final int RUN_RECORDS = 1 << 18;
+    //what each of the two sorters can hold in its run buffers, 6 runs of 10MB
+    private static final long SORT_MEMORY_BYTES = 6L * RUN_RECORDS * ExternalRecordSorter.RECORD_LONGS * 8;
+    //ids and contacts that are missing or not numbers
+    private static final long NO_ID = -1;
+    private static final long NO_DATE = 0;
+    //bulk dates come through in one of these, REST dates are epoch seconds
+    private static final List<DateTimeFormatter> BULK_DATE_FORMATS = Lists.newArrayList(
+            DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss.SSS").withZoneUTC(),
+            DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss").withZoneUTC());
+    //per type counts, indexed by the TYPE_ constants
+    private static final int TYPE_REST = 0;
+    private static final int TYPE_BULK = 1;
+    private static final int TYPE_MATCHED = 2;
+    private static final int TYPE_ONLY_REST = 3;
+    private static final int TYPE_ONLY_BULK = 4;
+    private static final int TYPE_OUTSIDE_WINDOW = 5;
+    private static final int TYPE_REST_DUPLICATES = 6;
+    private static final int TYPE_BULK_DUPLICATES = 7;
+
+    private File directory;
+    private ExternalRecordSorter activities;
+    //type name -> index used in the sort records
+    private Map<String, Integer> typeIndexes = Maps.newHashMap();
+    private List<String> typeNames = Lists.newArrayList();
+    //type -> [rest start, rest end, bulk start, bulk end] in millis
+    private Map<String, long[]> windows = Maps.newHashMap();
+    private AtomicLong unidentified = new AtomicLong();
+
+    public ActivityReconciler(String directoryName) {
+        this.directory = new File(directoryName);
+        this.activities = new ExternalRecordSorter(new File(directory, "runs"), "activities", RUN_RECORDS, SORT_MEMORY_BYTES);
+    }
+
+    //the window a source synced the type over, activities outside the overlap of the two aren't expected to match
+    public synchronized void setWindow(SyncStatistics.Source source, String activityType, long startMillis, long endMillis) {
+        String type = ActivityTypes.canonical(activityType);
+        long[] window = windows.get(type);
+        if(window == null) {
+            window = new long[]{Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+            windows.put(type, window);
+        }
+        int offset = (source == SyncStatistics.Source.REST) ? 0 : 2;
+        window[offset] = Math.min(window[offset], startMillis);
+        window[offset + 1] = Math.max(window[offset + 1], endMillis);
+    }
+
+    public void record(SyncStatistics.Source source, String activityType, JSONObject activity) throws IOException {
+        long activityId = parseId(activity.optString(source == SyncStatistics.Source.BULK ? "ActivityId" : "id", null));
+        if(activityId == NO_ID) {
+            unidentified.incrementAndGet();
+            return;
+        }
+        long contactId;
+        long date;
+        if(source == SyncStatistics.Source.BULK) {
+            contactId = parseId(activity.optString("ContactId", null));
+            date = parseBulkDate(activity.optString("ActivityDate", null));
+        } else {
+            contactId = parseId(activity.optString("contact", activity.optString("contactId", null)));
+            long seconds = parseId(activity.optString("activityDate", null));
+            date = (seconds == NO_ID) ? NO_DATE : seconds * 1000;
+        }
+        activities.add(typeIndex(ActivityTypes.canonical(activityType)), activityId, source.ordinal(), contactId, date);
+    }
+
+    public void writeReport() throws Exception {
+        if(unidentified.get() > 0) {
+            LOG.warn("left {} activities without a numeric id out of the reconciliation", unidentified.get());
+        }
+        ExternalRecordSorter missing = new ExternalRecordSorter(new File(directory, "runs"), "missing", RUN_RECORDS, SORT_MEMORY_BYTES);
+        try {
+            Map<Integer, long[]> typeStats = compareActivities(missing);
+            writeTypeReport(typeStats);
+            writeContactReports(missing);
+        } finally {
+            missing.close();
+            activities.close();
+        }
+    }
+
+    //walks the activities sorted by type, id and source, one group per activity
+    private Map<Integer, long[]> compareActivities(final ExternalRecordSorter missing) throws Exception {
+        final Map<Integer, long[]> typeStats = Maps.newTreeMap();
+        final long[] group = new long[]{-1, -1};
+        //rows per source, contact and date for the current group
+        final long[] groupRows = new long[2];
+        final long[] groupDetail = new long[]{NO_ID, NO_DATE};
+        activities.merge(new ExternalRecordSorter.RecordHandler() {
+            @Override
+            public void handle(long[] record) throws IOException {
+                if(record[0] != group[0] || record[1] != group[1]) {
+                    finishGroup(group, groupRows, groupDetail, typeStats, missing);
+                    group[0] = record[0];
+                    group[1] = record[1];
+                    groupRows[0] = 0;
+                    groupRows[1] = 0;
+                    groupDetail[0] = NO_ID;
+                    groupDetail[1] = NO_DATE;
+                }
+                groupRows[(int) record[2]]++;
+                if(groupDetail[0] == NO_ID) groupDetail[0] = record[3];
+                if(groupDetail[1] == NO_DATE) groupDetail[1] = record[4];
+            }
+        });
+        finishGroup(group, groupRows, groupDetail, typeStats, missing);
+        return typeStats;
+    }
+
+    private void finishGroup(long[] group, long[] groupRows, long[] groupDetail, Map<Integer, long[]> typeStats, ExternalRecordSorter missing) throws IOException {
+        if(group[0] < 0) return;
+        int type = (int) group[0];
+        long[] stats = typeStats.get(type);
+        if(stats == null) {
+            stats = new long[8];
+            typeStats.put(type, stats);
+        }
+        long restRows = groupRows[SyncStatistics.Source.REST.ordinal()];
+        long bulkRows = groupRows[SyncStatistics.Source.BULK.ordinal()];
+        if(restRows > 0) stats[TYPE_REST]++;
+        if(bulkRows > 0) stats[TYPE_BULK]++;
+        stats[TYPE_REST_DUPLICATES] += Math.max(0, restRows - 1);
+        stats[TYPE_BULK_DUPLICATES] += Math.max(0, bulkRows - 1);
+        if(restRows > 0 && bulkRows > 0) {
+            stats[TYPE_MATCHED]++;
+        } else if(!insideSharedWindow(typeNames.get(type), groupDetail[1])) {
+            stats[TYPE_OUTSIDE_WINDOW]++;
+        } else {
+            SyncStatistics.Source foundIn = (restRows > 0) ? SyncStatistics.Source.REST : SyncStatistics.Source.BULK;
+            stats[(foundIn == SyncStatistics.Source.REST) ? TYPE_ONLY_REST : TYPE_ONLY_BULK]++;
+            missing.add(groupDetail[0], type, group[1], foundIn.ordinal(), groupDetail[1]);
+        }
+    }
+
+    private boolean insideSharedWindow(String type, long date) {
+        long[] window = windows.get(type);
+        if(window == null || window[0] > window[1] || window[2] > window[3]) {
+            //only one api synced the type, so there's nothing to compare it against
+            return false;
+        }
+        if(date == NO_DATE) return true;
+        return date >= Math.max(window[0], window[2]) && date <= Math.min(window[1], window[3]);
+    }
+
+    private void writeTypeReport(Map<Integer, long[]> typeStats) throws IOException {
+        File report = new File(directory, "reconciliationByType.tsv");
+        Writer writer = newWriter(report);
+        try {
+            writer.write("activityType\trest\tbulk\tmatched\tonlyRest\tonlyBulk\toutsideSharedWindow\trestDuplicates\tbulkDuplicates\n");
+            for(Map.Entry<Integer, long[]> type : typeStats.entrySet()) {
+                long[] stats = type.getValue();
+                writer.write(typeNames.get(type.getKey()));
+                for(long stat : stats) {
+                    writer.write('\t');
+                    writer.write(Long.toString(stat));
+                }
+                writer.write('\n');
+                LOG.info("reconciled {}: {} from rest, {} from bulk, {} matched, {} only in rest, {} only in bulk, {} outside the shared window",
+                        typeNames.get(type.getKey()), stats[TYPE_REST], stats[TYPE_BULK], stats[TYPE_MATCHED], stats[TYPE_ONLY_REST],
+                        stats[TYPE_ONLY_BULK], stats[TYPE_OUTSIDE_WINDOW]);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    //the unmatched activities come back sorted by contact, type and id
+    private void writeContactReports(ExternalRecordSorter missing) throws Exception {
+        final Writer byContact = newWriter(new File(directory, "reconciliationByContact.tsv"));
+        final Writer details = newWriter(new File(directory, "reconciliationMissing.tsv"));
+        try {
+            byContact.write("contactId\tactivityType\tonlyRest\tonlyBulk\n");
+            details.write("activityType\tactivityId\tcontactId\tactivityDate\tfoundIn\n");
+            //contact, type, only rest, only bulk
+            final long[] current = new long[]{NO_ID, -1, 0, 0};
+            missing.merge(new ExternalRecordSorter.RecordHandler() {
+                @Override
+                public void handle(long[] record) throws IOException {
+                    if(record[0] != current[0] || record[1] != current[1]) {
+                        writeContactLine(byContact, current);
+                        current[0] = record[0];
+                        current[1] = record[1];
+                        current[2] = 0;
+                        current[3] = 0;
+                    }
+                    boolean rest = record[3] == SyncStatistics.Source.REST.ordinal();
+                    current[rest ? 2 : 3]++;
+                    details.write(String.format("%s\t%s\t%s\t%s\t%s\n", typeNames.get((int) record[1]), record[2], formatId(record[0]),
+                            (record[4] == NO_DATE) ? "" : EloquaActivities.DateHourMinSecFormatter.print(record[4]),
+                            rest ? "rest" : "bulk"));
+                }
+            });
+            writeContactLine(byContact, current);
+        } finally {
+            byContact.close();
+            details.close();
+        }
+        LOG.info("wrote the reconciliation reports to {}", directory);
+    }
+
+    private void writeContactLine(Writer writer, long[] current) throws IOException {
+        if(current[1] < 0) return;
+        writer.write(String.format("%s\t%s\t%s\t%s\n", formatId(current[0]), typeNames.get((int) current[1]), current[2], current[3]));
+    }
+
+    private static String formatId(long id) {
+        return (id == NO_ID) ? "" : Long.toString(id);
+    }
+
+    private static Writer newWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+    }
+
+    private synchronized long typeIndex(String type) {
+        Integer index = typeIndexes.get(type);
+        if(index == null) {
+            index = typeNames.size();
+            typeNames.add(type);
+            typeIndexes.put(type, index);
+        }
+        return index;
+    }
+
+    //bulk names lower cased, with the REST names mapped onto them
+    private static long parseId(String id) {
+        if(id == null || id.isEmpty()) return NO_ID;
+        try {
+            return Long.parseLong(id.trim());
+        } catch (NumberFormatException nfe) {
+            return NO_ID;
+        }
+    }
+
+    private static long parseBulkDate(String date) {
+        if(date == null) return NO_DATE;
+        for(DateTimeFormatter format : BULK_DATE_FORMATS) {
+            try {
+                return format.parseMillis(date);
+            } catch (IllegalArgumentException iae) {
+                //try the next one
+            }
+        }
+        return NO_DATE;
+    }
+}
@@ -0,0 +1,30 @@
+package io.ntropy;
+
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+//where the decoded activity records from the REST calls and the bulk exports end up. called from many threads at once
+public interface ActivitySink extends Closeable {
+
+    void write(SyncStatistics.Source source, String activityType, JSONObject activity) throws IOException;
+
+    //blocks until everything written so far is safely on disk, so it's safe to checkpoint past it
+    void flush() throws IOException;
+
+    //for runs that only count the activities
+    ActivitySink DISCARD = new ActivitySink() {
+        @Override
+        public void write(SyncStatistics.Source source, String activityType, JSONObject activity) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+}
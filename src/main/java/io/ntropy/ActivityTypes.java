@@ -0,0 +1,26 @@
+package io.ntropy;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Locale;
+import java.util.Map;
+
+/*
+The REST calls and the bulk exports name the same activity types differently, e.g. emailOpen and EmailOpen, and the
+subscription types don't even share a name. canonical gives both the same name, so anything matching activities across
+the two apis (the dedup index, the reconciler) agrees on which type an activity is.
+ */
+public class ActivityTypes {
+
+    //REST type names that aren't just the bulk name lower cased
+    private static final Map<String, String> REST_TO_BULK_TYPES = ImmutableMap.of(
+            "emailsubscribe", "subscribe",
+            "emailunsubscribe", "unsubscribe");
+
+    //the lower cased bulk name of the type, whichever api it came from
+    public static String canonical(String activityType) {
+        String type = activityType.toLowerCase(Locale.ENGLISH);
+        String bulkType = REST_TO_BULK_TYPES.get(type);
+        return (bulkType == null) ? type : bulkType;
+    }
+}
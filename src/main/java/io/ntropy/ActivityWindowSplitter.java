@@ -0,0 +1,139 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Works out which windows a contact activity call still has to fetch once a page comes back full. Windows are
+[start, end] in epoch seconds, both inclusive, like the startDate and endDate the api takes.
+
+When the page's activityDates run in order, the page is complete up to its last date: those rows are kept and only
+the gap after the last date (or before it, for a page that runs newest first) is fetched again. Rows on the last
+date itself are dropped and fetched with the gap, since the page may have been cut off part way through that second.
+The gap is cut into enough sub-windows to hold about TARGET_ROWS_PER_WINDOW rows each at the density the page showed,
+so they can all go out at once instead of halving and finding out one round trip at a time. A page that isn't in
+order, or whose rows all share a date, only says the window is busy, so it's thrown away and the window split at its
+median date instead.
+ */
+public class ActivityWindowSplitter {
+
+    public static final int PAGE_SIZE = 1000;
+    //aim under a full page so a sub-window a little busier than the average still fits
+    public static final int TARGET_ROWS_PER_WINDOW = PAGE_SIZE / 2;
+    public static final int MAX_WINDOWS_PER_SPLIT = 16;
+
+    public static class Split {
+        private JSONArray kept;
+        private List<long[]> windows;
+
+        private Split(JSONArray kept, List<long[]> windows) {
+            this.kept = kept;
+            this.windows = windows;
+        }
+
+        //rows of the full page that no later window will return again
+        public JSONArray getKept() {
+            return kept;
+        }
+
+        public List<long[]> getWindows() {
+            return windows;
+        }
+    }
+
+    //only called for a full page of a window longer than a second, so every window returned is smaller than [start, end]
+    public static Split afterFullPage(JSONArray page, long start, long end) {
+        int rows = page.length();
+        long[] dates = new long[rows];
+        boolean ascending = true;
+        boolean descending = true;
+        for(int i = 0; i < rows; i++) {
+            dates[i] = getActivityDate(page.optJSONObject(i));
+            if(dates[i] < 0) {
+                return new Split(new JSONArray(), splitAtMedian(new long[0], start, end));
+            }
+            if(i > 0) {
+                ascending &= dates[i] >= dates[i - 1];
+                descending &= dates[i] <= dates[i - 1];
+            }
+        }
+        long first = dates[0];
+        long last = dates[rows - 1];
+        if(first == last || !(ascending || descending) || last < start || last > end) {
+            return new Split(new JSONArray(), splitAtMedian(dates, start, end));
+        }
+        JSONArray kept = new JSONArray();
+        for(int i = 0; i < rows; i++) {
+            if(ascending ? dates[i] < last : dates[i] > last) {
+                kept.put(page.opt(i));
+            }
+        }
+        long gapStart = ascending ? last : start;
+        long gapEnd = ascending ? end : last;
+        //the page covered everything from its end of the window up to the last date
+        long coveredSeconds = ascending ? last - start + 1 : end - last + 1;
+        int pieces = piecesFor((double) rows / coveredSeconds, gapStart, gapEnd);
+        if(gapStart == start && gapEnd == end) {
+            //nothing kept, the last date is at the window's edge, so the gap has to be split to get anywhere
+            pieces = Math.max(pieces, 2);
+        }
+        return new Split(kept, splitEvenly(gapStart, gapEnd, pieces));
+    }
+
+    //the windows to start a call with given the density its contact had last time, null when it isn't known
+    public static List<long[]> initialWindows(long start, long end, Double activitiesPerSecond) {
+        if(activitiesPerSecond == null || start >= end) {
+            return splitEvenly(start, end, 1);
+        }
+        return splitEvenly(start, end, piecesFor(activitiesPerSecond, start, end));
+    }
+
+    private static int piecesFor(double activitiesPerSecond, long start, long end) {
+        long seconds = end - start + 1;
+        double expectedRows = activitiesPerSecond * seconds;
+        long pieces = (long) Math.ceil(expectedRows / TARGET_ROWS_PER_WINDOW);
+        return (int) Math.max(1, Math.min(Math.min(pieces, MAX_WINDOWS_PER_SPLIT), seconds));
+    }
+
+    private static List<long[]> splitEvenly(long start, long end, int pieces) {
+        List<long[]> windows = Lists.newArrayListWithCapacity(pieces);
+        long seconds = end - start + 1;
+        long step = (seconds + pieces - 1) / pieces;
+        for(long windowStart = start; windowStart <= end; windowStart += step) {
+            windows.add(new long[]{windowStart, Math.min(end, windowStart + step - 1)});
+        }
+        return windows;
+    }
+
+    //halves the window where half the page's dates fall either side, or down the middle without any dates
+    private static List<long[]> splitAtMedian(long[] dates, long start, long end) {
+        long middle = (start + end) / 2;
+        if(dates.length > 0) {
+            long[] sorted = dates.clone();
+            Arrays.sort(sorted);
+            middle = sorted[sorted.length / 2];
+        }
+        //the first window has to end before the window does and the second start after it starts
+        middle = Math.max(start, Math.min(end - 1, middle));
+        List<long[]> windows = Lists.newArrayListWithCapacity(2);
+        windows.add(new long[]{start, middle});
+        windows.add(new long[]{middle + 1, end});
+        return windows;
+    }
+
+    //the REST activities carry their date in epoch seconds, -1 if it's missing or not a number
+    private static long getActivityDate(JSONObject activity) {
+        if(activity == null) return -1;
+        String date = activity.optString("activityDate", null);
+        if(date == null) return -1;
+        try {
+            return Long.parseLong(date.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package io.ntropy;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+AIMD limiter for the contact activity calls.
+Every request that comes back in reasonable time while the limit is actually being used adds 1/limit, so the limit grows
+by about one per round trip. A timeout, a 5xx or a response taking more than LATENCY_TOLERANCE times the usual latency
+cuts the limit by BACKOFF_RATIO, at most once per round trip so a burst of failures from the same moment only counts once.
+The usual latency is the fastest recent response: it drops straight to any faster response and only creeps up towards
+slower ones, so queueing delay doesn't get mistaken for normal but a permanently slower api eventually becomes the new normal.
+ */
+public class AdaptiveConcurrencyLimiter implements ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    //per round trip, spread across the limit's worth of responses that make up one
+    private static final double BASELINE_DRIFT = 0.001;
+    private static final long MIN_DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private int minLimit;
+    private int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private double baselineLatencyNanos = -1;
+    private long lastDecreaseNanos = 0;
+    private long drops = 0;
+
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    @Override
+    public synchronized void acquire() throws InterruptedException {
+        while(inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    @Override
+    public synchronized void release(long latencyNanos, boolean dropped) {
+        //in flight count from when this request was still running
+        int wasInFlight = inFlight;
+        inFlight--;
+
+        boolean congested = baselineLatencyNanos > 0 && latencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE;
+        if(!dropped) {
+            baselineLatencyNanos = (baselineLatencyNanos < 0 || latencyNanos < baselineLatencyNanos) ? latencyNanos
+                    : baselineLatencyNanos + (latencyNanos - baselineLatencyNanos) * BASELINE_DRIFT / limit;
+        }
+        if(dropped || congested) {
+            if(dropped) drops++;
+            long now = System.nanoTime();
+            if(now - lastDecreaseNanos > Math.max(MIN_DECREASE_INTERVAL_NANOS, (long) baselineLatencyNanos)) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = now;
+            }
+        } else {
+            //no point growing a limit we aren't anywhere near using
+            if(wasInFlight * 2 >= (int) limit) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("adaptive limit %s (%s-%s) with %s in flight, %sms usual latency and %s drops", (int) limit, minLimit, maxLimit, inFlight,
+                TimeUnit.NANOSECONDS.toMillis((long) Math.max(0, baselineLatencyNanos)), drops);
+    }
+}
@@ -0,0 +1,58 @@
+package io.ntropy;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+
+/*
+Future based version of WebUtilities so callers can fire off requests and chain on the results instead of parking a
+worker thread on every call. The requests themselves still go through the blocking HttpTransport (we're on java 6 with
+no non-blocking http client available), so they run on a dedicated io pool that can be sized well past the worker
+pool, and callers only ever block when they ask for a result.
+ */
+public class AsyncWebUtilities {
+
+    public static final int DEFAULT_IO_THREADS = 64;
+
+    private static ListeningExecutorService ioPool = newIoPool(DEFAULT_IO_THREADS);
+
+    public static void configure(int ioThreads) {
+        ListeningExecutorService oldPool = ioPool;
+        ioPool = newIoPool(ioThreads);
+        oldPool.shutdown();
+    }
+
+    public static ListenableFuture<String> sendGetRequest(final String url, final int timeoutMillis, final int maxRetries, final Map<String, String> headerProperties) {
+        return ioPool.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return WebUtilities.sendGetRequest(url, timeoutMillis, maxRetries, headerProperties);
+            }
+        });
+    }
+
+    public static void sendGetRequest(String url, int timeoutMillis, int maxRetries, Map<String, String> headerProperties, FutureCallback<String> callback) {
+        Futures.addCallback(sendGetRequest(url, timeoutMillis, maxRetries, headerProperties), callback);
+    }
+
+    public static <T> ListenableFuture<T> sendGetRequest(final String url, final int timeoutMillis, final int maxRetries, final Map<String, String> headerProperties, final WebUtilities.ResponseHandler<T> handler) {
+        return ioPool.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return WebUtilities.sendGetRequest(url, timeoutMillis, maxRetries, headerProperties, handler);
+            }
+        });
+    }
+
+    private static ListeningExecutorService newIoPool(int ioThreads) {
+        return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(ioThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("async-web-%d").build()));
+    }
+}
@@ -0,0 +1,24 @@
+package io.ntropy;
+
+import com.beust.jcommander.IParameterValidator;
+import com.beust.jcommander.ParameterException;
+
+/*
+For counts where 0 would leave nothing able to run, e.g. a semaphore with no permits that every sync waits on forever.
+jcommander's own PositiveInteger lets 0 through.
+ */
+public class AtLeastOne implements IParameterValidator {
+
+    @Override
+    public void validate(String name, String value) throws ParameterException {
+        int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            throw new ParameterException(String.format("parameter %s should be a whole number (found %s)", name, value));
+        }
+        if(n < 1) {
+            throw new ParameterException(String.format("parameter %s should be at least 1 (found %s)", name, value));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package io.ntropy;
+
+import com.beust.jcommander.IParameterValidator;
+import com.beust.jcommander.ParameterException;
+
+/*
+For amounts where 0 means none but a negative one makes no sense, e.g. a negative checkpoint overlap would leave a gap
+between one sync's window and the next. The same messages as AtLeastOne.
+ */
+public class AtLeastZero implements IParameterValidator {
+
+    @Override
+    public void validate(String name, String value) throws ParameterException {
+        int n;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            throw new ParameterException(String.format("parameter %s should be a whole number (found %s)", name, value));
+        }
+        if(n < 0) {
+            throw new ParameterException(String.format("parameter %s should be at least 0 (found %s)", name, value));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/*
+Base for sinks that write activity files in a directory from a single background thread. Callers only turn each
+activity into a record (toRecord, on their own thread) and queue it, the writer thread drains the queue in chunks and
+does the encoding, compression and file io, so the fetch threads never wait on the disk unless the writer falls a whole
+queue behind.
+
+Files are named activities-<run start>-<sequence>.<extension> and are written with .partial on the end, which is only
+removed once the file is complete and synced to disk (on rotation, flush and close), so anything without .partial on
+the end is safe to pick up.
+ */
+public abstract class BackgroundActivitySink implements ActivitySink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackgroundActivitySink.class);
+
+    //records the writer can be behind by before writes block
+    private static final int MAX_QUEUED_RECORDS = 16384;
+    private static final int MAX_RECORDS_PER_DRAIN = 1024;
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormat.forPattern("yyyyMMddHHmmss").withZoneUTC();
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    //marks the end of the queue, compared by reference
+    private static final Object END = new Object();
+
+    private static class FlushRequest {
+        private CountDownLatch done = new CountDownLatch(1);
+    }
+
+    protected File directory;
+    private String extension;
+    private String runTimestamp = FILE_TIMESTAMP.print(DateTime.now());
+    private BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(MAX_QUEUED_RECORDS);
+    private volatile Thread writerThread;
+    private volatile Throwable failure;
+    private boolean closed = false;
+
+    //only touched by the writer thread
+    private int fileSequence = 0;
+    private long totalRecords = 0;
+    private long totalDiskBytes = 0;
+
+    protected BackgroundActivitySink(String directoryName, String extension) {
+        this.directory = new File(directoryName);
+        this.extension = extension;
+    }
+
+    //called on the writing thread, turns the activity into whatever writeRecord takes
+    protected abstract Object toRecord(SyncStatistics.Source source, String activityType, JSONObject activity) throws IOException;
+
+    //the rest are only called on the writer thread
+    protected abstract void writeRecord(Object record) throws IOException;
+
+    //completes the file being written, if there is one
+    protected abstract void finishFile() throws IOException;
+
+    //closes whatever's open after a failure, leaving the .partial file behind
+    protected abstract void abandonFile();
+
+    //the writer thread is about to exit, after the last file has been finished or abandoned
+    protected void writerFinished() {
+    }
+
+    @Override
+    public void write(SyncStatistics.Source source, String activityType, JSONObject activity) throws IOException {
+        checkFailure();
+        put(toRecord(source, activityType, activity));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkFailure();
+        FlushRequest request = new FlushRequest();
+        put(request);
+        try {
+            request.done.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the activity files to be flushed");
+        }
+        checkFailure();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        put(END);
+        try {
+            writerThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the activity files to be finished");
+        }
+        LOG.info("wrote {} activities to {} files in {} ({} MB on disk)", totalRecords, fileSequence, directory,
+                String.format("%.1f", totalDiskBytes / (1024.0 * 1024.0)));
+        checkFailure();
+    }
+
+    //the next file to write, with .partial on the end
+    protected File newPartialFile() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("couldn't create activity output directory %s", directory));
+        }
+        return new File(directory, String.format("activities-%s-%05d.%s%s", runTimestamp, ++fileSequence, extension, PARTIAL_SUFFIX));
+    }
+
+    //renames a file that's been synced to disk to its final name
+    protected void completeFile(File partialFile, long records, long rawBytes, long diskBytes) throws IOException {
+        String partialName = partialFile.getName();
+        File finishedFile = new File(directory, partialName.substring(0, partialName.length() - PARTIAL_SUFFIX.length()));
+        if(!partialFile.renameTo(finishedFile)) {
+            throw new IOException(String.format("couldn't rename %s to %s", partialFile, finishedFile));
+        }
+        totalRecords += records;
+        totalDiskBytes += diskBytes;
+        LOG.info("wrote {} activities to {} ({} MB before encoding, {} MB after)", records, finishedFile,
+                String.format("%.1f", rawBytes / (1024.0 * 1024.0)), String.format("%.1f", diskBytes / (1024.0 * 1024.0)));
+    }
+
+    private void put(Object item) throws IOException {
+        if(writerThread == null) {
+            startWriter();
+        }
+        try {
+            queue.put(item);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted queueing an activity to write");
+        }
+    }
+
+    //started on first use rather than in the constructor so the subclass is fully built before the thread touches it
+    private synchronized void startWriter() {
+        if(writerThread != null) return;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        }, "activity-sink-writer");
+        thread.setDaemon(true);
+        thread.start();
+        writerThread = thread;
+    }
+
+    private void checkFailure() throws IOException {
+        if(failure != null) {
+            throw new IOException(String.format("writing activities to %s failed", directory), failure);
+        }
+    }
+
+    private void drainQueue() {
+        List<Object> items = Lists.newArrayListWithCapacity(MAX_RECORDS_PER_DRAIN);
+        while(true) {
+            try {
+                items.add(queue.take());
+            } catch (InterruptedException ie) {
+                //nothing interrupts the writer, close waits on the end marker instead
+                continue;
+            }
+            queue.drainTo(items, MAX_RECORDS_PER_DRAIN - 1);
+            for(Object item : items) {
+                if(item == END) {
+                    finishFileQuietly();
+                    writerFinished();
+                    return;
+                } else if(item instanceof FlushRequest) {
+                    finishFileQuietly();
+                    ((FlushRequest) item).done.countDown();
+                } else if(failure == null) {
+                    //once we've failed records are dropped so writers don't block, they'll hear about it on their next write
+                    try {
+                        writeRecord(item);
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }
+            items.clear();
+        }
+    }
+
+    private void finishFileQuietly() {
+        if(failure != null) return;
+        try {
+            finishFile();
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    private void fail(Throwable t) {
+        LOG.error("failed writing activities to {}", directory, t);
+        failure = t;
+        abandonFile();
+    }
+}
@@ -0,0 +1,96 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+Holds the rows of one attempt at a bulk export until every page of it has been read, so an attempt that fails part way
+and gets retried from the start doesn't leave its rows in the activity files next to the retry's. The rows go to a
+gzipped temp file rather than memory, an export can run to millions of rows, and are handed on in the order they were
+staged once the attempt has succeeded. Closing the stage throws away whatever wasn't handed on.
+ */
+public class BulkExportStage implements Closeable {
+
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    public interface RowHandler {
+        void handleRow(JSONObject row) throws IOException;
+    }
+
+    private File file;
+    private Writer writer;
+    private long rows = 0;
+
+    public BulkExportStage(String name) throws IOException {
+        file = File.createTempFile("export-" + name + "-", ".ndjson.gz");
+        file.deleteOnExit();
+        GZIPOutputStream gzipOut = new GZIPOutputStream(new FileOutputStream(file), BUFFER_BYTES) {
+            {
+                //only read back once, a better ratio isn't worth the cpu
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+        writer = new BufferedWriter(new OutputStreamWriter(gzipOut, Charsets.UTF_8), BUFFER_BYTES);
+    }
+
+    public synchronized void add(JSONObject row) throws IOException {
+        if(writer == null) {
+            throw new IOException(String.format("rows can't be added to %s once it's committed or closed", file));
+        }
+        writer.write(row.toString());
+        writer.write('\n');
+        rows++;
+    }
+
+    public synchronized long getRowCount() {
+        return rows;
+    }
+
+    //hands every staged row to the handler, only once all the adds are done
+    public void commit(RowHandler handler) throws IOException {
+        synchronized (this) {
+            writer.close();
+            writer = null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), BUFFER_BYTES), Charsets.UTF_8), BUFFER_BYTES);
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                try {
+                    handler.handleRow(new JSONObject(line));
+                } catch (JSONException je) {
+                    throw new IOException(String.format("unreadable row staged in %s", file), je);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if(writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
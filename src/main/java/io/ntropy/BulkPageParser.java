@@ -0,0 +1,124 @@
+package io.ntropy;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.Reader;
+
+/*
+Pull parser for a page of bulk export data, e.g.
+    {"totalResults":12345,"limit":10000,"offset":0,"count":10000,"hasMore":true,"items":[{...},{...}]}
+Each entry in items is decoded on its own and handed to the RowHandler as it comes off the stream, so we never hold
+the raw page or the full JSONArray in memory.
+ */
+public class BulkPageParser {
+
+    public interface RowHandler {
+        void handleRow(JSONObject row) throws Exception;
+    }
+
+    //for callers that only need the page totals
+    public static final RowHandler SKIP_ROWS = new RowHandler() {
+        @Override
+        public void handleRow(JSONObject row) {
+        }
+    };
+
+    public static class PageSummary {
+        private int totalResults;
+        private int itemCount;
+        private boolean hasMore;
+
+        public int getTotalResults() {
+            return totalResults;
+        }
+
+        public int getItemCount() {
+            return itemCount;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    public static PageSummary parse(Reader reader, RowHandler rowHandler) throws Exception {
+        JSONTokener tokener = new JSONTokener(reader);
+        PageSummary summary = new PageSummary();
+        if(tokener.nextClean() != '{') {
+            throw tokener.syntaxError("A bulk page must begin with '{'");
+        }
+        if(tokener.nextClean() == '}') {
+            return summary;
+        }
+        tokener.back();
+
+        while(true) {
+            String key = tokener.nextValue().toString();
+            if(tokener.nextClean() != ':') {
+                throw tokener.syntaxError("Expected a ':' after a key");
+            }
+            if("items".equals(key)) {
+                summary.itemCount = parseItems(tokener, rowHandler);
+            } else {
+                //the rest of the page values are small scalars, just let the tokener build them
+                Object value = tokener.nextValue();
+                if("totalResults".equals(key)) {
+                    summary.totalResults = toInt(value);
+                } else if("hasMore".equals(key)) {
+                    summary.hasMore = Boolean.TRUE.equals(value) || "true".equals(value.toString());
+                }
+            }
+
+            switch(tokener.nextClean()) {
+                case ',':
+                    break;
+                case '}':
+                    return summary;
+                default:
+                    throw tokener.syntaxError("Expected a ',' or '}'");
+            }
+        }
+    }
+
+    private static int parseItems(JSONTokener tokener, RowHandler rowHandler) throws Exception {
+        if(tokener.nextClean() != '[') {
+            throw tokener.syntaxError("Expected items to be an array");
+        }
+        if(tokener.nextClean() == ']') {
+            return 0;
+        }
+        tokener.back();
+
+        int itemCount = 0;
+        while(true) {
+            Object row = tokener.nextValue();
+            if(!(row instanceof JSONObject)) {
+                throw tokener.syntaxError("Expected each item to be an object");
+            }
+            rowHandler.handleRow((JSONObject) row);
+            itemCount++;
+
+            switch(tokener.nextClean()) {
+                case ',':
+                    break;
+                case ']':
+                    return itemCount;
+                default:
+                    throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
+    private static int toInt(Object value) throws JSONException {
+        if(value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return Integer.parseInt(value.toString());
+        } catch (NumberFormatException nfe) {
+            throw new JSONException(String.format("expected a number but got %s", value));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package io.ntropy;
+
+import com.google.common.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/*
+Pulls the pages of a staged bulk export several at a time. The first page tells us totalResults, after which every
+remaining offset is known, so we keep up to `window` page requests in flight and still hand the pages to the consumer
+in offset order.
+ */
+public class BulkPagePrefetcher<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkPagePrefetcher.class);
+
+    public interface PageLoader<T> {
+        Page<T> loadPage(int offset, int limit) throws Exception;
+    }
+
+    public interface PageConsumer<T> {
+        void consumePage(int offset, Page<T> page) throws Exception;
+    }
+
+    public static class Page<T> {
+        private BulkPageParser.PageSummary summary;
+        private T rows;
+
+        public Page(BulkPageParser.PageSummary summary, T rows) {
+            this.summary = summary;
+            this.rows = rows;
+        }
+
+        public BulkPageParser.PageSummary getSummary() {
+            return summary;
+        }
+
+        public T getRows() {
+            return rows;
+        }
+    }
+
+    private ExecutorService executor;
+    private int pageSize;
+    private int window;
+
+    public BulkPagePrefetcher(ExecutorService executor, int pageSize, int window) {
+        this.executor = executor;
+        this.pageSize = pageSize;
+        this.window = Math.max(1, window);
+    }
+
+    //returns the totalResults reported by the export
+    public int fetchAll(final PageLoader<T> loader, PageConsumer<T> consumer) throws Exception {
+        Page<T> firstPage = loader.loadPage(0, pageSize);
+        int totalRecords = firstPage.getSummary().getTotalResults();
+        if(totalRecords == 0) {
+            return 0;
+        }
+        checkPageSize(firstPage, 0, totalRecords);
+        consumer.consumePage(0, firstPage);
+
+        LinkedList<Future<Page<T>>> inFlight = new LinkedList<Future<Page<T>>>();
+        int nextOffset = firstPage.getSummary().getItemCount();
+        int consumedOffset = nextOffset;
+        try {
+            while(consumedOffset < totalRecords) {
+                //top the window back up before blocking on the oldest page
+                while(inFlight.size() < window && nextOffset < totalRecords) {
+                    final int offset = nextOffset;
+                    inFlight.add(executor.submit(new Callable<Page<T>>() {
+                        @Override
+                        public Page<T> call() throws Exception {
+                            return loader.loadPage(offset, pageSize);
+                        }
+                    }));
+                    nextOffset += pageSize;
+                }
+
+                Page<T> page;
+                try {
+                    page = inFlight.removeFirst().get();
+                } catch (ExecutionException ee) {
+                    Throwables.propagateIfPossible(ee.getCause(), Exception.class);
+                    throw new Exception(ee.getCause());
+                }
+                checkPageSize(page, consumedOffset, totalRecords);
+                consumer.consumePage(consumedOffset, page);
+                consumedOffset += page.getSummary().getItemCount();
+                LOG.debug("{} total records with {} consumed and {} pages in flight", totalRecords, consumedOffset, inFlight.size());
+            }
+        } finally {
+            for(Future<Page<T>> future : inFlight) {
+                future.cancel(true);
+            }
+        }
+        return totalRecords;
+    }
+
+    //the prefetched offsets assume every page but the last is full, if that ever isn't true we'd silently skip rows
+    private void checkPageSize(Page<T> page, int offset, int totalRecords) throws Exception {
+        int expectedItems = Math.min(pageSize, totalRecords - offset);
+        if(page.getSummary().getItemCount() != expectedItems) {
+            throw new Exception(String.format("expected %s records at offset %s of %s but got %s", expectedItems, offset, totalRecords, page.getSummary().getItemCount()));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+Reads back the files ColumnarActivitySink writes, the layout is described there. Only the footer is read up front, a
+column chunk is only read and inflated when it's asked for. Values come back as they went in: strings, Long for whole
+numbers and TIMESTAMP columns as the date strings they were written from, with null for a missing or null field.
+ */
+public class ColumnarActivityReader implements Closeable {
+
+    public static class RowGroup {
+        private SyncStatistics.Source source;
+        private String activityType;
+        private int rows;
+        //sorted by name, the order they're in the file
+        private Map<String, Column> columns = Maps.newLinkedHashMap();
+
+        public SyncStatistics.Source getSource() {
+            return source;
+        }
+
+        public String getActivityType() {
+            return activityType;
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public List<String> getColumnNames() {
+            return Lists.newArrayList(columns.keySet());
+        }
+
+        public int getNullCount(String name) {
+            return columns.get(name).nullCount;
+        }
+
+        //the smallest value in the column, null if every value is null
+        public Object getMin(String name) {
+            return columns.get(name).min;
+        }
+
+        public Object getMax(String name) {
+            return columns.get(name).max;
+        }
+    }
+
+    private static class Column {
+        private ColumnarActivitySink.Kind kind;
+        private ColumnarActivitySink.Encoding encoding;
+        private long offset;
+        private int compressedLength;
+        private int uncompressedLength;
+        private int nullCount;
+        private Object min;
+        private Object max;
+    }
+
+    private RandomAccessFile file;
+    private DateTimeFormatter timestampFormat;
+    private List<RowGroup> rowGroups = Lists.newArrayList();
+
+    public ColumnarActivityReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            readFooter();
+        } catch (IOException ioe) {
+            this.file.close();
+            throw ioe;
+        } catch (RuntimeException re) {
+            this.file.close();
+            throw new IOException(String.format("%s isn't a readable columnar activity file", file), re);
+        }
+    }
+
+    public List<RowGroup> getRowGroups() {
+        return rowGroups;
+    }
+
+    //one value per row of the group, all null for a column the group doesn't have
+    public List<Object> readColumn(RowGroup group, String name) throws IOException {
+        Column column = group.columns.get(name);
+        if(column == null) {
+            return Arrays.asList(new Object[group.rows]);
+        }
+        ByteBuffer in = ByteBuffer.wrap(inflate(readBytes(column.offset, column.compressedLength), column.uncompressedLength));
+        try {
+            switch (column.encoding) {
+                case PLAIN:
+                    return decodePlain(in, group.rows);
+                case DICTIONARY:
+                    return decodeDictionary(in, group.rows, column.kind);
+                default:
+                    return decodeDeltas(in, group.rows, column.kind);
+            }
+        } catch (BufferUnderflowException bue) {
+            throw new IOException(String.format("column %s of %s %s is cut short", name, group.source, group.activityType), bue);
+        }
+    }
+
+    //the group's rows put back together, leaving out the null fields
+    public List<JSONObject> readRows(RowGroup group) throws IOException {
+        List<JSONObject> rows = Lists.newArrayListWithCapacity(group.rows);
+        for(int r = 0; r < group.rows; r++) {
+            rows.add(new JSONObject());
+        }
+        for(String name : group.columns.keySet()) {
+            List<Object> values = readColumn(group, name);
+            for(int r = 0; r < group.rows; r++) {
+                if(values.get(r) == null) continue;
+                try {
+                    rows.get(r).put(name, values.get(r));
+                } catch (JSONException je) {
+                    throw new IOException(je);
+                }
+            }
+        }
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readFooter() throws IOException {
+        long length = file.length();
+        int magicLength = ColumnarActivitySink.MAGIC.length;
+        if(length < magicLength * 2 + 4 || !Arrays.equals(readBytes(0, magicLength), ColumnarActivitySink.MAGIC)
+                || !Arrays.equals(readBytes(length - magicLength, magicLength), ColumnarActivitySink.MAGIC)) {
+            throw new IOException("not a columnar activity file, or not a finished one");
+        }
+        int footerLength = ByteBuffer.wrap(readBytes(length - magicLength - 4, 4)).getInt();
+        ByteBuffer footer = ByteBuffer.wrap(readBytes(length - magicLength - 4 - footerLength, footerLength));
+        timestampFormat = DateTimeFormat.forPattern(readString(footer)).withZoneUTC();
+        long groups = readVarLong(footer);
+        for(long g = 0; g < groups; g++) {
+            RowGroup group = new RowGroup();
+            group.source = SyncStatistics.Source.valueOf(readString(footer));
+            group.activityType = readString(footer);
+            group.rows = (int) readVarLong(footer);
+            long columns = readVarLong(footer);
+            for(long c = 0; c < columns; c++) {
+                String name = readString(footer);
+                Column column = new Column();
+                column.kind = ColumnarActivitySink.Kind.forCode(footer.get());
+                column.encoding = ColumnarActivitySink.Encoding.forCode(footer.get());
+                column.offset = readVarLong(footer);
+                column.compressedLength = (int) readVarLong(footer);
+                column.uncompressedLength = (int) readVarLong(footer);
+                column.nullCount = (int) readVarLong(footer);
+                if(column.nullCount < group.rows) {
+                    column.min = readValue(footer, column.kind);
+                    column.max = readValue(footer, column.kind);
+                }
+                group.columns.put(name, column);
+            }
+            rowGroups.add(group);
+        }
+    }
+
+    private List<Object> decodePlain(ByteBuffer in, int rows) {
+        List<Object> values = Lists.newArrayListWithCapacity(rows);
+        for(int r = 0; r < rows; r++) {
+            long length = readVarLong(in);
+            values.add((length == 0) ? null : readUtf8(in, (int) (length - 1)));
+        }
+        return values;
+    }
+
+    private List<Object> decodeDictionary(ByteBuffer in, int rows, ColumnarActivitySink.Kind kind) {
+        int size = (int) readVarLong(in);
+        Object[] dictionary = new Object[size];
+        for(int i = 0; i < size; i++) {
+            dictionary[i] = readValue(in, kind);
+        }
+        List<Object> values = Lists.newArrayListWithCapacity(rows);
+        for(int r = 0; r < rows; r++) {
+            int code = (int) readVarLong(in);
+            values.add((code == 0) ? null : dictionary[code - 1]);
+        }
+        return values;
+    }
+
+    private List<Object> decodeDeltas(ByteBuffer in, int rows, ColumnarActivitySink.Kind kind) {
+        byte[] present = new byte[(rows + 7) / 8];
+        in.get(present);
+        List<Object> values = Lists.newArrayListWithCapacity(rows);
+        long previous = 0;
+        for(int r = 0; r < rows; r++) {
+            if((present[r / 8] & (1 << (r % 8))) == 0) {
+                values.add(null);
+                continue;
+            }
+            previous += readZigZag(in);
+            values.add(toValue(previous, kind));
+        }
+        return values;
+    }
+
+    //a STRING value as it is, LONG and TIMESTAMP values are zigzag varints
+    private Object readValue(ByteBuffer in, ColumnarActivitySink.Kind kind) {
+        if(kind == ColumnarActivitySink.Kind.STRING) {
+            return readString(in);
+        }
+        return toValue(readZigZag(in), kind);
+    }
+
+    private Object toValue(long value, ColumnarActivitySink.Kind kind) {
+        return (kind == ColumnarActivitySink.Kind.TIMESTAMP) ? timestampFormat.print(value) : Long.valueOf(value);
+    }
+
+    private byte[] readBytes(long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        file.seek(offset);
+        file.readFully(bytes);
+        return bytes;
+    }
+
+    private static byte[] inflate(byte[] compressed, int uncompressedLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] uncompressed = new byte[uncompressedLength];
+            int length = 0;
+            while(length < uncompressedLength && !inflater.finished()) {
+                int inflated = inflater.inflate(uncompressed, length, uncompressedLength - length);
+                if(inflated == 0 && inflater.needsInput()) break;
+                length += inflated;
+            }
+            if(length != uncompressedLength) {
+                throw new IOException(String.format("column chunk inflated to %s bytes rather than %s", length, uncompressedLength));
+            }
+            return uncompressed;
+        } catch (DataFormatException dfe) {
+            throw new IOException("corrupt column chunk", dfe);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for(int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+    }
+
+    private static long readZigZag(ByteBuffer in) {
+        long value = readVarLong(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        return readUtf8(in, (int) readVarLong(in));
+    }
+
+    private static String readUtf8(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,519 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/*
+Writes activities to columnar files, which let a reader pull just the columns and row groups it needs.
+ColumnarActivityReader reads them back. Every activity type from each source gets its own row groups of up to ROWS_PER_GROUP
+rows, with a column for each top level field seen in the group (nested values are kept as their json text).
+
+File layout, varints are unsigned LEB128 and zigzag varints are the signed version of the same:
+    "EAC1"
+    column chunks, each compressed on its own with zlib
+    footer
+    footer length, 4 byte big endian int
+    "EAC1"
+Footer:
+    string timestamp pattern, the format TIMESTAMP columns were written in
+    varint row group count, then for each row group:
+        string source, string activityType, varint rows, varint columns, then for each column:
+            string name, byte kind, byte encoding, varint offset of the chunk in the file, varint compressed length,
+            varint uncompressed length, varint null count, and unless every value is null the column's min and max
+            (zigzag varints for LONG and TIMESTAMP, strings for STRING)
+Strings are a varint byte length followed by the utf-8 bytes.
+Kinds: STRING, LONG when every value in the chunk is an integer (or a string holding one exactly), TIMESTAMP when every
+value is a date string in the timestamp pattern (as the bulk ActivityDate is), stored as utc millis.
+Chunk encodings, before compression:
+    PLAIN       STRING: per row a varint of length + 1 then the bytes, 0 for null
+    DICTIONARY  when at most 1 in STRING_DICTIONARY_RATIO strings, or 1 in NUMERIC_DICTIONARY_RATIO numbers, is
+                distinct: varint dictionary size, the dictionary values (strings, or zigzag varints for LONG and
+                TIMESTAMP), then per row a varint of dictionary index + 1, 0 for null
+    DELTA       LONG and TIMESTAMP otherwise: a bitmap of which rows have a value (lowest bit first), then a zigzag
+                varint of each value less the previous one
+ */
+public class ColumnarActivitySink extends BackgroundActivitySink {
+
+    static final byte[] MAGIC = "EAC1".getBytes(Charsets.US_ASCII);
+    private static final int ROWS_PER_GROUP = 65536;
+    private static final int MAX_DICTIONARY_SIZE = 65536;
+    //at most one distinct value in this many for a column to get a dictionary
+    private static final int STRING_DICTIONARY_RATIO = 2;
+    private static final int NUMERIC_DICTIONARY_RATIO = 8;
+    private static final String TIMESTAMP_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormat.forPattern(TIMESTAMP_PATTERN).withZoneUTC();
+
+    enum Kind {
+        STRING(0),
+        LONG(1),
+        TIMESTAMP(2);
+
+        private byte code;
+
+        Kind(int code) {
+            this.code = (byte) code;
+        }
+
+        static Kind forCode(byte code) throws IOException {
+            for(Kind kind : values()) {
+                if(kind.code == code) return kind;
+            }
+            throw new IOException(String.format("unknown column kind %s", code));
+        }
+    }
+
+    enum Encoding {
+        PLAIN(0),
+        DICTIONARY(1),
+        DELTA(2);
+
+        private byte code;
+
+        Encoding(int code) {
+            this.code = (byte) code;
+        }
+
+        static Encoding forCode(byte code) throws IOException {
+            for(Encoding encoding : values()) {
+                if(encoding.code == code) return encoding;
+            }
+            throw new IOException(String.format("unknown column encoding %s", code));
+        }
+    }
+
+    //an activity's top level fields, pulled out on the calling thread
+    private static class Row {
+        private SyncStatistics.Source source;
+        private String activityType;
+        private String[] names;
+        private Object[] values;
+        private long rawBytes;
+    }
+
+    private static class RowGroup {
+        private SyncStatistics.Source source;
+        private String activityType;
+        private int rows = 0;
+        private long rawBytes = 0;
+        //sorted so the columns come out in the same order every time
+        private Map<String, List<Object>> columns = Maps.newTreeMap();
+
+        private RowGroup(SyncStatistics.Source source, String activityType) {
+            this.source = source;
+            this.activityType = activityType;
+        }
+
+        private void add(Row row) {
+            for(int i = 0; i < row.names.length; i++) {
+                List<Object> column = columns.get(row.names[i]);
+                if(column == null) {
+                    //a field we haven't seen in this group yet, it was null for the rows before
+                    column = Lists.newArrayListWithCapacity(Math.max(16, rows * 2));
+                    for(int r = 0; r < rows; r++) column.add(null);
+                    columns.put(row.names[i], column);
+                }
+                column.add(row.values[i]);
+            }
+            rows++;
+            rawBytes += row.rawBytes;
+            for(List<Object> column : columns.values()) {
+                if(column.size() < rows) column.add(null);
+            }
+        }
+    }
+
+    private static class ColumnChunk {
+        private String name;
+        private Kind kind;
+        private Encoding encoding;
+        private long offset;
+        private int compressedLength;
+        private int uncompressedLength;
+        private int nullCount;
+        private Object min;
+        private Object max;
+    }
+
+    private static class RowGroupFooter {
+        private SyncStatistics.Source source;
+        private String activityType;
+        private int rows;
+        private List<ColumnChunk> columns = Lists.newArrayList();
+    }
+
+    private long maxFileBytes;
+    //holds native memory until it's ended, which writerFinished does
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] deflateBuffer = new byte[64 * 1024];
+
+    //only touched by the writer thread
+    private Map<String, RowGroup> openGroups = Maps.newHashMap();
+    private List<RowGroupFooter> writtenGroups = Lists.newArrayList();
+    private File partialFile;
+    private FileChannel channel;
+    private long fileRows = 0;
+    private long fileRawBytes = 0;
+
+    public ColumnarActivitySink(String directoryName, long maxFileBytes) {
+        super(directoryName, "eac");
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    @Override
+    protected Object toRecord(SyncStatistics.Source source, String activityType, JSONObject activity) {
+        Row row = new Row();
+        row.source = source;
+        row.activityType = activityType;
+        row.names = new String[activity.length()];
+        row.values = new Object[row.names.length];
+        Iterator<?> keys = activity.keys();
+        for(int i = 0; keys.hasNext(); i++) {
+            String name = keys.next().toString();
+            Object value = normalise(activity.opt(name));
+            row.names[i] = name;
+            row.values[i] = value;
+            row.rawBytes += name.length() + ((value instanceof String) ? ((String) value).length() : 8);
+        }
+        return row;
+    }
+
+    @Override
+    protected void writeRecord(Object record) throws IOException {
+        Row row = (Row) record;
+        String key = row.source + "/" + row.activityType;
+        RowGroup group = openGroups.get(key);
+        if(group == null) {
+            group = new RowGroup(row.source, row.activityType);
+            openGroups.put(key, group);
+        }
+        group.add(row);
+        if(group.rows >= ROWS_PER_GROUP) {
+            openGroups.remove(key);
+            writeRowGroup(group);
+            if(fileRawBytes >= maxFileBytes) {
+                finishFile();
+            }
+        }
+    }
+
+    @Override
+    protected void finishFile() throws IOException {
+        for(RowGroup group : openGroups.values()) {
+            writeRowGroup(group);
+        }
+        openGroups.clear();
+        if(channel == null) return;
+
+        ByteArrayOutputStream footer = new ByteArrayOutputStream();
+        writeString(footer, TIMESTAMP_PATTERN);
+        writeVarLong(footer, writtenGroups.size());
+        for(RowGroupFooter group : writtenGroups) {
+            writeString(footer, group.source.name());
+            writeString(footer, group.activityType);
+            writeVarLong(footer, group.rows);
+            writeVarLong(footer, group.columns.size());
+            for(ColumnChunk chunk : group.columns) {
+                writeString(footer, chunk.name);
+                footer.write(chunk.kind.code);
+                footer.write(chunk.encoding.code);
+                writeVarLong(footer, chunk.offset);
+                writeVarLong(footer, chunk.compressedLength);
+                writeVarLong(footer, chunk.uncompressedLength);
+                writeVarLong(footer, chunk.nullCount);
+                if(chunk.nullCount < group.rows) {
+                    if(chunk.kind == Kind.STRING) {
+                        writeString(footer, (String) chunk.min);
+                        writeString(footer, (String) chunk.max);
+                    } else {
+                        writeZigZag(footer, (Long) chunk.min);
+                        writeZigZag(footer, (Long) chunk.max);
+                    }
+                }
+            }
+        }
+        byte[] footerBytes = footer.toByteArray();
+        writeFully(footerBytes);
+        writeFully(ByteBuffer.allocate(4).putInt(footerBytes.length).array());
+        writeFully(MAGIC);
+
+        channel.force(true);
+        long fileBytes = channel.size();
+        channel.close();
+        channel = null;
+        writtenGroups.clear();
+        completeFile(partialFile, fileRows, fileRawBytes, fileBytes);
+    }
+
+    @Override
+    protected void writerFinished() {
+        deflater.end();
+    }
+
+    @Override
+    protected void abandonFile() {
+        openGroups.clear();
+        writtenGroups.clear();
+        if(channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            //the file's already no good, we just don't want to leak the handle
+        }
+        channel = null;
+    }
+
+    private void writeRowGroup(RowGroup group) throws IOException {
+        if(group.rows == 0) return;
+        if(channel == null) {
+            partialFile = newPartialFile();
+            channel = new FileOutputStream(partialFile).getChannel();
+            fileRows = 0;
+            fileRawBytes = 0;
+            writeFully(MAGIC);
+        }
+        RowGroupFooter footer = new RowGroupFooter();
+        footer.source = group.source;
+        footer.activityType = group.activityType;
+        footer.rows = group.rows;
+        for(Map.Entry<String, List<Object>> column : group.columns.entrySet()) {
+            ColumnChunk chunk = new ColumnChunk();
+            chunk.name = column.getKey();
+            byte[] encoded = encodeColumn(column.getValue(), chunk);
+            byte[] compressed = compress(encoded);
+            chunk.offset = channel.position();
+            chunk.uncompressedLength = encoded.length;
+            chunk.compressedLength = compressed.length;
+            writeFully(compressed);
+            footer.columns.add(chunk);
+        }
+        writtenGroups.add(footer);
+        fileRows += group.rows;
+        fileRawBytes += group.rawBytes;
+    }
+
+    //picks the kind and encoding for the column, fills in its stats and returns the encoded values
+    private byte[] encodeColumn(List<Object> values, ColumnChunk chunk) {
+        int nullCount = 0;
+        for(Object value : values) {
+            if(value == null) nullCount++;
+        }
+        chunk.nullCount = nullCount;
+        boolean allLongs = true;
+        boolean allTimestamps = true;
+        for(Object value : values) {
+            if(value == null) {
+                continue;
+            } else if(value instanceof Long) {
+                allTimestamps = false;
+            } else {
+                if(allLongs && parseLong((String) value) == null) allLongs = false;
+                if(allTimestamps && parseTimestamp((String) value) == null) allTimestamps = false;
+            }
+            if(!allLongs && !allTimestamps) break;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(values.size() * 4);
+        int nonNull = values.size() - nullCount;
+        if(nonNull > 0 && (allLongs || allTimestamps)) {
+            chunk.kind = allLongs ? Kind.LONG : Kind.TIMESTAMP;
+            List<Object> longs = toLongs(values, chunk.kind);
+            //ids like CampaignId repeat a handful of values, deltas are for the ones that keep climbing
+            if(!encodeDictionary(longs, chunk, out, nonNull / NUMERIC_DICTIONARY_RATIO)) {
+                out.reset();
+                encodeDeltas(longs, chunk, out);
+            }
+        } else {
+            chunk.kind = Kind.STRING;
+            //a column can mix whole numbers in with its strings, they're written as the strings they'd print as
+            List<Object> strings = toStrings(values);
+            if(!encodeDictionary(strings, chunk, out, nonNull / STRING_DICTIONARY_RATIO)) {
+                out.reset();
+                encodePlain(strings, chunk, out);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static List<Object> toLongs(List<Object> values, Kind kind) {
+        List<Object> longs = Lists.newArrayListWithCapacity(values.size());
+        for(Object value : values) {
+            if(value == null || value instanceof Long) {
+                longs.add(value);
+            } else if(kind == Kind.LONG) {
+                longs.add(parseLong((String) value));
+            } else {
+                longs.add(parseTimestamp((String) value));
+            }
+        }
+        return longs;
+    }
+
+    private static List<Object> toStrings(List<Object> values) {
+        List<Object> strings = Lists.newArrayListWithCapacity(values.size());
+        for(Object value : values) {
+            strings.add((value == null) ? null : value.toString());
+        }
+        return strings;
+    }
+
+    private void encodeDeltas(List<Object> longs, ColumnChunk chunk, ByteArrayOutputStream out) {
+        chunk.encoding = Encoding.DELTA;
+        byte[] present = new byte[(longs.size() + 7) / 8];
+        for(int i = 0; i < longs.size(); i++) {
+            if(longs.get(i) != null) present[i / 8] |= 1 << (i % 8);
+        }
+        out.write(present, 0, present.length);
+        long previous = 0;
+        for(Object value : longs) {
+            if(value == null) continue;
+            long l = (Long) value;
+            writeZigZag(out, l - previous);
+            previous = l;
+            updateStats(chunk, l);
+        }
+    }
+
+    //false if there are more than maxDistinct values, so a dictionary isn't worth it
+    private boolean encodeDictionary(List<Object> values, ColumnChunk chunk, ByteArrayOutputStream out, int maxDistinct) {
+        maxDistinct = Math.min(MAX_DICTIONARY_SIZE, maxDistinct);
+        Map<Object, Integer> dictionary = Maps.newLinkedHashMap();
+        int[] codes = new int[values.size()];
+        for(int i = 0; i < values.size(); i++) {
+            Object value = values.get(i);
+            if(value == null) continue;
+            Integer code = dictionary.get(value);
+            if(code == null) {
+                if(dictionary.size() >= maxDistinct) return false;
+                code = dictionary.size();
+                dictionary.put(value, code);
+            }
+            codes[i] = code + 1;
+        }
+        chunk.encoding = Encoding.DICTIONARY;
+        writeVarLong(out, dictionary.size());
+        for(Object value : dictionary.keySet()) {
+            if(chunk.kind == Kind.STRING) {
+                writeString(out, (String) value);
+            } else {
+                writeZigZag(out, (Long) value);
+            }
+            updateStats(chunk, value);
+        }
+        for(int code : codes) {
+            writeVarLong(out, code);
+        }
+        return true;
+    }
+
+    private void encodePlain(List<Object> values, ColumnChunk chunk, ByteArrayOutputStream out) {
+        chunk.encoding = Encoding.PLAIN;
+        for(Object value : values) {
+            if(value == null) {
+                writeVarLong(out, 0);
+                continue;
+            }
+            String s = (String) value;
+            byte[] bytes = s.getBytes(Charsets.UTF_8);
+            writeVarLong(out, bytes.length + 1);
+            out.write(bytes, 0, bytes.length);
+            updateStats(chunk, s);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void updateStats(ColumnChunk chunk, Object value) {
+        Comparable<Object> comparable = (Comparable<Object>) value;
+        if(chunk.min == null || comparable.compareTo(chunk.min) < 0) chunk.min = value;
+        if(chunk.max == null || comparable.compareTo(chunk.max) > 0) chunk.max = value;
+    }
+
+    private byte[] compress(byte[] encoded) {
+        deflater.reset();
+        deflater.setInput(encoded);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, encoded.length / 4));
+        while(!deflater.finished()) {
+            int length = deflater.deflate(deflateBuffer);
+            compressed.write(deflateBuffer, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeFully(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    //json nulls become null, whole numbers Long and everything else the string it would print as
+    private static Object normalise(Object value) {
+        if(value == null || value == JSONObject.NULL) {
+            return null;
+        } else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else {
+            return value.toString();
+        }
+    }
+
+    //only strings that print back exactly the same, so "007" stays a string
+    private static Long parseLong(String s) {
+        int length = s.length();
+        if(length == 0 || length > 20) return null;
+        int start = (s.charAt(0) == '-') ? 1 : 0;
+        if(start == length || (s.charAt(start) == '0' && length > start + 1) || (start == 1 && "-0".equals(s))) return null;
+        for(int i = start; i < length; i++) {
+            char c = s.charAt(i);
+            if(c < '0' || c > '9') return null;
+        }
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private static Long parseTimestamp(String s) {
+        if(s.length() != TIMESTAMP_PATTERN.length() || s.charAt(4) != '-' || s.charAt(10) != ' ') return null;
+        try {
+            long millis = TIMESTAMP_FORMAT.parseMillis(s);
+            return TIMESTAMP_FORMAT.print(millis).equals(s) ? millis : null;
+        } catch (IllegalArgumentException iae) {
+            return null;
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeZigZag(ByteArrayOutputStream out, long value) {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,121 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+Fixed depth window of in-flight tasks whose results come back in the order they finish, not the order they went in,
+so one slow call doesn't hold up everything that completed behind it. The thread that submits is the one that takes:
+it tops the pipeline up while it isn't full, then takes whatever finished first, e.g.
+
+    while(work left or !pipeline.isEmpty()) {
+        while(work left && !pipeline.isFull()) pipeline.submit(nextTask);
+        handle(pipeline.take(timeout, unit));
+    }
+
+so no more than depth tasks or results are ever held no matter how much work there is. Not safe for more than one
+submitting/taking thread.
+ */
+public class CompletionPipeline<T> {
+
+    private ListeningExecutorService executor;
+    private int depth;
+    private int pending = 0;
+    private BlockingQueue<Future<T>> completed = new LinkedBlockingQueue<Future<T>>();
+    //guarded by itself, so a task finishing while we cancel can't land in completed after we've cleared it
+    private Set<Future<T>> running = Sets.newHashSet();
+
+    public CompletionPipeline(ExecutorService executor, int depth) {
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        this.depth = depth;
+    }
+
+    public boolean isFull() {
+        return pending >= depth;
+    }
+
+    //nothing submitted that hasn't been taken
+    public boolean isEmpty() {
+        return pending == 0;
+    }
+
+    public ListenableFuture<T> submit(Callable<T> task) {
+        return track(executor.submit(task));
+    }
+
+    //for work that's already been started elsewhere, e.g. on the async request api
+    public ListenableFuture<T> submit(ListenableFuture<T> future) {
+        return track(future);
+    }
+
+    //the next finished task, whether it succeeded or not. throws TimeoutException if nothing finishes within the timeout
+    public Future<T> take(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if(pending == 0) {
+            throw new IllegalStateException("nothing in the pipeline to take");
+        }
+        Future<T> future = completed.poll(timeout, unit);
+        if(future == null) {
+            throw new TimeoutException(String.format("none of the %s tasks in the pipeline finished within %s %s", pending, timeout, unit));
+        }
+        pending--;
+        return future;
+    }
+
+    //like take, but null rather than an exception if nothing finishes within the timeout
+    public Future<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if(pending == 0) {
+            throw new IllegalStateException("nothing in the pipeline to take");
+        }
+        Future<T> future = completed.poll(timeout, unit);
+        if(future != null) {
+            pending--;
+        }
+        return future;
+    }
+
+    //gives up on everything still in flight, for when the caller is abandoning this round of work
+    public void cancel() {
+        List<Future<T>> abandoned;
+        synchronized (running) {
+            abandoned = Lists.newArrayList(running);
+            running.clear();
+            completed.clear();
+            pending = 0;
+        }
+        for(Future<T> future : abandoned) {
+            future.cancel(true);
+        }
+    }
+
+    private ListenableFuture<T> track(final ListenableFuture<T> future) {
+        synchronized (running) {
+            pending++;
+            running.add(future);
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (running) {
+                    //anything no longer in running was cancelled out from under us and isn't expected back
+                    if(running.remove(future)) {
+                        completed.add(future);
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+}
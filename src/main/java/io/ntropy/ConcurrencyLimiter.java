@@ -0,0 +1,14 @@
+package io.ntropy;
+
+/*
+Decides how many requests can be in flight at once. Callers acquire() before sending and must always release() after,
+reporting how long the request took and whether it failed in a way that points at an overloaded api (timeouts, 5xx).
+ */
+public interface ConcurrencyLimiter {
+
+    void acquire() throws InterruptedException;
+
+    void release(long latencyNanos, boolean dropped);
+
+    int getLimit();
+}
@@ -0,0 +1,11 @@
+package io.ntropy;
+
+//where the activity calls get their contacts from, one batch at a time
+public interface ContactBatchSource {
+
+    //the next batch of contacts, blocking until it's ready, or null when there are no more
+    ContactIdSet nextBatch() throws Exception;
+
+    //how many contacts the source has handed out or has ready so far, for progress logging
+    int getContactCount();
+}
@@ -0,0 +1,249 @@
+package io.ntropy;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/*
+Sorted, de-duplicated set of contact ids backed by a plain int array, 4 bytes a contact instead of a boxed Integer plus
+its list slot. Ids can be added in any order; the set is radix sorted and de-duplicated the first time it's read after
+an out of order add, so the usual case of appending export pages that already come back in id order never sorts at all.
+Not thread safe, build it on one thread and hand it off.
+ */
+public class ContactIdSet {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX_BUCKETS = 1 << RADIX_BITS;
+
+    private int[] ids;
+    private int size;
+    private boolean sorted = true;
+
+    public ContactIdSet() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ContactIdSet(int expectedSize) {
+        ids = new int[Math.max(expectedSize, 1)];
+    }
+
+    private ContactIdSet(int[] ids, int size) {
+        this.ids = ids;
+        this.size = size;
+    }
+
+    public void add(int id) {
+        ensureCapacity(size + 1);
+        if(size > 0 && id <= ids[size - 1]) {
+            sorted = false;
+        }
+        ids[size++] = id;
+    }
+
+    public void addAll(ContactIdSet other) {
+        other.ensureSorted();
+        if(other.size == 0) return;
+        ensureCapacity(size + other.size);
+        if(size > 0 && other.ids[0] <= ids[size - 1]) {
+            sorted = false;
+        }
+        System.arraycopy(other.ids, 0, ids, size, other.size);
+        size += other.size;
+    }
+
+    public int size() {
+        ensureSorted();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        ensureSorted();
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(String.format("index %s out of %s contacts", index, size));
+        }
+        return ids[index];
+    }
+
+    public int first() {
+        return get(0);
+    }
+
+    public int last() {
+        return get(size() - 1);
+    }
+
+    public boolean contains(int id) {
+        ensureSorted();
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    public int[] toArray() {
+        ensureSorted();
+        return Arrays.copyOf(ids, size);
+    }
+
+    //contacts in either set
+    public ContactIdSet union(ContactIdSet other) {
+        ensureSorted();
+        other.ensureSorted();
+        int[] merged = new int[size + other.size];
+        int i = 0, j = 0, n = 0;
+        while(i < size && j < other.size) {
+            int a = ids[i], b = other.ids[j];
+            if(a < b) {
+                merged[n++] = a;
+                i++;
+            } else if(b < a) {
+                merged[n++] = b;
+                j++;
+            } else {
+                merged[n++] = a;
+                i++;
+                j++;
+            }
+        }
+        while(i < size) merged[n++] = ids[i++];
+        while(j < other.size) merged[n++] = other.ids[j++];
+        return new ContactIdSet(merged, n);
+    }
+
+    //contacts in both sets
+    public ContactIdSet intersect(ContactIdSet other) {
+        ensureSorted();
+        other.ensureSorted();
+        int[] common = new int[Math.min(size, other.size)];
+        int i = 0, j = 0, n = 0;
+        while(i < size && j < other.size) {
+            int a = ids[i], b = other.ids[j];
+            if(a < b) {
+                i++;
+            } else if(b < a) {
+                j++;
+            } else {
+                common[n++] = a;
+                i++;
+                j++;
+            }
+        }
+        return new ContactIdSet(common, n);
+    }
+
+    //contacts in this set but not the other
+    public ContactIdSet difference(ContactIdSet other) {
+        ensureSorted();
+        other.ensureSorted();
+        int[] remaining = new int[size];
+        int i = 0, j = 0, n = 0;
+        while(i < size) {
+            int a = ids[i];
+            while(j < other.size && other.ids[j] < a) j++;
+            if(j == other.size || other.ids[j] != a) {
+                remaining[n++] = a;
+            }
+            i++;
+        }
+        return new ContactIdSet(remaining, n);
+    }
+
+    //consecutive slices of at most batchSize contacts each, in id order
+    public Iterable<ContactIdSet> batches(final int batchSize) {
+        if(batchSize <= 0) {
+            throw new IllegalArgumentException(String.format("batch size must be positive, got %s", batchSize));
+        }
+        ensureSorted();
+        return new Iterable<ContactIdSet>() {
+            @Override
+            public Iterator<ContactIdSet> iterator() {
+                return new Iterator<ContactIdSet>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public ContactIdSet next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        int end = Math.min(size, next + batchSize);
+                        ContactIdSet batch = new ContactIdSet(Arrays.copyOfRange(ids, next, end), end - next);
+                        next = end;
+                        return batch;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > ids.length) {
+            //grow by half again, the same as ArrayList
+            int newCapacity = Math.max(capacity, ids.length + (ids.length >> 1));
+            ids = Arrays.copyOf(ids, newCapacity);
+        }
+    }
+
+    private void ensureSorted() {
+        if(sorted) return;
+        radixSort(ids, size);
+        //squeeze out duplicates in place
+        int n = 0;
+        for(int i = 0; i < size; i++) {
+            if(n == 0 || ids[i] != ids[n - 1]) {
+                ids[n++] = ids[i];
+            }
+        }
+        size = n;
+        sorted = true;
+    }
+
+    //lsd radix sort a byte at a time, flipping the sign bit so negative ids would still order correctly
+    private static void radixSort(int[] values, int length) {
+        int[] buffer = new int[length];
+        int[] from = values;
+        int[] to = buffer;
+        for(int shift = 0; shift < Integer.SIZE; shift += RADIX_BITS) {
+            int[] counts = new int[RADIX_BUCKETS + 1];
+            boolean singleDigit = false;
+            for(int i = 0; i < length; i++) {
+                if(++counts[(((from[i] ^ Integer.MIN_VALUE) >>> shift) & (RADIX_BUCKETS - 1)) + 1] == length) {
+                    singleDigit = true;
+                }
+            }
+            if(singleDigit) {
+                //every id has the same digit here (the high bytes of most contact ids), nothing moves
+                continue;
+            }
+            for(int b = 0; b < RADIX_BUCKETS; b++) {
+                counts[b + 1] += counts[b];
+            }
+            for(int i = 0; i < length; i++) {
+                to[counts[((from[i] ^ Integer.MIN_VALUE) >>> shift) & (RADIX_BUCKETS - 1)]++] = from[i];
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if(from != values) {
+            System.arraycopy(from, 0, values, 0, length);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if(isEmpty()) {
+            return "no contacts";
+        }
+        return String.format("%s contacts between %s and %s", size(), first(), last());
+    }
+}
@@ -0,0 +1,86 @@
+package io.ntropy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Hands contact ids from the thread paging through a contact export to the thread running the activity calls, cut into
+batches as the pages arrive rather than after the whole export has been read. The queue of finished batches is bounded
+so a fast export can't run arbitrarily far ahead of the activity calls.
+
+Producer side: addPage for each export page, then finish, or fail if the export fell over.
+Consumer side: nextBatch until it returns null.
+ */
+public class ContactIdStream implements ContactBatchSource {
+
+    //marks the end of the stream, compared by reference
+    private static final ContactIdSet END = new ContactIdSet(1);
+
+    private BlockingQueue<ContactIdSet> batches;
+    private int batchSize;
+
+    //only touched by the producer
+    private ContactIdSet pending;
+    private int pendingCount = 0;
+
+    private AtomicInteger contactsAdded = new AtomicInteger();
+    private volatile Throwable failure;
+
+    public ContactIdStream(int batchSize, int maxQueuedBatches) {
+        this.batchSize = batchSize;
+        this.batches = new ArrayBlockingQueue<ContactIdSet>(maxQueuedBatches);
+        this.pending = new ContactIdSet(batchSize);
+    }
+
+    public void addPage(ContactIdSet page) throws InterruptedException {
+        int[] ids = page.toArray();
+        for(int id : ids) {
+            pending.add(id);
+            if(++pendingCount == batchSize) {
+                flush();
+            }
+        }
+        contactsAdded.addAndGet(ids.length);
+    }
+
+    public void finish() throws InterruptedException {
+        flush();
+        batches.put(END);
+    }
+
+    public void fail(Throwable t) {
+        failure = t;
+        //drop whatever is queued so the end marker always fits and the consumer hears about the failure right away
+        batches.clear();
+        batches.offer(END);
+    }
+
+    //blocks until the next batch is ready, null once the export has been fully consumed
+    @Override
+    public ContactIdSet nextBatch() throws Exception {
+        ContactIdSet batch = batches.take();
+        if(batch == END) {
+            //leave the marker in place so any further calls also see the end
+            batches.offer(END);
+            if(failure != null) {
+                throw new Exception("contact export failed while streaming contacts", failure);
+            }
+            return null;
+        }
+        return batch;
+    }
+
+    //contacts read off the export so far
+    @Override
+    public int getContactCount() {
+        return contactsAdded.get();
+    }
+
+    private void flush() throws InterruptedException {
+        if(pendingCount == 0) return;
+        batches.put(pending);
+        pending = new ContactIdSet(batchSize);
+        pendingCount = 0;
+    }
+}
@@ -0,0 +1,61 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import org.joda.time.DateTime;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/*
+Record of the contact activity calls we gave up on, one tab separated line per call:
+    recordedAt  contactId  activityType  startDate  endDate  attempts  error
+so they can be looked into or re-run by hand. The file is appended to and only created once there's something to put
+in it.
+ */
+public class DeadLetterLog implements Closeable {
+
+    private String fileName;
+    private Writer writer;
+    private int count = 0;
+
+    public DeadLetterLog(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public synchronized void record(int contactId, String activityType, Long startDate, Long endDate, int attempts, Throwable cause) throws IOException {
+        if(writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, true), Charsets.UTF_8));
+        }
+        writer.write(String.format("%s\t%s\t%s\t%s\t%s\t%s\t%s\n", EloquaActivities.DateHourMinSecFormatter.print(DateTime.now()),
+                contactId, activityType, startDate, endDate, attempts, describe(cause)));
+        //flushed every time, there shouldn't be many and we want them even if the run dies
+        writer.flush();
+        count++;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    //one line, no tabs, so the record stays one row
+    private static String describe(Throwable cause) {
+        String description = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        return description.replaceAll("[\\t\\r\\n]+", " ");
+    }
+}
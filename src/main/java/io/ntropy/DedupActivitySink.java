@@ -0,0 +1,57 @@
+package io.ntropy;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/*
+Drops activities the dedup index has already seen before they reach the sink behind it. Bulk rows are keyed on their
+ActivityId and REST records on their id, records with neither are passed straight through. The sync's activity counts
+are taken before this, so they still show what each api returned.
+ */
+public class DedupActivitySink implements ActivitySink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DedupActivitySink.class);
+
+    private ActivitySink sink;
+    private ActivityDedupIndex index;
+    private StripedCounter duplicates = new StripedCounter();
+
+    public DedupActivitySink(ActivitySink sink, ActivityDedupIndex index) {
+        this.sink = sink;
+        this.index = index;
+    }
+
+    @Override
+    public void write(SyncStatistics.Source source, String activityType, JSONObject activity) throws IOException {
+        String activityId = activity.optString("ActivityId", null);
+        if(activityId == null) {
+            activityId = activity.optString("id", null);
+        }
+        if(activityId != null && !index.add(activityType, activityId)) {
+            duplicates.increment();
+            return;
+        }
+        sink.write(source, activityType, activity);
+    }
+
+    //the ids only go into the index for good once their activities are on disk
+    @Override
+    public void flush() throws IOException {
+        sink.flush();
+        index.commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+        index.close();
+        LOG.info("dropped {} duplicate activities", duplicates.sum());
+    }
+
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+}
@@ -3,8 +3,13 @@ package io.ntropy;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
@@ -14,15 +19,31 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URLEncoder;
-import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
 
 /*resources:
     file:///home/shane/Downloads/BULK%20API%20Guide%201.0%20(1).pdf
@@ -41,10 +62,90 @@ public class EloquaActivities {
     private Boolean activitiesForAllContacts;
 
     private Map<String,String> headerProperties;
+    //when set the base url from the last login is reused until it expires or stops working
+    private EndpointCache endpointCache;
+
+    //caps the number of bulk syncs we have staging server-side at any one time
+    private Semaphore syncPermits = new Semaphore(DEFAULT_MAX_CONCURRENT_SYNCS);
+    //checks on every sync and segment refresh we're waiting for, from one thread
+    private StatusPoller statusPoller;
+
+    //configs for splitting each bulk activity export into time partitions sized from the previous run's counts
+    private boolean partitionedBulk = false;
+    private int rowsPerPartition = DEFAULT_ROWS_PER_PARTITION;
+    private String bulkCountsFile = DEFAULT_BULK_COUNTS_FILE;
+    private Properties previousBulkCounts = new Properties();
+    //the window each bulk type actually synced this run, which differs per type once they start from their own checkpoints
+    private Map<String, Long> bulkWindowMillis = Maps.newConcurrentMap();
+
+    //where each mode and activity type got up to last time, the next run starts from there less the overlap
+    private SyncCheckpointStore checkpoints = new SyncCheckpointStore(DEFAULT_CHECKPOINT_FILE);
+    private long checkpointOverlapMillis = TimeUnit.MINUTES.toMillis(DEFAULT_CHECKPOINT_OVERLAP_MINUTES);
+
+    //how many export data pages to have in flight at once, shared pool since several exports can be retrieved at the same time.
+    // sized for every sync permit retrieving at once, created in setup once both are known
+    private int prefetchPages = DEFAULT_PREFETCH_PAGES;
+    private int maxConcurrentSyncs = DEFAULT_MAX_CONCURRENT_SYNCS;
+    private ExecutorService pageFetchPool;
+
+    //when set the contact activity calls go through AsyncWebUtilities rather than being run on the worker pool
+    private boolean asyncRequests = false;
+
+    //when set every contact activity call gets its own thread and activityConcurrency permits bound the requests in flight
+    private boolean lightweightThreads = false;
+    private int activityConcurrency = DEFAULT_ACTIVITY_CONCURRENCY;
+    //same threading, but the limit on requests in flight moves between MIN_ADAPTIVE_CONCURRENCY and activityConcurrency
+    private boolean adaptiveConcurrency = false;
+    private ConcurrencyLimiter activityRequestLimiter;
+    private ExecutorService activitySplitPool;
+
+    //when set a contact activity request that's slower than most gets sent a second time and the first answer wins
+    private RequestHedger requestHedger;
+
+    //how busy each contact was last run, so its activity calls start out split into windows that fit in a page
+    private ActivityDensityCache activityDensities = new ActivityDensityCache(DEFAULT_ACTIVITY_DENSITY_FILE);
+
+    //where the activities themselves go, by default they're only counted
+    private ActivitySink activitySink = ActivitySink.DISCARD;
+    //when set, every activity from both apis is also kept for the REST vs bulk reconciliation report
+    private ActivityReconciler reconciler;
+    //when set, activity ids already written by this run or a recent one are dropped in front of the sink
+    private ActivityDedupIndex dedupIndex;
+    //batches whose activities have been written but maybe not flushed yet, so not in the progress journal yet
+    private List<ActivityBatch> unflushedBatches = Lists.newArrayList();
+    private long lastSinkFlushMillis = System.currentTimeMillis();
+
+    //which contacts the activity calls are done for, and whether to pick up an unfinished run from it
+    private ProgressJournal progressJournal = new ProgressJournal(DEFAULT_PROGRESS_JOURNAL_FILE, ACTIVITY_TYPES, PROGRESS_JOURNAL_SYNC_MILLIS);
+    private boolean resume = false;
+
+    //contact activity calls we gave up on, and the types they were for
+    private DeadLetterLog deadLetters = new DeadLetterLog(DEFAULT_DEAD_LETTER_FILE);
+    private Set<String> restTypesWithFailures = Sets.newConcurrentHashSet();
+
+    //when set the activity calls start on each batch of contacts as soon as the export has read that far
+    private boolean streamContacts = false;
 
     //configs for processing activities, num of threads to spawn and number of contacts to process per batch
     private static final int NUM_THREADS = 16;
     private static final int ACTIVITY_PROCESSING_BATCH = 10000;
+    private static final int DEFAULT_ACTIVITY_CONCURRENCY = 256;
+    private static final int MIN_ADAPTIVE_CONCURRENCY = 2;
+    //each contact activity call gets this many tries, backing off from ACTIVITY_RETRY_BACKOFF_MILLIS, before it's dead lettered
+    private static final int MAX_ACTIVITY_CALL_ATTEMPTS = 4;
+    private static final long ACTIVITY_RETRY_BACKOFF_MILLIS = 1000;
+    private static final String DEFAULT_DEAD_LETTER_FILE = "activityDeadLetters.tsv";
+    private static final String DEFAULT_PROGRESS_JOURNAL_FILE = "activityProgress.journal";
+    private static final String DEFAULT_ACTIVITY_DENSITY_FILE = "activityDensities.properties";
+    private static final String DEFAULT_ENDPOINT_CACHE_FILE = "eloquaEndpoints.properties";
+    private static final int DEFAULT_ENDPOINT_CACHE_HOURS = 24;
+    private static final long PROGRESS_JOURNAL_SYNC_MILLIS = 5000;
+    private static final int DEFAULT_ACTIVITY_FILE_MEGABYTES = 256;
+    private static final int DEFAULT_DEDUP_RETENTION_DAYS = 7;
+    //how often finished contact batches are flushed out of the activity sink and into the progress journal
+    private static final long ACTIVITY_SINK_FLUSH_MILLIS = 60 * 1000;
+    //activity calls submitted but not yet processed per batch, at least twice the concurrency so the workers never run dry
+    private static final int ACTIVITY_PIPELINE_DEPTH = 2048;
 
     //default segment has 2 days in it
     private static final int MAX_OPERATION_RETRIES = 3;
@@ -55,24 +156,39 @@ public class EloquaActivities {
 
     private static final int RESULTS_PER_PAGE = 10000;
 
+    //how many bulk syncs to keep in flight at once when running the activity types concurrently
+    private static final int DEFAULT_MAX_CONCURRENT_SYNCS = 3;
+
+    //a partitioned export aims for this many rows per sub-window, using at most MAX_BULK_PARTITIONS sub-windows per type
+    private static final int DEFAULT_ROWS_PER_PARTITION = 200000;
+    private static final int MAX_BULK_PARTITIONS = 16;
+    private static final String DEFAULT_BULK_COUNTS_FILE = "bulkActivityCounts.properties";
+
+    private static final String DEFAULT_CHECKPOINT_FILE = "syncCheckpoints.properties";
+    //activities can show up in the api a little after their ActivityDate, so each run re-reads this much before its checkpoint
+    private static final int DEFAULT_CHECKPOINT_OVERLAP_MINUTES = 15;
+
+    private static final int DEFAULT_PREFETCH_PAGES = 4;
+
+    //batches of contacts read off the export but not yet picked up by the activity calls when streaming
+    private static final int STREAMED_CONTACT_BATCHES = 4;
+
     //these are default values but might change after looking up endpoints from login
     private String bulkV2URL;
     private String restV1URL;
     private String restV2URL;
 
-    private static final int MAX_INTERVALS_TO_WAIT_FOR_SEGMENT_REFRESH = 60;
+    private static final int MAX_MILLIS_TO_WAIT_FOR_SEGMENT_REFRESH = 10 * 60 * 1000;
     private static final Long MAX_MILLIS_TO_WAIT_FROM_POLLING = 2 * 60 * 60 * 1000L; //2 hours at most
     private static final int MAX_HOURS_FOR_ACTIVITY_SYNC = 12;
 
     private static final int SECONDS_TO_AUTO_DELETE = 3600;
     private static final int SECONDS_TO_RETAIN_DATA = 3600;
 
-    private static final int MILLIS_TO_WAIT_FOR_SEGMENT_REFRESH = 10000;
     private static final int MILLIS_TO_WAIT_FOR_SEGMENT_POST = 60 * 1000;
     private static final int MILLIS_TO_WAIT_FOR_SYNC_POST = 5 * 60 * 1000;
     private static final int MILLIS_TO_WAIT_FOR_ACTIVITY = 10 * 1000;
     private static final int MILLIS_TO_WAIT_FOR_POLL = 30 * 1000;
-    private static final int MILLIS_TO_WAIT_BETWEEN_POLLS = 5000;
     private static final int MILLIS_TO_WAIT_FOR_EXPORT = 30 * 1000;
     private static final int WEBREQUEST_RETRIES = 5;
     private static final int ACTIVITY_WEBREQUEST_RETRIES = 1;
@@ -87,8 +203,6 @@ public class EloquaActivities {
 
     private static Map<String, JSONObject> activityFieldsMapping;
 
-    private static Map<String, Integer> bulkActivityTypeCount = Maps.newHashMap();
-    private static Map<String, Integer> activityTypeCount = Maps.newHashMap();
 
     public static final org.joda.time.format.DateTimeFormatter DateTimeFormatter = DateTimeFormat.forPattern("yyyyMMddHHmm").withZoneUTC();
     public static final String DateHourMinSecFormat = "yyyy-MM-dd HH:mm:ss";
@@ -110,6 +224,105 @@ public class EloquaActivities {
         @Parameter(description = "flag to sync activities on all contacts rather than segment members", names = "-activitiesForAllContacts", required = false)
         public Boolean activitiesForAllContacts = false;
 
+        @Parameter(description = "flag to run the bulk activity exports for all types concurrently rather than one type at a time", names = "-concurrentBulk", required = false)
+        public Boolean concurrentBulk = false;
+
+        @Parameter(description = "max number of bulk syncs to have in flight at once when running with -concurrentBulk", names = "-maxConcurrentSyncs", required = false, validateWith = AtLeastOne.class)
+        public Integer maxConcurrentSyncs = DEFAULT_MAX_CONCURRENT_SYNCS;
+
+        @Parameter(description = "flag to split each bulk activity export into time partitions sized from the previous run's counts", names = "-partitionedBulk", required = false)
+        public Boolean partitionedBulk = false;
+
+        @Parameter(description = "target number of rows per time partition when running with -partitionedBulk", names = "-rowsPerPartition", required = false)
+        public Integer rowsPerPartition = DEFAULT_ROWS_PER_PARTITION;
+
+        @Parameter(description = "file the per type bulk activity counts are saved to for sizing the next run's partitions", names = "-bulkCountsFile", required = false)
+        public String bulkCountsFile = DEFAULT_BULK_COUNTS_FILE;
+
+        @Parameter(description = "file the end of the last successfully synced window per mode and activity type is kept in, runs start from there rather than a day back", names = "-checkpointFile", required = false)
+        public String checkpointFile = DEFAULT_CHECKPOINT_FILE;
+
+        @Parameter(description = "minutes before each checkpoint to start the next sync from, to pick up activities that showed up late", names = "-checkpointOverlapMinutes", required = false, validateWith = AtLeastZero.class)
+        public Integer checkpointOverlapMinutes = DEFAULT_CHECKPOINT_OVERLAP_MINUTES;
+
+        @Parameter(description = "number of export data pages to request concurrently while retrieving an export", names = "-prefetchPages", required = false)
+        public Integer prefetchPages = DEFAULT_PREFETCH_PAGES;
+
+        @Parameter(description = "file the base url from login.eloqua.com is cached in per company and user, so runs can skip the login call", names = "-endpointCacheFile", required = false)
+        public String endpointCacheFile = DEFAULT_ENDPOINT_CACHE_FILE;
+
+        @Parameter(description = "hours a cached base url is used for before logging in again, 0 to always log in", names = "-endpointCacheHours", required = false, validateWith = AtLeastZero.class)
+        public Integer endpointCacheHours = DEFAULT_ENDPOINT_CACHE_HOURS;
+
+        @Parameter(description = "max number of pooled keep-alive connections to have open to any one eloqua host", names = "-maxConnectionsPerHost", required = false)
+        public Integer maxConnectionsPerHost = HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+        @Parameter(description = "flag to make the contact activity calls through the async request api instead of the worker pool", names = "-asyncRequests", required = false)
+        public Boolean asyncRequests = false;
+
+        @Parameter(description = "number of io threads backing the async request api", names = "-asyncIoThreads", required = false)
+        public Integer asyncIoThreads = AsyncWebUtilities.DEFAULT_IO_THREADS;
+
+        @Parameter(description = "flag to run each contact activity call, and each half of a split call, on its own lightweight thread", names = "-lightweightThreads", required = false)
+        public Boolean lightweightThreads = false;
+
+        @Parameter(description = "max number of contact activity requests in flight at once when running with -lightweightThreads or -adaptiveConcurrency", names = "-activityConcurrency", required = false)
+        public Integer activityConcurrency = DEFAULT_ACTIVITY_CONCURRENCY;
+
+        @Parameter(description = "flag to size the number of contact activity requests in flight from observed latency and errors, up to -activityConcurrency", names = "-adaptiveConcurrency", required = false)
+        public Boolean adaptiveConcurrency = false;
+
+        @Parameter(description = "max requests per second to the REST 1.0 data endpoints, 0 for no limit", names = "-restV1RequestsPerSecond", required = false)
+        public Double restV1RequestsPerSecond = RequestRateLimiter.DEFAULT_REST_V1_REQUESTS_PER_SECOND;
+
+        @Parameter(description = "max requests per second to the REST 2.0 asset endpoints, 0 for no limit", names = "-restV2RequestsPerSecond", required = false)
+        public Double restV2RequestsPerSecond = RequestRateLimiter.DEFAULT_REST_V2_REQUESTS_PER_SECOND;
+
+        @Parameter(description = "max requests per second to the Bulk 2.0 endpoints, 0 for no limit", names = "-bulkRequestsPerSecond", required = false)
+        public Double bulkRequestsPerSecond = RequestRateLimiter.DEFAULT_BULK_REQUESTS_PER_SECOND;
+
+        @Parameter(description = "max sync and segment status polls per second, 0 for no limit", names = "-pollingRequestsPerSecond", required = false)
+        public Double pollingRequestsPerSecond = RequestRateLimiter.DEFAULT_POLLING_REQUESTS_PER_SECOND;
+
+        @Parameter(description = "number of seconds worth of unused requests each rate limit can bank for a burst", names = "-rateLimitBurstSeconds", required = false)
+        public Double rateLimitBurstSeconds = RequestRateLimiter.DEFAULT_BURST_SECONDS;
+
+        @Parameter(description = "flag to resend contact activity requests that run past the recent 95th percentile latency and take whichever response comes back first", names = "-hedgeRequests", required = false)
+        public Boolean hedgeRequests = false;
+
+        @Parameter(description = "file the activities per second of contacts whose activity calls needed splitting are kept in, so the next run splits them up front", names = "-activityDensityFile", required = false)
+        public String activityDensityFile = DEFAULT_ACTIVITY_DENSITY_FILE;
+
+        @Parameter(description = "file the contact activity calls that failed every retry are appended to", names = "-deadLetterFile", required = false)
+        public String deadLetterFile = DEFAULT_DEAD_LETTER_FILE;
+
+        @Parameter(description = "directory to write the activities to as gzipped newline delimited json, they're only counted if this isn't set", names = "-activityOutputDir", required = false)
+        public String activityOutputDir = null;
+
+        @Parameter(description = "format of the activity files, ndjson or columnar", names = "-activityOutputFormat", required = false)
+        public String activityOutputFormat = "ndjson";
+
+        @Parameter(description = "size in megabytes of activity data, before encoding and compression, each activity file holds before moving on to the next file", names = "-activityFileMegabytes", required = false, validateWith = AtLeastOne.class)
+        public Integer activityFileMegabytes = DEFAULT_ACTIVITY_FILE_MEGABYTES;
+
+        @Parameter(description = "directory for the index of activity ids already written, duplicates aren't written again when this is set", names = "-dedupDir", required = false)
+        public String dedupDir = null;
+
+        @Parameter(description = "days of activity ids the dedup index remembers", names = "-dedupRetentionDays", required = false, validateWith = AtLeastOne.class)
+        public Integer dedupRetentionDays = DEFAULT_DEDUP_RETENTION_DAYS;
+
+        @Parameter(description = "directory to write a report of which activities only one of the REST calls and the bulk exports returned", names = "-reconcileDir", required = false)
+        public String reconcileDir = null;
+
+        @Parameter(description = "flag to pick up an unfinished contact activity run from its progress journal, skipping the contacts it already finished", names = "-resume", required = false)
+        public Boolean resume = false;
+
+        @Parameter(description = "file the contact activity run records its progress in for -resume", names = "-progressJournalFile", required = false)
+        public String progressJournalFile = DEFAULT_PROGRESS_JOURNAL_FILE;
+
+        @Parameter(description = "flag to start the contact activity calls on each batch of contacts as the contact export is read rather than after all of it", names = "-streamContacts", required = false)
+        public Boolean streamContacts = false;
+
     }
 
     public EloquaActivities(String eloquaCompanyName, String eloquaUsername, String eloquaPwd,
@@ -124,22 +337,69 @@ public class EloquaActivities {
     public static void main(String[] args) {
         CmdLineParams cmdLineParams = new CmdLineParams();
         new JCommander(cmdLineParams, args);
+        WebUtilities.configureTransport(cmdLineParams.maxConnectionsPerHost);
+        AsyncWebUtilities.configure(cmdLineParams.asyncIoThreads);
+        WebUtilities.configureRateLimiter(new RequestRateLimiter(cmdLineParams.restV1RequestsPerSecond, cmdLineParams.restV2RequestsPerSecond,
+                cmdLineParams.bulkRequestsPerSecond, cmdLineParams.pollingRequestsPerSecond, cmdLineParams.rateLimitBurstSeconds));
 
         EloquaActivities eloquaActivities = new EloquaActivities(cmdLineParams.eloquaCompanyName,
                 cmdLineParams.eloquaUsername, cmdLineParams.eloquaPwd, cmdLineParams.activitiesSegmentURI,
                 cmdLineParams.activitiesForAllContacts);
+        if(cmdLineParams.endpointCacheHours > 0) {
+            EndpointCache endpointCache = new EndpointCache(cmdLineParams.endpointCacheFile, TimeUnit.HOURS.toMillis(cmdLineParams.endpointCacheHours));
+            WebUtilities.configureEndpointCache(endpointCache);
+            eloquaActivities.setEndpointCache(endpointCache);
+        }
+        eloquaActivities.setMaxConcurrentSyncs(cmdLineParams.maxConcurrentSyncs);
+        eloquaActivities.setPartitionedBulk(cmdLineParams.partitionedBulk);
+        eloquaActivities.setRowsPerPartition(cmdLineParams.rowsPerPartition);
+        eloquaActivities.setBulkCountsFile(cmdLineParams.bulkCountsFile);
+        eloquaActivities.setCheckpoints(cmdLineParams.checkpointFile, cmdLineParams.checkpointOverlapMinutes);
+        eloquaActivities.setPrefetchPages(cmdLineParams.prefetchPages);
+        eloquaActivities.setAsyncRequests(cmdLineParams.asyncRequests);
+        eloquaActivities.setLightweightThreads(cmdLineParams.lightweightThreads, cmdLineParams.activityConcurrency);
+        eloquaActivities.setAdaptiveConcurrency(cmdLineParams.adaptiveConcurrency);
+        eloquaActivities.setStreamContacts(cmdLineParams.streamContacts);
+        eloquaActivities.setHedgeRequests(cmdLineParams.hedgeRequests);
+        eloquaActivities.setActivityDensityFile(cmdLineParams.activityDensityFile);
+        eloquaActivities.setDeadLetterFile(cmdLineParams.deadLetterFile);
+        eloquaActivities.setProgressJournal(cmdLineParams.progressJournalFile, cmdLineParams.resume);
+        if(cmdLineParams.activityOutputDir != null) {
+            long maxFileBytes = cmdLineParams.activityFileMegabytes * 1024L * 1024L;
+            if("columnar".equals(cmdLineParams.activityOutputFormat)) {
+                eloquaActivities.setActivitySink(new ColumnarActivitySink(cmdLineParams.activityOutputDir, maxFileBytes));
+            } else if("ndjson".equals(cmdLineParams.activityOutputFormat)) {
+                eloquaActivities.setActivitySink(new NdjsonActivitySink(cmdLineParams.activityOutputDir, maxFileBytes));
+            } else {
+                LOG.error("unknown activity output format {}, expected ndjson or columnar", cmdLineParams.activityOutputFormat);
+                System.exit(1);
+            }
+        }
+        if(cmdLineParams.reconcileDir != null) {
+            eloquaActivities.setReconciler(new ActivityReconciler(cmdLineParams.reconcileDir));
+        }
+        if(cmdLineParams.dedupDir != null) {
+            eloquaActivities.setDedupIndex(new ActivityDedupIndex(cmdLineParams.dedupDir, cmdLineParams.dedupRetentionDays));
+        }
 
         try {
             eloquaActivities.setup();
 
-            //setup runs for previous 1 day
+            //runs cover the previous 1 day unless there's a checkpoint for the activity type to pick up from
             Long startDate = DateTime.now().plusDays(-1).getMillis();
             Long endDate = DateTime.now().getMillis();
 
             //bulk api call and related code is functional here but commented out.
             // There are bugs and issues with the current 2.0 bulk api so we'll wait for them to be resolved before switching over.
-            eloquaActivities.runBulkActivities(startDate, endDate);
+            if(cmdLineParams.concurrentBulk) {
+                eloquaActivities.runBulkActivitiesConcurrently(startDate, endDate);
+            } else {
+                eloquaActivities.runBulkActivities(startDate, endDate);
+            }
             eloquaActivities.runActivities(startDate, endDate);
+            eloquaActivities.closeActivitySink();
+            eloquaActivities.writeReconciliationReport();
+            eloquaActivities.shutdown();
         } catch (Exception ex) {
             LOG.error("FATAL EXCEPTION: ", ex);
             System.exit(1);
@@ -153,14 +413,147 @@ public class EloquaActivities {
         System.exit(0);
     }
 
+    public void setMaxConcurrentSyncs(int maxConcurrentSyncs) {
+        //no permits would leave every sync waiting forever
+        if(maxConcurrentSyncs < 1) {
+            throw new IllegalArgumentException(String.format("max concurrent syncs has to be at least 1, got %s", maxConcurrentSyncs));
+        }
+        this.maxConcurrentSyncs = maxConcurrentSyncs;
+        this.syncPermits = new Semaphore(maxConcurrentSyncs);
+    }
+
+    public void setPartitionedBulk(boolean partitionedBulk) {
+        this.partitionedBulk = partitionedBulk;
+    }
+
+    public void setRowsPerPartition(int rowsPerPartition) {
+        this.rowsPerPartition = rowsPerPartition;
+    }
+
+    public void setBulkCountsFile(String bulkCountsFile) {
+        this.bulkCountsFile = bulkCountsFile;
+    }
+
+    public void setCheckpoints(String checkpointFile, int overlapMinutes) {
+        //a negative overlap would leave a gap between one sync's window and the next
+        if(overlapMinutes < 0) {
+            throw new IllegalArgumentException(String.format("checkpoint overlap has to be at least 0 minutes, got %s", overlapMinutes));
+        }
+        this.checkpoints = new SyncCheckpointStore(checkpointFile);
+        this.checkpointOverlapMillis = TimeUnit.MINUTES.toMillis(overlapMinutes);
+    }
+
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
+    public void setAsyncRequests(boolean asyncRequests) {
+        this.asyncRequests = asyncRequests;
+    }
+
+    public void setLightweightThreads(boolean lightweightThreads, int activityConcurrency) {
+        this.lightweightThreads = lightweightThreads;
+        this.activityConcurrency = activityConcurrency;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        this.adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    public void setStreamContacts(boolean streamContacts) {
+        this.streamContacts = streamContacts;
+    }
+
+    public void setActivitySink(ActivitySink activitySink) {
+        this.activitySink = activitySink;
+    }
+
+    public void setReconciler(ActivityReconciler reconciler) {
+        this.reconciler = reconciler;
+    }
+
+    public void writeReconciliationReport() throws Exception {
+        if(reconciler != null) {
+            reconciler.writeReport();
+        }
+    }
+
+    public void setDedupIndex(ActivityDedupIndex dedupIndex) {
+        this.dedupIndex = dedupIndex;
+    }
+
+    public void closeActivitySink() throws IOException {
+        activitySink.close();
+    }
+
+    public void setProgressJournal(String progressJournalFile, boolean resume) {
+        this.progressJournal = new ProgressJournal(progressJournalFile, ACTIVITY_TYPES, PROGRESS_JOURNAL_SYNC_MILLIS);
+        this.resume = resume;
+    }
+
+    public void setDeadLetterFile(String deadLetterFile) {
+        this.deadLetters = new DeadLetterLog(deadLetterFile);
+    }
+
+    public void setEndpointCache(EndpointCache endpointCache) {
+        this.endpointCache = endpointCache;
+    }
+
+    public void setActivityDensityFile(String activityDensityFile) {
+        this.activityDensities = new ActivityDensityCache(activityDensityFile);
+    }
+
+    public void setHedgeRequests(boolean hedgeRequests) {
+        //never more requests in flight than the activity calls are allowed, hedges included
+        this.requestHedger = hedgeRequests ? new RequestHedger(RequestHedger.DEFAULT_HEDGE_PERCENTILE, Math.max(NUM_THREADS, activityConcurrency)) : null;
+    }
+
     private void setup() throws Exception {
+        pageFetchPool = newPageFetchPool();
+        //a check per sync in flight and one for the segment refresh
+        statusPoller = new StatusPoller(maxConcurrentSyncs + 1);
         activityFieldsMapping = EloquaActivityFields.getActivityFields();
+        checkpoints.load();
+        activityDensities.load();
+        if(dedupIndex != null) {
+            if(activitySink == ActivitySink.DISCARD) {
+                LOG.warn("ignoring the dedup index since activities aren't being written anywhere");
+            } else {
+                dedupIndex.open();
+                activitySink = new DedupActivitySink(activitySink, dedupIndex);
+            }
+        }
         apiSetup();
     }
 
+    //idle threads time out, so the pool only costs threads while exports are being retrieved
+    private ExecutorService newPageFetchPool() {
+        int threads = Math.max(1, prefetchPages) * maxConcurrentSyncs;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("page-fetch-%d").build());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    //stops the pools shared across the whole sync, once it's done
+    public void shutdown() {
+        if(pageFetchPool != null) {
+            pageFetchPool.shutdown();
+        }
+        if(statusPoller != null) {
+            statusPoller.shutdown();
+        }
+    }
+
     private void apiSetup() throws Exception {
         headerProperties = EloquaUtils.getHeaderProperties(eloquaCompanyName, eloquaUsername, eloquaPwd);
-        String baseURL = EloquaUtils.getBaseEndpoint(headerProperties);
+        String baseURL = (endpointCache == null) ? null : endpointCache.getBaseEndpoint(eloquaCompanyName, eloquaUsername);
+        if(baseURL == null) {
+            baseURL = EloquaUtils.getBaseEndpoint(headerProperties);
+            if(endpointCache != null) {
+                endpointCache.put(eloquaCompanyName, eloquaUsername, baseURL);
+            }
+        }
         restV1URL =  EloquaUtils.getRESTEndpoint(baseURL,1);
         restV2URL =  EloquaUtils.getRESTEndpoint(baseURL,2);
         bulkV2URL =  EloquaUtils.getBulkEndpoint(baseURL,2);
@@ -169,97 +562,367 @@ public class EloquaActivities {
     private void removeExportRequest(String exportURI) throws Exception {
         String exportDeletionURL = String.format("%s%s", bulkV2URL, exportURI);
         LOG.debug("deleting our temporary export of contacts with url {}", exportDeletionURL);
-        String deletionResult = WebUtilities.sendDeleteRequest(exportDeletionURL, MILLIS_TO_WAIT_FOR_SEGMENT_POST, 3, headerProperties);
-        LOG.debug("export deletion result {}", deletionResult);
+        try {
+            String deletionResult = WebUtilities.sendDeleteRequest(exportDeletionURL, MILLIS_TO_WAIT_FOR_SEGMENT_POST, 3, headerProperties);
+            LOG.debug("export deletion result {}", deletionResult);
+        } catch (WebRequestException wre) {
+            //exports auto delete anyway, so one we couldn't remove isn't worth failing the run over
+            if(wre.isRetryable()) throw wre;
+            LOG.warn("couldn't delete export {}: {}", exportURI, wre.getMessage());
+        }
     }
 
+    //startDate is only the default, each type starts from its own checkpoint when it has one
     public void runBulkActivities(Long startDate, Long endDate) throws Throwable {
-        String objectName = ACTIVITIES_OBJECT_NAME;
-        //check the db to see if we've done a sync before on this object and if so what the last sync time was
         Long previousMaxDateLong = startDate;
         Long endDateLong = endDate;
 
-        String previousMaxDateStr = DateHourMinSecFormatter.withZoneUTC().print(previousMaxDateLong);
-        String endDateStr = DateHourMinSecFormatter.withZoneUTC().print(endDateLong);
-
-        LOG.debug("previous max timestamp {} turned into previousMaxDateStr {}", previousMaxDateLong, previousMaxDateStr);
+        LOG.debug("previous max timestamp {} turned into previousMaxDateStr {}", previousMaxDateLong, DateHourMinSecFormatter.print(previousMaxDateLong));
+        previousBulkCounts = loadBulkActivityCounts();
 
         for(String activityType : BULK_ACTIVITY_TYPES) {
-            int attempts = 0;
-            while (true) {
+            syncBulkActivityType(activityType, previousMaxDateLong, endDateLong);
+        }
+
+        saveBulkActivityCounts();
+        logActivityTotals();
+        return;
+    }
+
+    //same as runBulkActivities but every activity type is kicked off up front, at most syncPermits of them are
+    // staging at once, and each type is downloaded as soon as its own sync succeeds
+    public void runBulkActivitiesConcurrently(Long startDate, Long endDate) throws Throwable {
+        Long previousMaxDateLong = startDate;
+        Long endDateLong = endDate;
+
+        LOG.debug("previous max timestamp {} turned into previousMaxDateStr {}", previousMaxDateLong, DateHourMinSecFormatter.print(previousMaxDateLong));
+        LOG.info("kicking off bulk exports for {} activity types with at most {} syncs in flight", BULK_ACTIVITY_TYPES.size(), syncPermits.availablePermits());
+        previousBulkCounts = loadBulkActivityCounts();
+
+        ExecutorService bulkPool = Executors.newCachedThreadPool();
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for(String activityType : BULK_ACTIVITY_TYPES) {
+                futures.add(bulkPool.submit(new BulkActivityTypeSync(activityType, previousMaxDateLong, endDateLong)));
+            }
+            for(Future<Void> future : futures) {
                 try {
-                    //tell the api what query you want to run
-                    LOG.info("kicking off export for activities of type {} created between {} and {}", activityType, previousMaxDateStr, endDateStr);
-                    String exportURI = kickoffBulkActivityExport(activityType, activityFieldsMapping.get(activityType), previousMaxDateStr, endDateStr);
-                    //start running the query and syncing to server-side staging
-                    LOG.info("kicking off sync");
-                    String syncedInstanceURI = kickoffSync(exportURI);
-                    //wait until data is staged successfully
-                    LOG.info("polling for completion");
-                    if(pollUntilFinished(syncedInstanceURI)) {
-                        //sync to staging is complete, now export
-                        LOG.info("retrieving data");
-                        retrieveBulkActivityData(exportURI, activityType);
-                        LOG.info("found the following activity counts {}", bulkActivityTypeCount);
-                        //finished processing this segment, break out of our while loop
-                        break;
-                    } else {
-                        LOG.error("failure after polling sync for {}!", objectName);
-                        throw new Exception(String.format("unknown failure in sync while polling for %s! dying!", objectName));
-                    }
-                } catch (Throwable t) {
-                    attempts++;
-                    LOG.error(String.format("error #%s trying to process activities between %s and %s", attempts, previousMaxDateStr, endDateStr), t);
-                    if(attempts > MAX_OPERATION_RETRIES) {
-                        LOG.error("encountered {} errors processing activities between {} and {}", attempts, previousMaxDateStr, endDateStr);
-                        throw t;
-                    }
+                    future.get();
+                } catch (ExecutionException ee) {
+                    //the type already used up its own retries, no point waiting on the rest
+                    throw ee.getCause();
                 }
             }
+        } finally {
+            bulkPool.shutdownNow();
         }
 
-        LOG.info("bulk api returned us the following activities per type: {}", bulkActivityTypeCount.toString());
-        LOG.info("individual api returned us the following activities per type: {}", activityTypeCount.toString());
-        return;
+        saveBulkActivityCounts();
+        logActivityTotals();
+    }
+
+    private void syncBulkActivityType(String activityType, Long defaultStartDate, Long endDate) throws Throwable {
+        //check if we've done a sync before on this type and if so what the last sync time was
+        Long startDate = getSyncStart(SyncCheckpointStore.Mode.BULK, activityType, defaultStartDate);
+        if(startDate >= endDate) {
+            LOG.info("{} is already synced up to {}, skipping it", activityType, DateHourMinSecFormatter.print(endDate));
+            return;
+        }
+        int partitions = partitionedBulk ? getBulkPartitionCount(activityType, endDate - startDate) : 1;
+        int totalRecords;
+        if(partitions > 1) {
+            totalRecords = syncPartitionedBulkActivityType(activityType, startDate, endDate, partitions);
+        } else {
+            totalRecords = syncBulkActivityWindow(activityType, DateHourMinSecFormatter.print(startDate), false, DateHourMinSecFormatter.print(endDate));
+        }
+        SyncStatistics.recordActivities(SyncStatistics.Source.BULK, activityType, totalRecords);
+        bulkWindowMillis.put(activityType, endDate - startDate);
+        if(reconciler != null) {
+            reconciler.setWindow(SyncStatistics.Source.BULK, activityType, startDate, endDate);
+        }
+        //the activities have to be on disk before the checkpoint moves past them
+        activitySink.flush();
+        checkpoints.advance(SyncCheckpointStore.Mode.BULK, activityType, endDate);
+        LOG.info("found the following activity counts {}", SyncStatistics.getActivityCounts(SyncStatistics.Source.BULK));
+    }
+
+    //the checkpoint less the overlap, or the default start for a type that's never been synced
+    private Long getSyncStart(SyncCheckpointStore.Mode mode, String activityType, Long defaultStartDate) {
+        Long watermark = checkpoints.getWatermark(mode, activityType);
+        if(watermark == null) {
+            return defaultStartDate;
+        }
+        Long startDate = watermark - checkpointOverlapMillis;
+        LOG.info("starting {} {} from its checkpoint at {} less {} minutes overlap", mode, activityType,
+                DateHourMinSecFormatter.print(watermark), TimeUnit.MILLISECONDS.toMinutes(checkpointOverlapMillis));
+        return startDate;
+    }
+
+    //splits the window into even sub-windows, syncs and retrieves them all in parallel and adds their counts back up in window order
+    private int syncPartitionedBulkActivityType(String activityType, Long startDate, Long endDate, int partitions) throws Throwable {
+        //work in whole seconds since that's the granularity of the dates in the export filter
+        long startSeconds = startDate / 1000;
+        long endSeconds = endDate / 1000;
+        long secondsPerPartition = Math.max(1, (endSeconds - startSeconds) / partitions);
+        LOG.info("splitting {} export into {} partitions of {} seconds each", activityType, partitions, secondsPerPartition);
+
+        ExecutorService partitionPool = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<Integer>> futures = Lists.newArrayList();
+            long partitionStart = startSeconds;
+            for(int i = 0; i < partitions && partitionStart < endSeconds; i++) {
+                long partitionEnd = (i == partitions - 1) ? endSeconds : Math.min(endSeconds, partitionStart + secondsPerPartition);
+                //the first and last partitions keep the original bounds, the ones in between start inclusively where the last one stopped
+                String createdAfter = (i == 0) ? DateHourMinSecFormatter.print(startDate) : DateHourMinSecFormatter.print(partitionStart * 1000);
+                String createdBefore = (partitionEnd == endSeconds) ? DateHourMinSecFormatter.print(endDate) : DateHourMinSecFormatter.print(partitionEnd * 1000);
+                futures.add(partitionPool.submit(new BulkActivityWindowSync(activityType, createdAfter, i > 0, createdBefore)));
+                partitionStart = partitionEnd;
+            }
+
+            int totalRecords = 0;
+            for(int i = 0; i < futures.size(); i++) {
+                try {
+                    int partitionRecords = futures.get(i).get();
+                    LOG.info("partition {} of {} for {} had {} records", i + 1, futures.size(), activityType, partitionRecords);
+                    totalRecords += partitionRecords;
+                } catch (ExecutionException ee) {
+                    throw ee.getCause();
+                }
+            }
+            return totalRecords;
+        } finally {
+            partitionPool.shutdownNow();
+        }
+    }
+
+    //runs the export -> sync -> poll -> retrieve cycle for one activity type and window, retrying the whole cycle up to MAX_OPERATION_RETRIES times
+    private int syncBulkActivityWindow(String activityType, String previousMaxDateStr, boolean inclusiveStart, String endDateStr) throws Throwable {
+        String objectName = ACTIVITIES_OBJECT_NAME;
+        int attempts = 0;
+        while (true) {
+            try {
+                //tell the api what query you want to run
+                LOG.info("kicking off export for activities of type {} created between {} and {}", activityType, previousMaxDateStr, endDateStr);
+                String exportURI = kickoffBulkActivityExport(activityType, activityFieldsMapping.get(activityType), previousMaxDateStr, inclusiveStart, endDateStr);
+                //start running the query and syncing to server-side staging, then wait until data is staged successfully
+                if(stageExport(exportURI, activityType)) {
+                    //sync to staging is complete, now export
+                    LOG.info("retrieving data for {}", activityType);
+                    return retrieveBulkActivityData(exportURI, activityType);
+                } else {
+                    LOG.error("failure after polling sync for {}!", objectName);
+                    throw new Exception(String.format("unknown failure in sync while polling for %s! dying!", objectName));
+                }
+            } catch (Throwable t) {
+                attempts++;
+                LOG.error(String.format("error #%s trying to process %s activities between %s and %s", attempts, activityType, previousMaxDateStr, endDateStr), t);
+                if(attempts > MAX_OPERATION_RETRIES) {
+                    LOG.error("encountered {} errors processing {} activities between {} and {}", attempts, activityType, previousMaxDateStr, endDateStr);
+                    throw t;
+                }
+            }
+        }
+    }
+
+    //scales the previous run's count for this type to the current window and picks enough partitions to hit rowsPerPartition
+    private int getBulkPartitionCount(String activityType, long windowMillis) {
+        String previousCount = previousBulkCounts.getProperty(activityType + ".count");
+        String previousWindowMillis = previousBulkCounts.getProperty(activityType + ".windowMillis");
+        if(previousCount == null || previousWindowMillis == null || Long.parseLong(previousWindowMillis) <= 0) {
+            LOG.info("no previous count for {}, exporting it as a single partition", activityType);
+            return 1;
+        }
+        double expectedRecords = Long.parseLong(previousCount) * ((double) windowMillis / Long.parseLong(previousWindowMillis));
+        int partitions = (int) Math.ceil(expectedRecords / rowsPerPartition);
+        return Math.max(1, Math.min(MAX_BULK_PARTITIONS, partitions));
+    }
+
+    private Properties loadBulkActivityCounts() {
+        Properties counts = new Properties();
+        File countsFile = new File(bulkCountsFile);
+        if(!countsFile.exists()) return counts;
+        try {
+            FileInputStream in = new FileInputStream(countsFile);
+            try {
+                counts.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            LOG.warn(String.format("couldn't read previous bulk activity counts from %s, ignoring them", bulkCountsFile), ioe);
+        }
+        return counts;
+    }
+
+    private void saveBulkActivityCounts() {
+        Properties counts = new Properties();
+        for(Map.Entry<String, Long> typeCount : SyncStatistics.getActivityCounts(SyncStatistics.Source.BULK).entrySet()) {
+            Long windowMillis = bulkWindowMillis.get(typeCount.getKey());
+            if(windowMillis == null) continue;
+            counts.setProperty(typeCount.getKey() + ".count", Long.toString(typeCount.getValue()));
+            counts.setProperty(typeCount.getKey() + ".windowMillis", Long.toString(windowMillis));
+        }
+        try {
+            FileOutputStream out = new FileOutputStream(bulkCountsFile);
+            try {
+                counts.store(out, "bulk activity counts from the last run, used to size export partitions");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            LOG.warn(String.format("couldn't save bulk activity counts to %s", bulkCountsFile), ioe);
+        }
+    }
+
+    private class BulkActivityTypeSync implements Callable<Void> {
+        private String activityType;
+        private Long startDate;
+        private Long endDate;
+
+        private BulkActivityTypeSync(String activityType, Long startDate, Long endDate) {
+            this.activityType = activityType;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                syncBulkActivityType(activityType, startDate, endDate);
+            } catch (Throwable t) {
+                Throwables.propagateIfPossible(t, Exception.class);
+                throw new Exception(t);
+            }
+            return null;
+        }
+    }
+
+    private class BulkActivityWindowSync implements Callable<Integer> {
+        private String activityType;
+        private String createdAfter;
+        private boolean inclusiveStart;
+        private String createdBefore;
+
+        private BulkActivityWindowSync(String activityType, String createdAfter, boolean inclusiveStart, String createdBefore) {
+            this.activityType = activityType;
+            this.createdAfter = createdAfter;
+            this.inclusiveStart = inclusiveStart;
+            this.createdBefore = createdBefore;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            try {
+                return syncBulkActivityWindow(activityType, createdAfter, inclusiveStart, createdBefore);
+            } catch (Throwable t) {
+                Throwables.propagateIfPossible(t, Exception.class);
+                throw new Exception(t);
+            }
+        }
     }
 
     public void runActivities(Long startDate, Long endDate) throws Exception {
-        //check the db to see if we've done a sync before on this object and if so what the last sync time was
-        Long previousMaxDateLong = startDate;
-        Long endDateToSync = endDate/1000;
-        List<Integer> contactsWithActivity;
-        if(activitiesForAllContacts) {
-            contactsWithActivity = getAllContactIds();
+        //check if we've done a sync before on these types and if so what the last sync time was. every type goes out
+        // in the same calls, so the window has to start from the one furthest behind
+        Long previousMaxDateLong = endDate;
+        for(String activityType : ACTIVITY_TYPES) {
+            previousMaxDateLong = Math.min(previousMaxDateLong, getSyncStart(SyncCheckpointStore.Mode.REST, activityType, startDate));
+        }
+        if(resume && progressJournal.load()) {
+            //pick up the unfinished run's window so the contacts it finished line up with what's left
+            previousMaxDateLong = progressJournal.getWindowStart() * 1000;
+            endDate = progressJournal.getWindowEnd() * 1000;
+            LOG.info("resuming the activity sync between {} and {} with {} contacts already finished", DateHourMinSecFormatter.print(previousMaxDateLong),
+                    DateHourMinSecFormatter.print(endDate), progressJournal.getCompletedContactCount());
+            progressJournal.resume();
+        } else if(previousMaxDateLong >= endDate) {
+            LOG.info("activities are already synced up to {}, nothing to do", DateHourMinSecFormatter.print(endDate));
+            return;
         } else {
-            contactsWithActivity = getContactsFromDefaultSegmentWithRecentActivity();
+            progressJournal.begin(previousMaxDateLong / 1000, endDate / 1000);
         }
+        if(reconciler != null) {
+            for(String activityType : ACTIVITY_TYPES) {
+                reconciler.setWindow(SyncStatistics.Source.REST, activityType, previousMaxDateLong, endDate);
+            }
+        }
+        Long endDateToSync = endDate/1000;
         previousMaxDateLong = previousMaxDateLong / 1000;
+        try {
+            runActivitiesForWindow(previousMaxDateLong, endDateToSync);
+            activityDensities.save();
+
+            for(String activityType : ACTIVITY_TYPES) {
+                if(restTypesWithFailures.contains(activityType)) {
+                    //leave the checkpoint where it was so the next run covers the calls we gave up on
+                    LOG.warn("not advancing the {} checkpoint since some of its calls were dead lettered", activityType);
+                } else {
+                    checkpoints.advance(SyncCheckpointStore.Mode.REST, activityType, endDate);
+                }
+            }
+            //only once the checkpoints have moved, so a run that dies before then is still resumable
+            progressJournal.complete();
+        } finally {
+            progressJournal.close();
+        }
+        logActivityTotals();
+    }
+
+    private void runActivitiesForWindow(Long previousMaxDateLong, Long endDateToSync) throws Exception {
+        if(streamContacts) {
+            streamActivitiesForContacts(previousMaxDateLong, endDateToSync);
+        } else {
+            ContactIdSet contactsWithActivity;
+            if(activitiesForAllContacts) {
+                contactsWithActivity = getAllContactIds();
+            } else {
+                contactsWithActivity = getContactsFromDefaultSegmentWithRecentActivity();
+            }
 
-        LOG.info("getting data for {} contacts between {} and {}", contactsWithActivity.size(), DateTimeFormatter.print(previousMaxDateLong * 1000), DateTimeFormatter.print(endDateToSync * 1000));
-        getActivitiesForContacts(contactsWithActivity, previousMaxDateLong, endDateToSync);
+            LOG.info("getting data for {} contacts between {} and {}", contactsWithActivity.size(), DateTimeFormatter.print(previousMaxDateLong * 1000), DateTimeFormatter.print(endDateToSync * 1000));
+            getActivitiesForContacts(contactsWithActivity, previousMaxDateLong, endDateToSync);
+        }
+    }
 
-        LOG.info("bulk api returned us the following activities per type: {}", bulkActivityTypeCount.toString());
-        LOG.info("individual api returned us the following activities per type: {}", activityTypeCount.toString());
+    private void logActivityTotals() {
+        LOG.info("bulk api returned us the following activities per type: {}", SyncStatistics.getActivityCounts(SyncStatistics.Source.BULK));
+        LOG.info("individual api returned us the following activities per type: {}", SyncStatistics.getActivityCounts(SyncStatistics.Source.REST));
+        LOG.info("totals so far {}", SyncStatistics.summary());
     }
 
-    private List<Integer> getAllContactIds() throws Exception {
+    private ContactIdSet getAllContactIds() throws Exception {
         //tell the api what query you want to run
         LOG.debug("kicking off export for all contact ids");
         String exportURI = kickoffAllContactsExport();
         LOG.debug("got back export uri {}", exportURI);
-        List<Integer> contactIds = retrieveContactsFromExportURI(exportURI);
+        ContactIdSet contactIds = retrieveContactsFromExportURI(exportURI);
         //delete export to clean up after ourselves
         removeExportRequest(exportURI);
         return contactIds;
     }
 
     //gets contacts from the defaultSegment
-    private List<Integer> getContactsFromDefaultSegmentWithRecentActivity() throws Exception {
+    private ContactIdSet getContactsFromDefaultSegmentWithRecentActivity() throws Exception {
         String activitySegmentURI = (eloquaActivitiesSegment == null) ? getActivitySegmentURI(DEFAULT_ACTIVITIES_SEGMENT) : eloquaActivitiesSegment;
         return getContactsFromSegmentWithRecentActivity(activitySegmentURI);
     }
 
-    private List<Integer> getContactsFromSegmentWithRecentActivity(String activitySegmentURI) throws Exception {
+    private ContactIdSet getContactsFromSegmentWithRecentActivity(String activitySegmentURI) throws Exception {
+        String exportURI = kickoffSegmentContactsExport(activitySegmentURI);
+        ContactIdSet contactIds = retrieveContactsFromExportURI(exportURI);
+        LOG.info("successfully retrieved {} contacts", contactIds.size());
+        //delete export so we can delete segment after
+        removeExportRequest(exportURI);
+        return contactIds;
+    }
+
+    private String kickoffDefaultSegmentContactsExport() throws Exception {
+        String activitySegmentURI = (eloquaActivitiesSegment == null) ? getActivitySegmentURI(DEFAULT_ACTIVITIES_SEGMENT) : eloquaActivitiesSegment;
+        return kickoffSegmentContactsExport(activitySegmentURI);
+    }
+
+    //refreshes the segment then exports its members' ids
+    private String kickoffSegmentContactsExport(String activitySegmentURI) throws Exception {
         JSONObject fields = new JSONObject();
         fields.put(ID_COL, CONTACT_ID_DEFINITION);
 
@@ -268,21 +931,13 @@ public class EloquaActivities {
         LOG.debug("getting refreshed segment count for id {}", segmentId);
         Integer contactCount = refreshSegmentAndGetCount(segmentId);
         LOG.info("kicking off activities segment export for {} to grab the newly refreshed {} contacts from the segment", activitySegmentURI, contactCount);
-        String exportURI = kickoffActivitiesSegmentExport(CONTACT_OBJECT_NAME, fields, activitySegmentURI);
-        List<Integer> contactIds = retrieveContactsFromExportURI(exportURI);
-        LOG.info("successfully retrieved {} contacts", contactIds.size());
-        //delete export so we can delete segment after
-        removeExportRequest(exportURI);
-        return contactIds;
+        return kickoffActivitiesSegmentExport(CONTACT_OBJECT_NAME, fields, activitySegmentURI);
     }
 
-    private List<Integer> retrieveContactsFromExportURI(String exportURI) throws Exception {
-        //start running the query and syncing to server-side staging
+    private ContactIdSet retrieveContactsFromExportURI(String exportURI) throws Exception {
+        //start running the query and syncing to server-side staging, then wait until data is staged successfully
         LOG.debug("kicking off contacts sync");
-        String syncedInstanceURI = kickoffSync(exportURI);
-        //wait until data is staged successfully
-        LOG.debug("polling for completion on syncedInstanceUri {}", syncedInstanceURI);
-        if(pollUntilFinished(syncedInstanceURI)) {
+        if(stageExport(exportURI, CONTACT_OBJECT_NAME)) {
             //sync to staging is complete, now export
             LOG.debug("retrieving data");
             return retrieveContacts(exportURI);
@@ -320,124 +975,422 @@ public class EloquaActivities {
         //clone the headerProperties and set content-length to 0, since it seems required, along with an empty, but present, POST body
         Map<String,String> headerPropsWithContentLength = Maps.newHashMap(headerProperties);
         headerPropsWithContentLength.put("Content-Length", "0");
-        //enqueue the refresh, we'll have to busy wait and check the last updated time to find out when it finishes
+        //enqueue the refresh, then the poller checks the last updated time to find out when it finishes
         LOG.debug("submitting refresh POST to {}", segmentQueueUrl);
         String queueResult = WebUtilities.sendPostRequest(segmentQueueUrl, MILLIS_TO_WAIT_FOR_SYNC_POST, WEBREQUEST_RETRIES, headerPropsWithContentLength, "");
         LOG.debug("refresh POST returned {}", queueResult);
         //grab the time we started the refresh, we'll know it's completed when the last updated time is greater than or equal to this enqueue time
         JSONObject resultJSON = new JSONObject(queueResult);
-        Long queuedAt = resultJSON.getLong("queuedAt");
-
-        int refreshIntervals = 0;
-        Long lastUpdatedAt = 0L;
-        String segmentCountUrl = String.format("%s/assets/contact/segment/%s/count", restV2URL, segmentId);
-        while(lastUpdatedAt < queuedAt) {
-            LOG.debug("waiting for segment to update, queued at {} and current last updated at {}", queuedAt, lastUpdatedAt);
-            //sleep for MILLIS_TO_WAIT_FOR_SEGMENT_REFRESH millisecond to allow refresh processing to work
-            Thread.sleep(MILLIS_TO_WAIT_FOR_SEGMENT_REFRESH);
-            String countResult = WebUtilities.sendGetRequest(segmentCountUrl, MILLIS_TO_WAIT_FOR_SYNC_POST, WEBREQUEST_RETRIES, headerProperties);
-            LOG.debug("count result {}", countResult);
-            resultJSON = new JSONObject(countResult);
-            try {
-                lastUpdatedAt = Long.parseLong(resultJSON.getString("lastCalculatedAt"));
-            } catch (NumberFormatException nfe) {
-                lastUpdatedAt = 0L;
-            }
-
-            if(++refreshIntervals > MAX_INTERVALS_TO_WAIT_FOR_SEGMENT_REFRESH) {
-                throw new Exception(String.format("Waited for %s seconds but didn't get a successful update of the activities segment", MAX_INTERVALS_TO_WAIT_FOR_SEGMENT_REFRESH*MILLIS_TO_WAIT_FOR_SEGMENT_REFRESH/1000));
+        final Long queuedAt = resultJSON.getLong("queuedAt");
+        final String segmentCountUrl = String.format("%s/assets/contact/segment/%s/count", restV2URL, segmentId);
+        ListenableFuture<JSONObject> refreshed = statusPoller.submit("segment refresh", Integer.toString(segmentId), new StatusPoller.Check<JSONObject>() {
+            @Override
+            public JSONObject poll() throws Exception {
+                String countResult = WebUtilities.sendGetRequest(segmentCountUrl, MILLIS_TO_WAIT_FOR_SYNC_POST, WEBREQUEST_RETRIES, headerProperties);
+                LOG.debug("count result {}", countResult);
+                JSONObject countJSON = new JSONObject(countResult);
+                Long lastUpdatedAt;
+                try {
+                    lastUpdatedAt = Long.parseLong(countJSON.getString("lastCalculatedAt"));
+                } catch (NumberFormatException nfe) {
+                    lastUpdatedAt = 0L;
+                }
+                LOG.debug("waiting for segment to update, queued at {} and current last updated at {}", queuedAt, lastUpdatedAt);
+                return (lastUpdatedAt < queuedAt) ? null : countJSON;
             }
+        }, MAX_MILLIS_TO_WAIT_FOR_SEGMENT_REFRESH);
+        try {
+            resultJSON = awaitStatus(refreshed);
+        } catch (TimeoutException te) {
+            throw new Exception(String.format("Waited for %s seconds but didn't get a successful update of the activities segment", MAX_MILLIS_TO_WAIT_FOR_SEGMENT_REFRESH/1000));
         }
 
         return Integer.parseInt(resultJSON.getString("count"));
     }
 
 
-    private void getActivitiesForContacts(List<Integer> contactsWithActivity, Long startSyncDate, Long endSyncDate) throws Exception {
-        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
-        Integer contact;
-        List<Integer> batchContacts = Lists.newArrayList();
-        //run through each contact listed as having activity
-        for(int i = 0; i < contactsWithActivity.size(); i++) {
-            contact = contactsWithActivity.get(i);
-            batchContacts.add(contact);
+    //reads the contact export on its own thread and runs the activity calls on each batch of contacts as it fills up
+    private void streamActivitiesForContacts(Long startSyncDate, Long endSyncDate) throws Exception {
+        final String exportURI = activitiesForAllContacts ? kickoffAllContactsExport() : kickoffDefaultSegmentContactsExport();
+        LOG.debug("streaming contacts from export uri {}", exportURI);
+        final ContactIdStream stream = new ContactIdStream(ACTIVITY_PROCESSING_BATCH, STREAMED_CONTACT_BATCHES);
+        ExecutorService exportPool = Executors.newSingleThreadExecutor();
+        Future<Integer> exportFuture = exportPool.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                try {
+                    if(!stageExport(exportURI, CONTACT_OBJECT_NAME)) {
+                        throw new Exception(String.format("unknown failure getting contacts with activity while polling! dying!"));
+                    }
+                    int totalRecords = retrieveContactPages(exportURI, new BulkPagePrefetcher.PageConsumer<ContactIdSet>() {
+                        @Override
+                        public void consumePage(int offset, BulkPagePrefetcher.Page<ContactIdSet> page) throws Exception {
+                            stream.addPage(page.getRows());
+                            LOG.info("streamed {} contacts out of {} with last one {}", stream.getContactCount(), page.getSummary().getTotalResults(), page.getRows().last());
+                        }
+                    });
+                    stream.finish();
+                    return totalRecords;
+                } catch (Throwable t) {
+                    stream.fail(t);
+                    Throwables.propagateIfPossible(t, Exception.class);
+                    throw new Exception(t);
+                }
+            }
+        });
 
-            if((i != 0 && i % ACTIVITY_PROCESSING_BATCH == 0) || i == contactsWithActivity.size() - 1) {
-                processActivityContactBatch(batchContacts, pool, startSyncDate, endSyncDate);
-                batchContacts.clear();
-                LOG.info("finished processing activities for {} contacts out of {}", i, contactsWithActivity.size());
+        ExecutorService pool = newActivityPool();
+        try {
+            int processedContacts = processActivityContacts(stream, pool, startSyncDate, endSyncDate);
+            int totalRecords = exportFuture.get();
+            LOG.info("finished streaming activities for {} contacts from an export of {}", processedContacts, totalRecords);
+        } catch (ExecutionException ee) {
+            Throwables.propagateIfPossible(ee.getCause(), Exception.class);
+            throw new Exception(ee.getCause());
+        } finally {
+            //interrupts the export if it's still blocked handing us batches after a failure on our side
+            exportPool.shutdownNow();
+            shutdownActivityPools(pool);
+        }
+        removeExportRequest(exportURI);
+    }
+
+    private void getActivitiesForContacts(final ContactIdSet contactsWithActivity, Long startSyncDate, Long endSyncDate) throws Exception {
+        ExecutorService pool = newActivityPool();
+        try {
+            //run through each contact listed as having activity
+            final Iterator<ContactIdSet> batches = contactsWithActivity.batches(ACTIVITY_PROCESSING_BATCH).iterator();
+            processActivityContacts(new ContactBatchSource() {
+                @Override
+                public ContactIdSet nextBatch() {
+                    return batches.hasNext() ? batches.next() : null;
+                }
+
+                @Override
+                public int getContactCount() {
+                    return contactsWithActivity.size();
+                }
+            }, pool, startSyncDate, endSyncDate);
+        } finally {
+            shutdownActivityPools(pool);
+        }
+    }
+
+    private ExecutorService newActivityPool() {
+        ExecutorService pool;
+        if(lightweightThreads || adaptiveConcurrency) {
+            //a callback per thread, the limiter rather than the pool size decides how many requests are in flight
+            if(adaptiveConcurrency) {
+                activityRequestLimiter = new AdaptiveConcurrencyLimiter(NUM_THREADS, MIN_ADAPTIVE_CONCURRENCY, activityConcurrency);
+            } else {
+                activityRequestLimiter = new FixedConcurrencyLimiter(activityConcurrency);
             }
+            LOG.info("running contact activity calls on lightweight threads with {}", activityRequestLimiter);
+            pool = new LightweightThreadExecutor(activityConcurrency, "activity");
+            activitySplitPool = newActivitySplitPool(activityConcurrency);
+        } else {
+            pool = Executors.newFixedThreadPool(NUM_THREADS);
+            activitySplitPool = newActivitySplitPool(NUM_THREADS);
         }
+        return pool;
     }
 
-    private void processActivityContactBatch(List<Integer> contactBatch, ExecutorService pool, Long startSyncDate, Long endSyncDate) throws Exception {
-        int minContactId = contactBatch.get(0);
-        int maxContactId = contactBatch.get(contactBatch.size() - 1);
-        LOG.info("starting to process activities with contact Ids between {} and {}", minContactId, maxContactId);
+    //no more split threads than there are calls allowed at once. splits can split again, so rather than block on a full
+    // pool, which could leave every thread waiting on pieces that can't start, the caller fetches the piece itself
+    private ExecutorService newActivitySplitPool(int maxThreads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("activity-split-%d").build(), new ThreadPoolExecutor.CallerRunsPolicy());
+        return pool;
+    }
 
-        Stopwatch sw = Stopwatch.createStarted();
-        int attempts = 0;
-        Throwable lastException = null;
-        while(attempts < MAX_OPERATION_RETRIES) {
-            try {
-                List<Future<JSONArray>> futures = Lists.newArrayList();
-                int batchActivities = 0;
-                int maxActivitiesLength = 0;
-                for(Integer contact : contactBatch) {
-                    //run through each activity type that they might have had and submit a call
-                    for(String type : ACTIVITY_TYPES) {
-                        Future<JSONArray> future = pool.submit(
-                                new EloquaContactActivityCallback(restV1URL, contact, type, startSyncDate, endSyncDate,
-                                        MILLIS_TO_WAIT_FOR_ACTIVITY, ACTIVITY_WEBREQUEST_RETRIES, headerProperties));
-                        futures.add(future);
+    //the pipeline has to be deeper than the number of calls allowed in flight or it would be the limit instead
+    private int getActivityPipelineDepth() {
+        if(activityRequestLimiter != null) {
+            return Math.max(ACTIVITY_PIPELINE_DEPTH, 2 * activityConcurrency);
+        }
+        return ACTIVITY_PIPELINE_DEPTH;
+    }
+
+    private void shutdownActivityPools(ExecutorService pool) {
+        pool.shutdown();
+        if(activitySplitPool != null) activitySplitPool.shutdown();
+    }
+
+    private EloquaContactActivityCallback newContactActivityCallback(Integer contact, String type, Long startSyncDate, Long endSyncDate) {
+        return new EloquaContactActivityCallback(restV1URL, contact, type, startSyncDate, endSyncDate,
+                MILLIS_TO_WAIT_FOR_ACTIVITY, ACTIVITY_WEBREQUEST_RETRIES, headerProperties, activityRequestLimiter, activitySplitPool, requestHedger, activityDensities);
+    }
+
+    //a batch of contacts, how we group the activity calls for progress logging and the error limit
+    private static class ActivityBatch {
+        private ContactIdSet contacts;
+        private Stopwatch sw = Stopwatch.createStarted();
+        private int totalCalls;
+        private int submitted = 0;
+        //calls that came back ok or were given up on
+        private int finished = 0;
+        private int retries = 0;
+        private int deadLettered = 0;
+        private int clientErrors = 0;
+        //types with a call that was given up on or skipped, the journal leaves those for a resume to try again
+        private Set<String> failedTypes = Sets.newHashSet();
+        private int activities = 0;
+        private int maxActivitiesLength = 0;
+
+        private ActivityBatch(ContactIdSet contacts) {
+            this.contacts = contacts;
+            this.totalCalls = contacts.size() * ACTIVITY_TYPES.size();
+        }
+
+        private boolean hasCallsToSubmit() {
+            return submitted < totalCalls;
+        }
+
+        //the next call that hasn't been sent yet, one per contact and activity type
+        private ActivityCall nextCall() {
+            int contact = contacts.get(submitted / ACTIVITY_TYPES.size());
+            String type = ACTIVITY_TYPES.get(submitted % ACTIVITY_TYPES.size());
+            submitted++;
+            return new ActivityCall(this, contact, type);
+        }
+
+        private boolean isFinished() {
+            return finished == totalCalls;
+        }
+    }
+
+    //one contact and activity type over the run's window, retried on its own when it fails
+    private static class ActivityCall {
+        private ActivityBatch batch;
+        private int contact;
+        private String type;
+        private int attempts = 0;
+        private long notBeforeMillis = 0;
+
+        private ActivityCall(ActivityBatch batch, int contact, String type) {
+            this.batch = batch;
+            this.contact = contact;
+            this.type = type;
+        }
+    }
+
+    private static final Comparator<ActivityCall> BY_RETRY_TIME = new Comparator<ActivityCall>() {
+        @Override
+        public int compare(ActivityCall a, ActivityCall b) {
+            return a.notBeforeMillis < b.notBeforeMillis ? -1 : (a.notBeforeMillis == b.notBeforeMillis ? 0 : 1);
+        }
+    };
+
+    /*
+    Keeps the pipeline full across batch boundaries, so the calls for the next batch go out while the stragglers from
+    the last one are still coming back rather than the pool sitting idle waiting on them. A call that fails is retried
+    on its own after a backoff, ahead of any new calls, until it runs out of attempts and is written to the dead letter
+    log. Only a batch with more than 1% of its calls dead lettered fails the run.
+    Returns the number of contacts processed.
+     */
+    private int processActivityContacts(ContactBatchSource source, ExecutorService pool, Long startSyncDate, Long endSyncDate) throws Exception {
+        CompletionPipeline<JSONArray> pipeline = new CompletionPipeline<JSONArray>(pool, getActivityPipelineDepth());
+        Map<Future<JSONArray>, ActivityCall> inFlight = Maps.newHashMap();
+        //failed calls waiting out their backoff, soonest first
+        PriorityQueue<ActivityCall> retryQueue = new PriorityQueue<ActivityCall>(64, BY_RETRY_TIME);
+        //batches with calls that haven't been sent yet
+        LinkedList<ActivityBatch> toSubmit = Lists.newLinkedList();
+        int batchesInProgress = 0;
+        boolean sourceFinished = false;
+        int processedContacts = 0;
+        int processedCalls = 0;
+        //add a failsafe timeout to make sure we don't wait much longer than a call could possibly take for the next one to finish:
+        // every try timing out with the longest backoff between them. a Retry-After can be longer still, but that's waiting, not stuck
+        long futureTimeoutMillis = MILLIS_TO_WAIT_FOR_ACTIVITY * (ACTIVITY_WEBREQUEST_RETRIES + 1)
+                + ACTIVITY_WEBREQUEST_RETRIES * WebUtilities.getRetryPolicy().getMaxBackoffMillis();
+        long lastProgressMillis = System.currentTimeMillis();
+        try {
+            while(true) {
+                long now = System.currentTimeMillis();
+                if(pipeline.isEmpty()) {
+                    lastProgressMillis = now;
+                }
+                //keep the pipeline topped up, retries that are due first and then calls for the next contacts
+                while(!pipeline.isFull()) {
+                    ActivityCall call;
+                    if(!retryQueue.isEmpty() && retryQueue.peek().notBeforeMillis <= now) {
+                        call = retryQueue.poll();
+                    } else {
+                        if(toSubmit.isEmpty()) {
+                            ContactIdSet contactBatch = sourceFinished ? null : source.nextBatch();
+                            if(contactBatch == null) {
+                                sourceFinished = true;
+                                break;
+                            }
+                            //anything a run we're resuming already finished
+                            ContactIdSet remaining = progressJournal.removeCompleted(contactBatch);
+                            if(remaining.isEmpty()) {
+                                LOG.info("skipping contacts between {} and {}, the progress journal has them done already", contactBatch.first(), contactBatch.last());
+                                processedContacts += contactBatch.size();
+                                continue;
+                            } else if(remaining.size() < contactBatch.size()) {
+                                LOG.info("skipping {} contacts between {} and {} that the progress journal has done already", contactBatch.size() - remaining.size(), contactBatch.first(), contactBatch.last());
+                                processedContacts += contactBatch.size() - remaining.size();
+                                contactBatch = remaining;
+                            }
+                            LOG.info("starting to process activities with contact Ids between {} and {}", contactBatch.first(), contactBatch.last());
+                            toSubmit.add(new ActivityBatch(contactBatch));
+                            batchesInProgress++;
+                        }
+                        ActivityBatch batch = toSubmit.getFirst();
+                        call = batch.nextCall();
+                        if(!batch.hasCallsToSubmit()) {
+                            toSubmit.removeFirst();
+                        }
                     }
+                    call.attempts++;
+                    EloquaContactActivityCallback callback = newContactActivityCallback(call.contact, call.type, startSyncDate, endSyncDate);
+                    inFlight.put(asyncRequests ? pipeline.submit(callback.callAsync()) : pipeline.submit(callback), call);
+                }
+                if(pipeline.isEmpty()) {
+                    if(retryQueue.isEmpty()) {
+                        //nothing in flight and nothing left to send
+                        flushFinishedActivityBatches();
+                        return processedContacts;
+                    }
+                    //only retries left and none of them are due yet
+                    Thread.sleep(Math.max(1, retryQueue.peek().notBeforeMillis - now));
+                    continue;
                 }
 
-                int errors = 0;
-                int processed = 0;
-                LOG.info("beginning to process {} futures for batch of size {} with {} activities each", futures.size(), contactBatch.size(), ACTIVITY_TYPES.size());
-                JSONArray activityRecord = null;
-                //add a failsafe timeout on the future to make sure we don't wait much longer than the call could possibly take
-                int futureTimeout = (MILLIS_TO_WAIT_FOR_ACTIVITY / 1000) * (ACTIVITY_WEBREQUEST_RETRIES + 1);
-                for(Future<JSONArray> future : futures) {
-                    try {
-                        activityRecord = future.get(futureTimeout, TimeUnit.SECONDS);
-                        int activityCnt = processActivities(activityRecord);
-                        batchActivities += activityCnt;
-                        if(activityCnt > maxActivitiesLength) {
-                            maxActivitiesLength = activityCnt;
-                        }
-                    } catch (Exception e) {
-                        lastException = new Exception(String.format("problem processing json %s",activityRecord),e);
-                        if(++errors * 100 > futures.size()) {
-                            //more than 1% errors, throw along whatever exception we found to restart the batch
-                            LOG.error("more than 1% of the records resulted in error, retrying the batch");
-                            throw lastException;
-                        } else if (sw.elapsed(TimeUnit.HOURS) > MAX_HOURS_FOR_ACTIVITY_SYNC) {
-                            throw new Exception(String.format("Erroring out since activity sync batch has taken more than %s hours", MAX_HOURS_FOR_ACTIVITY_SYNC));
+                //then handle whichever call finishes first, waking up early if a retry comes due
+                long waitMillis = futureTimeoutMillis;
+                if(!retryQueue.isEmpty()) {
+                    waitMillis = Math.max(1, Math.min(waitMillis, retryQueue.peek().notBeforeMillis - now));
+                }
+                Future<JSONArray> future = pipeline.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if(future == null) {
+                    if(WebUtilities.getWaitingRequestCount() > 0) {
+                        //calls held back by the rate limiter or backing off are throttled, not stalled, resending them would only add load
+                        lastProgressMillis = System.currentTimeMillis();
+                    } else if(System.currentTimeMillis() - lastProgressMillis >= futureTimeoutMillis) {
+                        //nothing at all came back in time, give up on everything in flight and send it all again
+                        LOG.error("none of the {} activity calls in flight finished within {} ms, resending them", inFlight.size(), futureTimeoutMillis);
+                        pipeline.cancel();
+                        TimeoutException stall = new TimeoutException(String.format("no activity call finished within %s ms", futureTimeoutMillis));
+                        for(ActivityCall call : inFlight.values()) {
+                            if(!retryActivityCall(call, stall, retryQueue, startSyncDate, endSyncDate) && ++call.batch.finished == call.batch.totalCalls) {
+                                batchesInProgress--;
+                                processedContacts += call.batch.contacts.size();
+                                finishActivityBatch(call.batch, processedContacts, source);
+                            }
                         }
+                        inFlight.clear();
+                        lastProgressMillis = System.currentTimeMillis();
                     }
+                    continue;
+                }
+                lastProgressMillis = System.currentTimeMillis();
+                ActivityCall call = inFlight.remove(future);
+                ActivityBatch batch = call.batch;
 
-                    if(++processed % 1000 == 0) {
-                        LOG.info("processed {} total activities from {} futures with {} errors", batchActivities, processed, errors);
-                        LOG.info("current activity breakdown {}", activityTypeCount.toString());
+                try {
+                    JSONArray activityRecord = future.get();
+                    int activityCnt = processActivities(activityRecord);
+                    batch.activities += activityCnt;
+                    if(activityCnt > batch.maxActivitiesLength) {
+                        batch.maxActivitiesLength = activityCnt;
+                    }
+                    batch.finished++;
+                } catch (Exception e) {
+                    Throwable cause = (e instanceof ExecutionException) ? e.getCause() : e;
+                    if(cause instanceof WebRequestException && !((WebRequestException) cause).isRetryable()) {
+                        //a 4xx will come back the same way however many times we ask, note it and move on
+                        LOG.warn("skipping contact activity call that failed with {}", cause.getMessage());
+                        batch.clientErrors++;
+                        batch.failedTypes.add(call.type);
+                        deadLetters.record(call.contact, call.type, startSyncDate, endSyncDate, call.attempts, cause);
+                        batch.finished++;
+                    } else if(!retryActivityCall(call, cause, retryQueue, startSyncDate, endSyncDate)) {
+                        batch.finished++;
                     }
                 }
 
-                LOG.info("processed {} activities for {} contacts ({} of which resulted in errors) between {} and {} with max activity length {}", batchActivities, contactBatch.size(), errors, minContactId, maxContactId, maxActivitiesLength);
-                return;
-            } catch (Throwable ex) {
-                attempts++;
-                lastException = ex;
-                if(sw.elapsed(TimeUnit.HOURS) > MAX_HOURS_FOR_ACTIVITY_SYNC) break;
-                LOG.error(String.format("exception/error #%s processing contact batch %s-%s", attempts, minContactId, maxContactId), ex);
+                if(++processedCalls % 1000 == 0) {
+                    LOG.info("processed {} calls with {} in the pipeline, {} waiting to retry and {} batches in progress", processedCalls, inFlight.size(), retryQueue.size(), batchesInProgress);
+                    LOG.info("current activity breakdown {}", SyncStatistics.getActivityCounts(SyncStatistics.Source.REST));
+                    LOG.info("current totals {}", SyncStatistics.summary());
+                    if(activityRequestLimiter != null) {
+                        LOG.info("current activity concurrency {}", activityRequestLimiter);
+                    }
+                    if(requestHedger != null) {
+                        LOG.info("current hedging {}", requestHedger);
+                    }
+                }
+                if(batch.isFinished()) {
+                    batchesInProgress--;
+                    processedContacts += batch.contacts.size();
+                    finishActivityBatch(batch, processedContacts, source);
+                }
+            }
+        } finally {
+            //only has anything left to cancel when we're bailing out
+            pipeline.cancel();
+            if(deadLetters.getCount() > 0) {
+                LOG.warn("gave up on {} contact activity calls in total, they're listed in {}", deadLetters.getCount(), deadLetters.getFileName());
             }
+            Closeables.close(deadLetters, true);
+        }
+    }
+
+    private void finishActivityBatch(ActivityBatch batch, int processedContacts, ContactBatchSource source) throws IOException {
+        unflushedBatches.add(batch);
+        //flushing finishes the current activity file, so only every so often rather than after every batch
+        if(activitySink == ActivitySink.DISCARD || System.currentTimeMillis() - lastSinkFlushMillis >= ACTIVITY_SINK_FLUSH_MILLIS) {
+            flushFinishedActivityBatches();
+        }
+        LOG.info("processed {} activities for {} contacts ({} calls retried, {} given up on, {} skipped on client errors) between {} and {} with max activity length {}",
+                batch.activities, batch.contacts.size(), batch.retries, batch.deadLettered, batch.clientErrors, batch.contacts.first(), batch.contacts.last(), batch.maxActivitiesLength);
+        LOG.info("finished processing activities for {} contacts out of {}", processedContacts, source.getContactCount());
+        if(activityRequestLimiter != null) {
+            LOG.info("activity concurrency at end of batch {}", activityRequestLimiter);
+        }
+    }
+
+    //the progress journal only gets a batch once its activities are on disk, otherwise a resume could skip contacts whose
+    // activities died with the process
+    private void flushFinishedActivityBatches() throws IOException {
+        activitySink.flush();
+        for(ActivityBatch batch : unflushedBatches) {
+            List<String> doneTypes = Lists.newArrayList(ACTIVITY_TYPES);
+            doneTypes.removeAll(batch.failedTypes);
+            progressJournal.recordCompleted(batch.contacts, doneTypes);
         }
+        unflushedBatches.clear();
+        lastSinkFlushMillis = System.currentTimeMillis();
+    }
 
-        //getting out of the while loop means we errored out, break the process
-        throw new Exception(String.format("FAILING...reached max of %s errors trying to get activities for contacts between %s and %s",
-                MAX_OPERATION_RETRIES, minContactId, maxContactId), lastException);
+    //queues the call to go again after a backoff, or dead letters it once it's used up its attempts. returns false if it was dead lettered
+    private boolean retryActivityCall(ActivityCall call, Throwable cause, PriorityQueue<ActivityCall> retryQueue, Long startSyncDate, Long endSyncDate) throws Exception {
+        ActivityBatch batch = call.batch;
+        if(batch.sw.elapsed(TimeUnit.HOURS) > MAX_HOURS_FOR_ACTIVITY_SYNC) {
+            throw new Exception(String.format("Erroring out since activity sync batch has taken more than %s hours", MAX_HOURS_FOR_ACTIVITY_SYNC), cause);
+        }
+        if(call.attempts < MAX_ACTIVITY_CALL_ATTEMPTS) {
+            batch.retries++;
+            //full jitter on a doubling backoff so a bad minute on the api doesn't get all the failed calls back at once
+            long backoffMillis = ACTIVITY_RETRY_BACKOFF_MILLIS << (call.attempts - 1);
+            call.notBeforeMillis = System.currentTimeMillis() + (long) (Math.random() * backoffMillis);
+            retryQueue.add(call);
+            LOG.debug("retrying {} activities for contact {} after attempt #{} failed with {}", call.type, call.contact, call.attempts, cause.getMessage());
+            return true;
+        }
 
+        LOG.error(String.format("giving up on %s activities for contact %s after %s attempts", call.type, call.contact, call.attempts), cause);
+        deadLetters.record(call.contact, call.type, startSyncDate, endSyncDate, call.attempts, cause);
+        restTypesWithFailures.add(call.type);
+        batch.failedTypes.add(call.type);
+        if(++batch.deadLettered * 100 > batch.totalCalls) {
+            //more than 1% of a batch failing every attempt means something's wrong beyond a few bad calls, break the process
+            throw new Exception(String.format("FAILING...gave up on more than 1%% of the activity calls for contacts between %s and %s, see %s",
+                    batch.contacts.first(), batch.contacts.last(), deadLetters.getFileName()), cause);
+        }
+        return false;
     }
 
     private int processActivities(JSONArray result) throws JSONException, IOException {
@@ -447,20 +1400,25 @@ public class EloquaActivities {
         for(int i = 0; i < result.length(); i++) {
             jsonResult = result.getJSONObject(i);
             activityType = jsonResult.getString("activityType");
-            if(activityTypeCount.containsKey(activityType)) {
-                activityTypeCount.put(activityType, activityTypeCount.get(activityType) + 1);
-            } else {
-                activityTypeCount.put(activityType, 1);
-            }
+            SyncStatistics.recordActivity(SyncStatistics.Source.REST, activityType);
+            writeActivity(SyncStatistics.Source.REST, activityType, jsonResult);
         }
         return result.length();
     }
 
-    private String kickoffBulkActivityExport(String activityType, JSONObject fields, String createdAfter, String createdBefore) throws Exception {
+    //the reconciler sees every activity, before the dedup index drops any
+    private void writeActivity(SyncStatistics.Source source, String activityType, JSONObject activity) throws IOException {
+        if(reconciler != null) {
+            reconciler.record(source, activityType, activity);
+        }
+        activitySink.write(source, activityType, activity);
+    }
+
+    private String kickoffBulkActivityExport(String activityType, JSONObject fields, String createdAfter, boolean inclusiveStart, String createdBefore) throws Exception {
         //configure the export request with the proper filter, fields and other variables
         JSONObject exportBody = createBasicExportBody(ACTIVITIES_OBJECT_NAME, fields);
 
-        exportBody.put("filter", createActivityDateBetweenFilter(activityType, createdAfter, createdBefore));
+        exportBody.put("filter", createActivityDateBetweenFilter(activityType, createdAfter, inclusiveStart, createdBefore));
 
         return getExportURI(exportBody,ACTIVITIES_OBJECT_NAME,null);
     }
@@ -496,10 +1454,11 @@ public class EloquaActivities {
 
     //want a date filter between a start and end date like :
     //"filter" : "’{{Activity.Type}}’ = ’EmailSend’ AND ’{{Activity.CreatedAt}}’ > ’2013-01-01’ AND ’{{Activity.CreatedAt}}’ < ’2013-12-31'"
-    private String createActivityDateBetweenFilter(String activityType, String createdAfter, String createdBefore) throws Exception {
+    //inclusiveStart is used by partitioned exports so back to back windows don't drop activities right on a boundary
+    private String createActivityDateBetweenFilter(String activityType, String createdAfter, boolean inclusiveStart, String createdBefore) throws Exception {
         StringBuilder filter = new StringBuilder();
         filter.append("'{{Activity.Type}}' = '").append(activityType).append("'");
-        filter.append(" AND '{{Activity.CreatedAt}}' > '").append(createdAfter).append("'");
+        filter.append(" AND '{{Activity.CreatedAt}}' ").append(inclusiveStart ? ">=" : ">").append(" '").append(createdAfter).append("'");
         if(createdBefore != null) {
             filter.append(" AND '{{Activity.CreatedAt}}' < '").append(createdBefore).append("'");
         }
@@ -538,109 +1497,191 @@ public class EloquaActivities {
         return responseObject.getString("uri");
     }
 
-    private boolean pollUntilFinished(String syncedInstanceURI) throws Exception {
-        //hit the status url on an interval until the data is ready to be exported
-        String syncPollingURL;
-        syncPollingURL = String.format("%s%s", bulkV2URL, syncedInstanceURI);
-        Long totalMillisWaited = 0L;
-        while(true) {
-            String result = WebUtilities.sendGetRequest(syncPollingURL, MILLIS_TO_WAIT_FOR_POLL, WEBREQUEST_RETRIES, headerProperties);
-            LOG.info("poll result {}", result);
-            JSONObject jsonResult = new JSONObject(result);
-            String status = jsonResult.getString("status");
-            if(status.equals("pending") || status.equals("active")) {
-                Thread.sleep(MILLIS_TO_WAIT_BETWEEN_POLLS);
-                totalMillisWaited += MILLIS_TO_WAIT_BETWEEN_POLLS;
-                if(totalMillisWaited > MAX_MILLIS_TO_WAIT_FROM_POLLING) {
-                    LOG.error("giving up on sync with url {} after {} seconds waiting", syncedInstanceURI, totalMillisWaited/1000);
-                    return false;
-                } else {
-                    LOG.info("status is {}, polling for total {} seconds", status, totalMillisWaited/1000);
+    //syncs the export to server-side staging and waits for it, holding one of the sync permits while it's in flight
+    private boolean stageExport(String exportURI, String objectName) throws Exception {
+        syncPermits.acquire();
+        try {
+            LOG.info("kicking off sync for {}", exportURI);
+            String syncedInstanceURI = kickoffSync(exportURI);
+            LOG.info("polling for completion on syncedInstanceUri {}", syncedInstanceURI);
+            return pollUntilFinished(syncedInstanceURI, objectName);
+        } finally {
+            syncPermits.release();
+        }
+    }
+
+    private boolean pollUntilFinished(String syncedInstanceURI, String objectName) throws Exception {
+        //hit the status url until the data is ready to be exported, the poller decides how often
+        final String syncPollingURL = String.format("%s%s", bulkV2URL, syncedInstanceURI);
+        ListenableFuture<JSONObject> finished = statusPoller.submit(objectName + " sync", syncedInstanceURI, new StatusPoller.Check<JSONObject>() {
+            @Override
+            public JSONObject poll() throws Exception {
+                String result = WebUtilities.sendGetRequest(syncPollingURL, MILLIS_TO_WAIT_FOR_POLL, WEBREQUEST_RETRIES, headerProperties);
+                LOG.debug("poll result {}", result);
+                JSONObject jsonResult = new JSONObject(result);
+                String status = jsonResult.getString("status");
+                if(status.equals("pending") || status.equals("active")) {
+                    return null;
+                } else if(status.equals("warning") || status.equals("error") || status.equals("success")) {
+                    return jsonResult;
                 }
-            } else if(status.equals("warning") || status.equals("error")) {
-                LOG.error("sync with url {} finished with a status of {} status result {}", syncedInstanceURI, status, jsonResult);
-                //on failure try to get the logs for the failure with more info on what went wrong
-                String statusLogsURL = String.format("%s/logs", syncPollingURL);
-                JSONObject logResult = new JSONObject(WebUtilities.sendGetRequest(statusLogsURL, MILLIS_TO_WAIT_FOR_POLL, WEBREQUEST_RETRIES, headerProperties));
-                LOG.error("full result: {}", logResult.toString());
-                return false;
-            } else if(status.equals("success")){
-                return true;
-            } else {
                 throw new Exception(String.format("unknown status %s", status));
             }
+        }, MAX_MILLIS_TO_WAIT_FROM_POLLING);
+        JSONObject jsonResult;
+        try {
+            jsonResult = awaitStatus(finished);
+        } catch (TimeoutException te) {
+            LOG.error("giving up on sync with url {} after {} seconds waiting", syncedInstanceURI, MAX_MILLIS_TO_WAIT_FROM_POLLING/1000);
+            return false;
+        }
+        String status = jsonResult.getString("status");
+        if(status.equals("success")) {
+            return true;
         }
+        LOG.error("sync with url {} finished with a status of {} status result {}", syncedInstanceURI, status, jsonResult);
+        //on failure try to get the logs for the failure with more info on what went wrong
+        String statusLogsURL = String.format("%s/logs", syncPollingURL);
+        JSONObject logResult = new JSONObject(WebUtilities.sendGetRequest(statusLogsURL, MILLIS_TO_WAIT_FOR_POLL, WEBREQUEST_RETRIES, headerProperties));
+        LOG.error("full result: {}", logResult.toString());
+        return false;
     }
 
-    private void retrieveBulkActivityData(String uri, String activityType) throws Exception {
-        Integer totalRecords = null;
-        int retrievedRecords = 0;
-        while(totalRecords == null || retrievedRecords < totalRecords) {
-            String retrievalURL = String.format("%s%s/data?offset=%s&limit=%s", bulkV2URL, uri, retrievedRecords, RESULTS_PER_PAGE);
-            LOG.debug("retrieving with {}", retrievalURL);
-            String results = WebUtilities.sendGetRequest(retrievalURL, MILLIS_TO_WAIT_FOR_EXPORT, WEBREQUEST_RETRIES, headerProperties);
-            JSONObject resultsJSON = new JSONObject(results);
+    //blocks until the poller is done with the job, a TimeoutException if it gave up waiting
+    private static <T> T awaitStatus(ListenableFuture<T> finished) throws Exception {
+        try {
+            return finished.get();
+        } catch (InterruptedException ie) {
+            finished.cancel(true);
+            throw ie;
+        } catch (ExecutionException ee) {
+            Throwables.propagateIfPossible(ee.getCause(), Exception.class);
+            throw new Exception(ee.getCause());
+        }
+    }
 
-            if(totalRecords == null) {
-                totalRecords = resultsJSON.getInt("totalResults");
-                bulkActivityTypeCount.put(activityType, totalRecords);
-                if(totalRecords == 0) {
-                    //no entries for this query, we'll still write the file for consistency
-                    LOG.info("no results for {} ", ACTIVITIES_OBJECT_NAME);
-                    return;
-                }
-            } else {
-                LOG.debug("{} total records with {} retrieved so far", totalRecords, retrievedRecords);
+    //pages through the staged export, handing each record to the activity sink, and returns the total number of records in it.
+    // the rows are held back in a BulkExportStage until the last page is in, the whole export gets retried if any of it
+    // fails and the failed attempt's rows mustn't end up in the activity files next to the retry's
+    private int retrieveBulkActivityData(final String uri, final String activityType) throws Exception {
+        final boolean keepRows = activitySink != ActivitySink.DISCARD || reconciler != null;
+        final BulkExportStage stage = keepRows ? new BulkExportStage(activityType) : null;
+        try {
+            int totalRecords = retrieveBulkActivityPages(uri, activityType, stage);
+            if(stage != null) {
+                LOG.info("writing the {} staged rows of the {} export", stage.getRowCount(), activityType);
+                stage.commit(new BulkExportStage.RowHandler() {
+                    @Override
+                    public void handleRow(JSONObject row) throws IOException {
+                        writeActivity(SyncStatistics.Source.BULK, activityType, row);
+                    }
+                });
             }
-
-            JSONArray values = resultsJSON.getJSONArray("items");
-
-            retrievedRecords += values.length();
-            if(retrievedRecords % RESULTS_PER_PAGE*10 == 0) {
-                LOG.info("retrieved {} of {} records for {}", retrievedRecords, totalRecords, ACTIVITIES_OBJECT_NAME);
+            return totalRecords;
+        } finally {
+            if(stage != null) {
+                stage.close();
             }
         }
     }
 
-    private List<Integer> retrieveContacts(String uri) throws Exception {
-        List<Integer> contactsToRetrieve = Lists.newArrayList();
-        Integer totalRecords = null;
-        int retrievedRecords = 0;
-        while(totalRecords == null || retrievedRecords < totalRecords) {
-            String retrievalURL = String.format("%s%s/data?offset=%s&limit=%s", bulkV2URL, uri, retrievedRecords, RESULTS_PER_PAGE);
-            LOG.debug("retrieving with {}", retrievalURL);
-            String results = WebUtilities.sendGetRequest(retrievalURL, MILLIS_TO_WAIT_FOR_EXPORT, WEBREQUEST_RETRIES, headerProperties);
-            JSONObject resultsJSON;
-            try {
-                resultsJSON = new JSONObject(results);
-            } catch (JSONException je) {
-                LOG.info("retrieval error with result {}", results);
-                throw je;
+    private int retrieveBulkActivityPages(final String uri, final String activityType, final BulkExportStage stage) throws Exception {
+        BulkPagePrefetcher<List<JSONObject>> prefetcher = new BulkPagePrefetcher<List<JSONObject>>(pageFetchPool, RESULTS_PER_PAGE, prefetchPages);
+        int totalRecords = prefetcher.fetchAll(new BulkPagePrefetcher.PageLoader<List<JSONObject>>() {
+            @Override
+            public BulkPagePrefetcher.Page<List<JSONObject>> loadPage(int offset, final int limit) throws Exception {
+                String retrievalURL = String.format("%s%s/data?offset=%s&limit=%s", bulkV2URL, uri, offset, limit);
+                LOG.debug("retrieving with {}", retrievalURL);
+                return WebUtilities.sendGetRequest(retrievalURL, MILLIS_TO_WAIT_FOR_EXPORT, WEBREQUEST_RETRIES, headerProperties,
+                        new WebUtilities.ResponseHandler<BulkPagePrefetcher.Page<List<JSONObject>>>() {
+                            @Override
+                            public BulkPagePrefetcher.Page<List<JSONObject>> handleResponse(Reader reader) throws Exception {
+                                if(stage == null) {
+                                    return new BulkPagePrefetcher.Page<List<JSONObject>>(BulkPageParser.parse(reader, BulkPageParser.SKIP_ROWS), null);
+                                }
+                                //a fresh list per attempt so a retry of a partially read page doesn't write rows twice
+                                final List<JSONObject> rows = Lists.newArrayListWithCapacity(limit);
+                                BulkPageParser.PageSummary summary = BulkPageParser.parse(reader, new BulkPageParser.RowHandler() {
+                                    @Override
+                                    public void handleRow(JSONObject row) {
+                                        rows.add(row);
+                                    }
+                                });
+                                return new BulkPagePrefetcher.Page<List<JSONObject>>(summary, rows);
+                            }
+                        });
             }
-
-            if(totalRecords == null) totalRecords = resultsJSON.getInt("totalResults");
-            if(totalRecords == 0) {
-                //no entries for this query
-                LOG.info("no results for contacts with activity query");
-                return contactsToRetrieve;
+        }, new BulkPagePrefetcher.PageConsumer<List<JSONObject>>() {
+            @Override
+            public void consumePage(int offset, BulkPagePrefetcher.Page<List<JSONObject>> page) throws IOException {
+                //pages come to the consumer in offset order, so the rows are staged in export order
+                if(page.getRows() != null) {
+                    for(JSONObject row : page.getRows()) {
+                        stage.add(row);
+                    }
+                }
+                int retrievedRecords = offset + page.getSummary().getItemCount();
+                if(retrievedRecords % RESULTS_PER_PAGE*10 == 0) {
+                    LOG.info("retrieved {} of {} records for {} {}", retrievedRecords, page.getSummary().getTotalResults(), activityType, ACTIVITIES_OBJECT_NAME);
+                }
             }
+        });
 
-            JSONArray items = resultsJSON.getJSONArray("items");
+        if(totalRecords == 0) {
+            //no entries for this query, we'll still write the file for consistency
+            LOG.info("no results for {} {}", activityType, ACTIVITIES_OBJECT_NAME);
+        }
+        return totalRecords;
+    }
 
-            JSONObject jsonObject;
-            Integer contactId = null;
-            for(int i = 0; i < items.length(); i++) {
-                jsonObject = items.getJSONObject(i);
-                contactId = jsonObject.getInt(ID_COL);
-                contactsToRetrieve.add(contactId);
+    private ContactIdSet retrieveContacts(final String uri) throws Exception {
+        final ContactIdSet contactsToRetrieve = new ContactIdSet();
+        retrieveContactPages(uri, new BulkPagePrefetcher.PageConsumer<ContactIdSet>() {
+            //counted as we go, contactsToRetrieve.size() would sort the whole set on every page if the pages came out of id order
+            private int retrievedContacts = 0;
+
+            @Override
+            public void consumePage(int offset, BulkPagePrefetcher.Page<ContactIdSet> page) {
+                ContactIdSet pageContacts = page.getRows();
+                contactsToRetrieve.addAll(pageContacts);
+                retrievedContacts += pageContacts.size();
+                LOG.info("retrieved {} contacts with last one {}", retrievedContacts, pageContacts.last());
             }
-
-            retrievedRecords += items.length();
-            LOG.info("retrieved {} contacts with last one {}", contactsToRetrieve.size(), contactId);
-        }
-        Collections.sort(contactsToRetrieve);
+        });
         return contactsToRetrieve;
     }
 
+    //pages through a staged contact export handing each page of ids to the consumer in offset order, returns the export's total
+    private int retrieveContactPages(final String uri, BulkPagePrefetcher.PageConsumer<ContactIdSet> consumer) throws Exception {
+        BulkPagePrefetcher<ContactIdSet> prefetcher = new BulkPagePrefetcher<ContactIdSet>(pageFetchPool, RESULTS_PER_PAGE, prefetchPages);
+        return prefetcher.fetchAll(new BulkPagePrefetcher.PageLoader<ContactIdSet>() {
+            @Override
+            public BulkPagePrefetcher.Page<ContactIdSet> loadPage(int offset, final int limit) throws Exception {
+                final String retrievalURL = String.format("%s%s/data?offset=%s&limit=%s", bulkV2URL, uri, offset, limit);
+                LOG.debug("retrieving with {}", retrievalURL);
+                try {
+                    return WebUtilities.sendGetRequest(retrievalURL, MILLIS_TO_WAIT_FOR_EXPORT, WEBREQUEST_RETRIES, headerProperties,
+                            new WebUtilities.ResponseHandler<BulkPagePrefetcher.Page<ContactIdSet>>() {
+                                @Override
+                                public BulkPagePrefetcher.Page<ContactIdSet> handleResponse(Reader reader) throws Exception {
+                                    //a fresh list per attempt so a retry of a partially read page starts clean
+                                    final ContactIdSet pageContacts = new ContactIdSet(limit);
+                                    BulkPageParser.PageSummary summary = BulkPageParser.parse(reader, new BulkPageParser.RowHandler() {
+                                        @Override
+                                        public void handleRow(JSONObject row) throws Exception {
+                                            pageContacts.add(row.getInt(ID_COL));
+                                        }
+                                    });
+                                    return new BulkPagePrefetcher.Page<ContactIdSet>(summary, pageContacts);
+                                }
+                            });
+                } catch (JSONException je) {
+                    LOG.info("retrieval error parsing result from {}", retrievalURL);
+                    throw je;
+                }
+            }
+        }, consumer);
+    }
+
 }
 
@@ -1,11 +1,21 @@
 package io.ntropy;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.json.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /*
 Until batch access is enabled, we have to iterate through each contact and each potential activity with a GET
@@ -21,9 +31,15 @@ public class EloquaContactActivityCallback implements Callable<JSONArray>{
     private int timeout;
     private int retries;
     private Map<String,String> headerProperties;
+    //all optional, when set each request holds a slot from the limiter while it's in flight, the pieces of a split window run in parallel,
+    //slow requests get hedged and busy contacts start out split as finely as they needed last time
+    private ConcurrencyLimiter requestLimiter;
+    private ExecutorService splitExecutor;
+    private RequestHedger hedger;
+    private ActivityDensityCache densityCache;
 
     private static final Logger LOG = LoggerFactory.getLogger(EloquaContactActivityCallback.class);
-    private static final int MAX_COUNT = 1000;
+    private static final int MAX_COUNT = ActivityWindowSplitter.PAGE_SIZE;
 
     public EloquaContactActivityCallback(String baseURL, int contactId, String activityType, Long startSyncDate, Long endSyncDate, int timeout, int retries, Map<String, String> headerProperties) {
         this.baseURL = baseURL;
@@ -36,35 +52,205 @@ public class EloquaContactActivityCallback implements Callable<JSONArray>{
         this.headerProperties = headerProperties;
     }
 
+    public EloquaContactActivityCallback(String baseURL, int contactId, String activityType, Long startSyncDate, Long endSyncDate, int timeout, int retries, Map<String, String> headerProperties,
+                                         ConcurrencyLimiter requestLimiter, ExecutorService splitExecutor, RequestHedger hedger, ActivityDensityCache densityCache) {
+        this(baseURL, contactId, activityType, startSyncDate, endSyncDate, timeout, retries, headerProperties);
+        this.requestLimiter = requestLimiter;
+        this.splitExecutor = splitExecutor;
+        this.hedger = hedger;
+        this.densityCache = densityCache;
+    }
+
 
     @Override
     public JSONArray call() throws Exception {
-        return getResponses(startSyncDate, endSyncDate);
+        JSONArray responses = getResponses(ActivityWindowSplitter.initialWindows(startSyncDate, endSyncDate, getKnownDensity()));
+        recordDensity(responses);
+        return responses;
+    }
+
+    //same as call() but through AsyncWebUtilities, so nothing blocks until someone asks the future for its result
+    public ListenableFuture<JSONArray> callAsync() {
+        ListenableFuture<JSONArray> responses = getResponsesAsync(ActivityWindowSplitter.initialWindows(startSyncDate, endSyncDate, getKnownDensity()));
+        return Futures.transform(responses, new Function<JSONArray, JSONArray>() {
+            @Override
+            public JSONArray apply(JSONArray responses) {
+                recordDensity(responses);
+                return responses;
+            }
+        });
+    }
+
+    private Double getKnownDensity() {
+        return (densityCache == null) ? null : densityCache.getDensity(contactId, activityType);
+    }
+
+    private void recordDensity(JSONArray responses) {
+        if(densityCache != null) {
+            densityCache.record(contactId, activityType, responses.length(), endSyncDate - startSyncDate + 1);
+        }
     }
 
     //recursive helper since responses of 1000 means we didn't get all the data and we need to break it down to a more granular request
-    private JSONArray getResponses(Long curStartSyncDate, Long curEndSyncDate) throws Exception {
+    private JSONArray getResponses(Long curStartSyncDate, final Long curEndSyncDate) throws Exception {
         String contactActivityUrl = String.format("%s/data/activities/contact/%s?type=%s&startDate=%s&endDate=%s&count=%s",
                 baseURL, contactId, activityType, curStartSyncDate, curEndSyncDate, MAX_COUNT);
-        String response =  WebUtilities.sendGetRequest(contactActivityUrl, timeout, retries, headerProperties);
+        String response = sendRequest(contactActivityUrl);
         if(response.isEmpty()) {
             return new JSONArray();
         } else {
             JSONArray responseArray = new JSONArray(response);
-            if(responseArray.length() < MAX_COUNT || curStartSyncDate.equals(curEndSyncDate)) {
+            if(!needsSplit(responseArray, curStartSyncDate, curEndSyncDate)) {
                 //the current array is less than the limit or our start and end date are the same and we can't further divide so we just return what we have
                 return responseArray;
             } else {
-                //we got back the max amount of responses which means we're missing some, break it into pieces and recurse
-                Long midWayPoint = (curStartSyncDate + curEndSyncDate) / 2;
-                JSONArray firstHalfResponses = getResponses(curStartSyncDate, midWayPoint);
-                JSONArray secondHalfResponses = getResponses(midWayPoint + 1, curEndSyncDate);
-                //then add all the second half elements to the first half and return the resulting merged array
-                for(int i = 0; i < secondHalfResponses.length(); i++) {
-                    firstHalfResponses.put(secondHalfResponses.get(i));
+                //we got back the max amount of responses which means we're missing some, keep what the page covered and fetch the rest in pieces
+                ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(responseArray, curStartSyncDate, curEndSyncDate);
+                JSONArray responses = split.getKept();
+                JSONArray remaining = getResponses(split.getWindows());
+                for(int i = 0; i < remaining.length(); i++) {
+                    responses.put(remaining.get(i));
+                }
+                return responses;
+            }
+        }
+    }
+
+    //the windows in order, merged into one array. with a split executor every window but the first gets its own thread while this one does the first
+    private JSONArray getResponses(List<long[]> windows) throws Exception {
+        List<Future<JSONArray>> others = Lists.newArrayList();
+        if(splitExecutor != null) {
+            for(final long[] window : windows.subList(1, windows.size())) {
+                others.add(splitExecutor.submit(new Callable<JSONArray>() {
+                    @Override
+                    public JSONArray call() throws Exception {
+                        return getResponses(window[0], window[1]);
+                    }
+                }));
+            }
+        }
+        List<JSONArray> responses = Lists.newArrayList();
+        try {
+            responses.add(getResponses(windows.get(0)[0], windows.get(0)[1]));
+            if(splitExecutor == null) {
+                for(long[] window : windows.subList(1, windows.size())) {
+                    responses.add(getResponses(window[0], window[1]));
+                }
+            } else {
+                for(Future<JSONArray> other : others) {
+                    responses.add(other.get());
                 }
-                return firstHalfResponses;
             }
+        } catch (ExecutionException ee) {
+            Throwables.propagateIfPossible(ee.getCause(), Exception.class);
+            throw new Exception(ee.getCause());
+        } finally {
+            //anything still going after a failure is wasted, the whole call gets retried
+            for(Future<JSONArray> other : others) {
+                other.cancel(true);
+            }
+        }
+        return MERGE_RESPONSES.apply(responses);
+    }
+
+    private String sendRequest(final String contactActivityUrl) throws Exception {
+        if(hedger == null) {
+            return sendLimitedRequest(contactActivityUrl);
+        }
+        //each copy of a hedged request takes its own slot from the limiter
+        return hedger.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return sendLimitedRequest(contactActivityUrl);
+            }
+        });
+    }
+
+    //only holds a slot for the request itself, never while waiting on the other half of a split
+    private String sendLimitedRequest(String contactActivityUrl) throws Exception {
+        if(requestLimiter != null) {
+            requestLimiter.acquire();
+        }
+        //timed from here, the wait for a slot isn't part of the request's latency
+        long startNanos = System.nanoTime();
+        boolean dropped = true;
+        try {
+            String response = WebUtilities.sendGetRequest(contactActivityUrl, timeout, retries, headerProperties);
+            dropped = false;
+            if(hedger != null) {
+                hedger.recordLatency(System.nanoTime() - startNanos);
+            }
+            return response;
+        } catch (WebRequestException wre) {
+            //timeouts, 429s and 5xx that outlasted their retries say the api is struggling, a 4xx says nothing about load
+            dropped = wre.isRetryable();
+            throw wre;
+        } finally {
+            if(requestLimiter != null) {
+                //a cancelled request, e.g. the losing copy of a hedged one, was interrupted rather than dropped by the api
+                requestLimiter.release(System.nanoTime() - startNanos, dropped && !Thread.currentThread().isInterrupted());
+            }
+        }
+    }
+
+    private ListenableFuture<JSONArray> getResponsesAsync(List<long[]> windows) {
+        List<ListenableFuture<JSONArray>> responses = Lists.newArrayList();
+        for(long[] window : windows) {
+            responses.add(getResponsesAsync(window[0], window[1]));
+        }
+        return (responses.size() == 1) ? responses.get(0) : Futures.transform(Futures.allAsList(responses), MERGE_RESPONSES);
+    }
+
+    private ListenableFuture<JSONArray> getResponsesAsync(final Long curStartSyncDate, final Long curEndSyncDate) {
+        final String contactActivityUrl = String.format("%s/data/activities/contact/%s?type=%s&startDate=%s&endDate=%s&count=%s",
+                baseURL, contactId, activityType, curStartSyncDate, curEndSyncDate, MAX_COUNT);
+        ListenableFuture<String> response;
+        if(hedger == null) {
+            response = AsyncWebUtilities.sendGetRequest(contactActivityUrl, timeout, retries, headerProperties);
+        } else {
+            //each copy takes its own slot from the limiter, same as the blocking path
+            response = hedger.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return sendLimitedRequest(contactActivityUrl);
+                }
+            });
         }
+        return Futures.transform(response, new AsyncFunction<String, JSONArray>() {
+            @Override
+            public ListenableFuture<JSONArray> apply(String response) throws Exception {
+                if(response.isEmpty()) {
+                    return Futures.immediateFuture(new JSONArray());
+                }
+                JSONArray responseArray = new JSONArray(response);
+                if(!needsSplit(responseArray, curStartSyncDate, curEndSyncDate)) {
+                    return Futures.immediateFuture(responseArray);
+                }
+                //same split as getResponses, but all the pieces go out at once and we merge when they've all come back
+                ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(responseArray, curStartSyncDate, curEndSyncDate);
+                List<ListenableFuture<JSONArray>> pieces = Lists.newArrayListWithCapacity(2);
+                pieces.add(Futures.immediateFuture(split.getKept()));
+                pieces.add(getResponsesAsync(split.getWindows()));
+                return Futures.transform(Futures.allAsList(pieces), MERGE_RESPONSES);
+            }
+        });
     }
+
+    //a full page means there may be more, unless the window is already down to a single point in time
+    private static boolean needsSplit(JSONArray responseArray, Long curStartSyncDate, Long curEndSyncDate) {
+        return responseArray.length() >= MAX_COUNT && !curStartSyncDate.equals(curEndSyncDate);
+    }
+
+    private static final Function<List<JSONArray>, JSONArray> MERGE_RESPONSES = new Function<List<JSONArray>, JSONArray>() {
+        @Override
+        public JSONArray apply(List<JSONArray> responses) {
+            JSONArray merged = new JSONArray();
+            for(JSONArray response : responses) {
+                for(int i = 0; i < response.length(); i++) {
+                    merged.put(response.opt(i));
+                }
+            }
+            return merged;
+        }
+    };
 }
@@ -0,0 +1,108 @@
+package io.ntropy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Properties;
+
+/*
+The base url login.eloqua.com/id gave each company and user, and when, e.g.
+    mycompany\\api.user.base=https://secure.p03.eloqua.com
+    mycompany\\api.user.fetched=1404172800000
+so a run can skip the login round trip while the entry is younger than the ttl. Pods only move now and then, and when
+one does the old base starts answering with redirects or auth errors: WebUtilities reports those here, and a failure
+against the cached base drops the entry so the next run looks it up again. Nothing secret is kept, only the url.
+Saved the same way as the sync checkpoints, to a temp file that's renamed over the original.
+ */
+public class EndpointCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointCache.class);
+
+    private File file;
+    private long ttlMillis;
+    private Properties endpoints = new Properties();
+    //the entry this run is using, so a failure against it knows what to drop
+    private String activeKey;
+    private String activeBase;
+
+    public EndpointCache(String fileName, long ttlMillis) {
+        this.file = new File(fileName);
+        this.ttlMillis = ttlMillis;
+    }
+
+    //the cached base url for the company and user, null if there isn't one or it's past the ttl
+    public synchronized String getBaseEndpoint(String companyName, String username) throws IOException {
+        load();
+        String key = key(companyName, username);
+        String base = endpoints.getProperty(key + ".base");
+        String fetched = endpoints.getProperty(key + ".fetched");
+        if(base == null || fetched == null) {
+            return null;
+        }
+        long ageMillis;
+        try {
+            ageMillis = System.currentTimeMillis() - Long.parseLong(fetched);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+        if(ageMillis < 0 || ageMillis >= ttlMillis) {
+            LOG.info("cached endpoint for {} is {} minutes old, looking it up again", key, ageMillis / 60000);
+            return null;
+        }
+        activeKey = key;
+        activeBase = base;
+        LOG.info("using the cached endpoint {} for {}", base, key);
+        return base;
+    }
+
+    public synchronized void put(String companyName, String username, String base) throws IOException {
+        activeKey = key(companyName, username);
+        activeBase = base;
+        endpoints.setProperty(activeKey + ".base", base);
+        endpoints.setProperty(activeKey + ".fetched", Long.toString(System.currentTimeMillis()));
+        save();
+    }
+
+    //called for every request that failed without a retry helping, only redirects and auth errors against the base in use count
+    public synchronized void requestFailed(String url, WebRequestException error) {
+        WebRequestException.ErrorClass errorClass = error.getErrorClass();
+        if(activeBase == null || !url.startsWith(activeBase)
+                || (errorClass != WebRequestException.ErrorClass.REDIRECT && errorClass != WebRequestException.ErrorClass.AUTH_ERROR)) {
+            return;
+        }
+        LOG.warn("{} from the cached endpoint {}, dropping it so the next run logs in again", errorClass, activeBase);
+        endpoints.remove(activeKey + ".base");
+        endpoints.remove(activeKey + ".fetched");
+        activeBase = null;
+        try {
+            save();
+        } catch (IOException ioe) {
+            LOG.error(String.format("couldn't drop the cached endpoint from %s", file), ioe);
+        }
+    }
+
+    private void load() throws IOException {
+        endpoints = new Properties();
+        if(!file.exists()) {
+            return;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            endpoints.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save() throws IOException {
+        PropertiesFiles.save(endpoints, file, "eloqua base url per company and user, and when it was looked up");
+    }
+
+    private static String key(String companyName, String username) {
+        return (companyName + "\\" + username).toLowerCase(Locale.ENGLISH);
+    }
+}
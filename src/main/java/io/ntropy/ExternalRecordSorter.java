@@ -0,0 +1,363 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+Sorts more records than fit in memory. A record is RECORD_LONGS longs ordered on the first SORT_LONGS of them. Records
+are collected into run buffers of runRecords, and each full buffer is sorted in place and spilled to a run file on a
+pool of sort threads while the next one fills. Buffers are only allocated as they're needed and there are never more
+than memoryBytes worth of them, so a sorter that only ever sees a few records costs one small buffer and a big one
+stays inside its budget however many cores there are. There's a sort thread for every buffer but the one filling, up
+to one per core, and add blocks if every buffer is busy being sorted. merge lets go of the buffers and k-way merges the
+runs back into one sorted stream, with extra passes over merged runs when there are more than MAX_FAN_IN of them so
+the number of open files stays bounded too.
+ */
+public class ExternalRecordSorter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalRecordSorter.class);
+
+    public static final int RECORD_LONGS = 5;
+    private static final int SORT_LONGS = 3;
+    private static final int MAX_FAN_IN = 128;
+    private static final int IO_BUFFER_BYTES = 64 * 1024;
+    //below this many records a range is insertion sorted
+    private static final int INSERTION_SORT_RECORDS = 16;
+
+    public interface RecordHandler {
+        //the array is reused for the next record, copy anything that needs to outlive the call
+        void handle(long[] record) throws Exception;
+    }
+
+    private File tempDirectory;
+    private String name;
+    private int runRecords;
+    private int maxBuffers;
+    private ExecutorService sortPool;
+    private BlockingQueue<long[]> freeBuffers;
+    //only touched under the lock
+    private int allocatedBuffers = 0;
+    private List<Future<File>> runs = Lists.newArrayList();
+    private List<File> runFiles = Lists.newArrayList();
+    private int runSequence = 0;
+
+    private long[] buffer;
+    private int bufferRecords = 0;
+    private long totalRecords = 0;
+
+    //memoryBytes is what the run buffers can take between them, runs are made shorter if it won't hold even one
+    public ExternalRecordSorter(File tempDirectory, String name, int runRecords, long memoryBytes) {
+        this.tempDirectory = tempDirectory;
+        this.name = name;
+        long recordBytes = 8L * RECORD_LONGS;
+        this.runRecords = (int) Math.max(1, Math.min(runRecords, memoryBytes / recordBytes));
+        long bufferBytes = recordBytes * this.runRecords;
+        //one filling and one per sorting thread, more than a thread per core wouldn't sort any faster
+        this.maxBuffers = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() + 1, memoryBytes / bufferBytes));
+        int threads = Math.max(1, maxBuffers - 1);
+        this.sortPool = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-sort-%d").build());
+        this.freeBuffers = new ArrayBlockingQueue<long[]>(maxBuffers);
+    }
+
+    public synchronized void add(long a, long b, long c, long d, long e) throws IOException {
+        if(buffer == null) {
+            buffer = takeBuffer();
+        }
+        int offset = bufferRecords * RECORD_LONGS;
+        buffer[offset] = a;
+        buffer[offset + 1] = b;
+        buffer[offset + 2] = c;
+        buffer[offset + 3] = d;
+        buffer[offset + 4] = e;
+        totalRecords++;
+        if(++bufferRecords == runRecords) {
+            spill();
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return totalRecords;
+    }
+
+    //hands every record to the handler in sorted order. only call once everything has been added
+    public void merge(RecordHandler handler) throws Exception {
+        List<File> sortedRuns;
+        synchronized(this) {
+            spill();
+            sortedRuns = Lists.newArrayList();
+            for(Future<File> run : runs) {
+                try {
+                    sortedRuns.add(run.get());
+                } catch (ExecutionException ee) {
+                    throw new IOException(String.format("sorting a %s run failed", name), ee.getCause());
+                }
+            }
+            //every run's on disk, the merge only needs its read buffers
+            freeBuffers.clear();
+            allocatedBuffers = 0;
+        }
+        LOG.info("merging {} {} records from {} sorted runs", totalRecords, name, sortedRuns.size());
+        while(sortedRuns.size() > MAX_FAN_IN) {
+            sortedRuns = mergePass(sortedRuns);
+        }
+        mergeRuns(sortedRuns, handler);
+    }
+
+    @Override
+    public void close() {
+        sortPool.shutdownNow();
+        synchronized(runFiles) {
+            for(File run : runFiles) {
+                if(run.exists() && !run.delete()) {
+                    LOG.warn("couldn't delete sort run {}", run);
+                }
+            }
+        }
+    }
+
+    private long[] takeBuffer() throws IOException {
+        long[] free = freeBuffers.poll();
+        if(free != null) {
+            return free;
+        }
+        if(allocatedBuffers < maxBuffers) {
+            allocatedBuffers++;
+            return new long[runRecords * RECORD_LONGS];
+        }
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a sort buffer");
+        }
+    }
+
+    private void spill() throws IOException {
+        if(bufferRecords == 0) return;
+        final long[] full = buffer;
+        final int records = bufferRecords;
+        final File runFile = newRunFile();
+        buffer = null;
+        bufferRecords = 0;
+        runs.add(sortPool.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                try {
+                    sort(full, 0, records - 1);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), IO_BUFFER_BYTES));
+                    try {
+                        out.writeLong(records);
+                        for(int i = 0; i < records * RECORD_LONGS; i++) {
+                            out.writeLong(full[i]);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    return runFile;
+                } finally {
+                    freeBuffers.put(full);
+                }
+            }
+        }));
+    }
+
+    private File newRunFile() throws IOException {
+        if(!tempDirectory.isDirectory() && !tempDirectory.mkdirs()) {
+            throw new IOException(String.format("couldn't create sort directory %s", tempDirectory));
+        }
+        File run = new File(tempDirectory, String.format("%s-%05d.run", name, runSequence++));
+        synchronized(runFiles) {
+            runFiles.add(run);
+        }
+        return run;
+    }
+
+    //merges groups of MAX_FAN_IN runs into longer runs, in parallel
+    private List<File> mergePass(List<File> sortedRuns) throws Exception {
+        List<Future<File>> merged = Lists.newArrayList();
+        for(int start = 0; start < sortedRuns.size(); start += MAX_FAN_IN) {
+            final List<File> group = sortedRuns.subList(start, Math.min(sortedRuns.size(), start + MAX_FAN_IN));
+            final File mergedRun;
+            synchronized(this) {
+                mergedRun = newRunFile();
+            }
+            merged.add(sortPool.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    long records = 0;
+                    for(File run : group) {
+                        records += readRecordCount(run);
+                    }
+                    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRun), IO_BUFFER_BYTES));
+                    try {
+                        out.writeLong(records);
+                        mergeRuns(group, new RecordHandler() {
+                            @Override
+                            public void handle(long[] record) throws IOException {
+                                for(long l : record) out.writeLong(l);
+                            }
+                        });
+                    } finally {
+                        out.close();
+                    }
+                    for(File run : group) {
+                        run.delete();
+                    }
+                    return mergedRun;
+                }
+            }));
+        }
+        List<File> mergedRuns = Lists.newArrayList();
+        for(Future<File> run : merged) {
+            try {
+                mergedRuns.add(run.get());
+            } catch (ExecutionException ee) {
+                throw new IOException(String.format("merging %s runs failed", name), ee.getCause());
+            }
+        }
+        return mergedRuns;
+    }
+
+    private static class RunReader {
+        private DataInputStream in;
+        private long remaining;
+        private long[] current = new long[RECORD_LONGS];
+
+        private RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER_BYTES));
+            remaining = in.readLong();
+        }
+
+        //false once the run is used up
+        private boolean next() throws IOException {
+            if(remaining == 0) return false;
+            for(int i = 0; i < RECORD_LONGS; i++) {
+                current[i] = in.readLong();
+            }
+            remaining--;
+            return true;
+        }
+    }
+
+    private static final Comparator<RunReader> BY_CURRENT_RECORD = new Comparator<RunReader>() {
+        @Override
+        public int compare(RunReader a, RunReader b) {
+            for(int i = 0; i < SORT_LONGS; i++) {
+                int c = compareLongs(a.current[i], b.current[i]);
+                if(c != 0) return c;
+            }
+            return 0;
+        }
+    };
+
+    private static void mergeRuns(List<File> sortedRuns, RecordHandler handler) throws Exception {
+        PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>(Math.max(1, sortedRuns.size()), BY_CURRENT_RECORD);
+        List<RunReader> opened = Lists.newArrayList();
+        try {
+            for(File run : sortedRuns) {
+                RunReader reader = new RunReader(run);
+                opened.add(reader);
+                if(reader.next()) readers.add(reader);
+            }
+            while(!readers.isEmpty()) {
+                RunReader reader = readers.poll();
+                handler.handle(reader.current);
+                if(reader.next()) readers.add(reader);
+            }
+        } finally {
+            for(RunReader reader : opened) {
+                reader.in.close();
+            }
+        }
+    }
+
+    private static long readRecordCount(File run) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(run));
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    //quicksort of the records in place, recursing into the smaller side so the stack stays shallow
+    private static void sort(long[] records, int low, int high) {
+        while(high - low >= INSERTION_SORT_RECORDS) {
+            int middle = (low + high) >>> 1;
+            //median of three to the middle, then use it as the pivot
+            if(compare(records, middle, low) < 0) swap(records, middle, low);
+            if(compare(records, high, low) < 0) swap(records, high, low);
+            if(compare(records, high, middle) < 0) swap(records, high, middle);
+            swap(records, middle, high - 1);
+            int pivot = high - 1;
+            int i = low;
+            int j = high - 1;
+            while(true) {
+                while(compare(records, ++i, pivot) < 0) ;
+                while(j > low && compare(records, --j, pivot) > 0) ;
+                if(i >= j) break;
+                swap(records, i, j);
+            }
+            swap(records, i, high - 1);
+            if(i - low < high - i) {
+                sort(records, low, i - 1);
+                low = i + 1;
+            } else {
+                sort(records, i + 1, high);
+                high = i - 1;
+            }
+        }
+        for(int i = low + 1; i <= high; i++) {
+            for(int j = i; j > low && compare(records, j, j - 1) < 0; j--) {
+                swap(records, j, j - 1);
+            }
+        }
+    }
+
+    private static int compare(long[] records, int a, int b) {
+        int aOffset = a * RECORD_LONGS;
+        int bOffset = b * RECORD_LONGS;
+        for(int i = 0; i < SORT_LONGS; i++) {
+            int c = compareLongs(records[aOffset + i], records[bOffset + i]);
+            if(c != 0) return c;
+        }
+        return 0;
+    }
+
+    private static int compareLongs(long a, long b) {
+        return (a < b) ? -1 : ((a == b) ? 0 : 1);
+    }
+
+    private static void swap(long[] records, int a, int b) {
+        int aOffset = a * RECORD_LONGS;
+        int bOffset = b * RECORD_LONGS;
+        for(int i = 0; i < RECORD_LONGS; i++) {
+            long temp = records[aOffset + i];
+            records[aOffset + i] = records[bOffset + i];
+            records[bOffset + i] = temp;
+        }
+    }
+}
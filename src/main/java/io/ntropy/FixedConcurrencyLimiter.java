@@ -0,0 +1,34 @@
+package io.ntropy;
+
+import java.util.concurrent.Semaphore;
+
+public class FixedConcurrencyLimiter implements ConcurrencyLimiter {
+
+    private int limit;
+    private Semaphore permits;
+
+    public FixedConcurrencyLimiter(int limit) {
+        this.limit = limit;
+        this.permits = new Semaphore(limit);
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        permits.acquire();
+    }
+
+    @Override
+    public void release(long latencyNanos, boolean dropped) {
+        permits.release();
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fixed limit %s with %s in flight", limit, limit - permits.availablePermits());
+    }
+}
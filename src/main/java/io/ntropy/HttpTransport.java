@@ -0,0 +1,166 @@
+package io.ntropy;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/*
+Persistent connection transport underneath WebUtilities.
+HttpURLConnection already keeps a per host:port keep-alive cache, but a socket only goes back into it when the response
+body has been read to the end and closed without calling disconnect(), and an https socket is only reused when it was
+opened through the same SSLSocketFactory instance. So every exchange here drains and closes its stream, all https
+connections share one factory (and with it one TLS session cache), and the number of connections open to any one host
+is capped so the keep-alive cache can actually hold all of them.
+ */
+public class HttpTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpTransport.class);
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+    private static final int TLS_SESSION_CACHE_SIZE = 256;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private int maxConnectionsPerHost;
+    private SSLSocketFactory sslSocketFactory;
+    private ConcurrentMap<String, Semaphore> hostPermits = Maps.newConcurrentMap();
+
+    public HttpTransport(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        //read by the jdk's keep-alive cache the first time it's used, so this has to be set before the first request
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(maxConnectionsPerHost));
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            sslSocketFactory = sslContext.getSocketFactory();
+        } catch (Exception e) {
+            LOG.warn("couldn't set up a shared TLS context, falling back to the default socket factory", e);
+            sslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+    }
+
+    //sends a single request with no retries. the handler only sees successful responses, errors come back buffered in the WebResponse
+    public <T> WebResponse<T> execute(String url, String requestType, Map<String, String> headerProperties, String body,
+                                      int timeout, WebUtilities.ResponseHandler<T> handler) throws Exception {
+        URL serverAddress = new URL(url);
+        Semaphore permits = getHostPermits(serverAddress);
+        permits.acquire();
+        HttpURLConnection connection = null;
+        CountingInputStream responseStream = null;
+        boolean reusable = false;
+        try {
+            connection = (HttpURLConnection) serverAddress.openConnection();
+            if(connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+            }
+            connection.setRequestMethod(requestType);
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            for(Map.Entry<String,String> requestProperty : headerProperties.entrySet()) {
+                connection.addRequestProperty(requestProperty.getKey(), requestProperty.getValue());
+            }
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setDoOutput(body != null);
+
+            //connect on its own so a failure to get a connection can be told apart from a slow response
+            try {
+                connection.connect();
+            } catch (SocketTimeoutException ste) {
+                throw new WebRequestException(WebRequestException.ErrorClass.CONNECT_TIMEOUT, url, ste);
+            } catch (IOException ioe) {
+                throw new WebRequestException(WebRequestException.ErrorClass.CONNECTION_FAILURE, url, ioe);
+            }
+
+            //when the request is a GET this will be null. On a post, even if the body is empty,
+            // some servers (e.g. eloqua) require a body to be written, even if it's empty.
+            if(body != null) {
+                final OutputStream os = connection.getOutputStream();
+                os.write(body.getBytes("UTF-8"));
+                os.flush();
+                os.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+            InputStream rawStream = (responseCode < 300) ? connection.getInputStream() : connection.getErrorStream();
+            //counted before decoding so the stats show what actually came over the wire
+            responseStream = (rawStream == null) ? null : new CountingInputStream(rawStream);
+            WebResponse<T> response;
+            if(responseCode < 300) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(decode(connection, responseStream), "UTF-8"));
+                response = new WebResponse<T>(responseCode, connection.getHeaderFields(), handler.handleResponse(reader), null);
+            } else {
+                String errorBody = (responseStream == null) ? null : readFully(new BufferedReader(new InputStreamReader(decode(connection, responseStream), "UTF-8")));
+                response = new WebResponse<T>(responseCode, connection.getHeaderFields(), null, errorBody);
+            }
+
+            //anything the handler didn't read has to be drained before the socket can be reused
+            if(responseStream != null) {
+                ByteStreams.copy(responseStream, ByteStreams.nullOutputStream());
+            }
+            reusable = true;
+            return response;
+        } finally {
+            if(responseStream != null) {
+                SyncStatistics.recordBytesDownloaded(responseStream.getCount());
+            }
+            Closeables.close(responseStream, true);
+            if(!reusable && connection != null) {
+                //a half read response can't go back into the keep-alive cache
+                connection.disconnect();
+            }
+            permits.release();
+        }
+    }
+
+    private Semaphore getHostPermits(URL serverAddress) {
+        String host = String.format("%s://%s:%s", serverAddress.getProtocol(), serverAddress.getHost(), serverAddress.getPort());
+        Semaphore permits = hostPermits.get(host);
+        if(permits == null) {
+            Semaphore newPermits = new Semaphore(maxConnectionsPerHost);
+            permits = hostPermits.putIfAbsent(host, newPermits);
+            if(permits == null) permits = newPermits;
+        }
+        return permits;
+    }
+
+    private static InputStream decode(HttpURLConnection connection, InputStream responseStream) throws IOException {
+        String contentEncoding = connection.getContentEncoding();
+        if("gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(responseStream);
+        } else if("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(responseStream);
+        }
+        return responseStream;
+    }
+
+    static String readFully(BufferedReader reader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+}
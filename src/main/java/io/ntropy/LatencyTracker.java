@@ -0,0 +1,45 @@
+package io.ntropy;
+
+import java.util.Arrays;
+
+/*
+Percentiles over a sliding window of the most recent request latencies. The sorted copy used to answer percentile
+queries is only rebuilt every so many samples, so asking on every request stays cheap.
+ */
+public class LatencyTracker {
+
+    //no answer until we've seen enough requests for a percentile to mean something
+    private static final int MIN_SAMPLES = 100;
+    private static final int SAMPLES_BETWEEN_SNAPSHOTS = 128;
+
+    private long[] samples;
+    private int count = 0;
+    private int next = 0;
+    private long[] snapshot = new long[0];
+    private int samplesSinceSnapshot = 0;
+
+    public LatencyTracker(int window) {
+        this.samples = new long[window];
+    }
+
+    public synchronized void record(long latencyNanos) {
+        samples[next] = latencyNanos;
+        next = (next + 1) % samples.length;
+        if(count < samples.length) count++;
+        samplesSinceSnapshot++;
+    }
+
+    //latency in nanos that the given fraction of recent requests came in under, -1 until there are enough samples
+    public synchronized long percentile(double fraction) {
+        if(count < MIN_SAMPLES) {
+            return -1;
+        }
+        if(samplesSinceSnapshot >= SAMPLES_BETWEEN_SNAPSHOTS || snapshot.length < MIN_SAMPLES) {
+            snapshot = Arrays.copyOf(samples, count);
+            Arrays.sort(snapshot);
+            samplesSinceSnapshot = 0;
+        }
+        int index = (int) Math.ceil(fraction * snapshot.length) - 1;
+        return snapshot[Math.max(0, Math.min(index, snapshot.length - 1))];
+    }
+}
@@ -0,0 +1,102 @@
+package io.ntropy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Runs every task on its own small-stack daemon thread instead of queueing it behind a fixed number of workers, so blocking
+code can stay blocking while concurrency is set by a permit budget rather than by pool size. When maxLiveTasks is set,
+execute() blocks the submitter until a running task finishes, which keeps a big submission loop from spawning a thread
+per queued task.
+This is the java 6 stand-in for a virtual thread per task executor.
+ */
+public class LightweightThreadExecutor extends AbstractExecutorService {
+
+    //the callbacks only go a few frames deep into the http stack, the usual 1MB default stack is mostly wasted
+    private static final long STACK_SIZE = 256 * 1024L;
+
+    private Semaphore taskPermits;
+    private String namePrefix;
+    private AtomicInteger threadCount = new AtomicInteger();
+    private AtomicInteger liveTasks = new AtomicInteger();
+    private volatile boolean shutdown = false;
+    private final Object terminationLock = new Object();
+
+    //maxLiveTasks <= 0 means no limit on running tasks
+    public LightweightThreadExecutor(int maxLiveTasks, String namePrefix) {
+        this.taskPermits = (maxLiveTasks > 0) ? new Semaphore(maxLiveTasks) : null;
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if(shutdown) {
+            throw new RejectedExecutionException(String.format("%s executor has been shut down", namePrefix));
+        }
+        if(taskPermits != null) {
+            taskPermits.acquireUninterruptibly();
+        }
+        liveTasks.incrementAndGet();
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    command.run();
+                } finally {
+                    if(taskPermits != null) {
+                        taskPermits.release();
+                    }
+                    if(liveTasks.decrementAndGet() == 0) {
+                        synchronized (terminationLock) {
+                            terminationLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        }, String.format("%s-%s", namePrefix, threadCount.incrementAndGet()), STACK_SIZE);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    //nothing is ever queued, so there's nothing to hand back. running tasks are left to finish
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && liveTasks.get() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (terminationLock) {
+            while(!isTerminated()) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if(remainingMillis <= 0) {
+                    return false;
+                }
+                terminationLock.wait(remainingMillis);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/*
+Writes activities to gzipped newline delimited json files, one record per line:
+    {"source":"rest","activityType":"emailOpen","activity":{...}}
+Each file holds up to maxFileBytes of utf-8 encoded json before moving on to the next one.
+ */
+public class NdjsonActivitySink extends BackgroundActivitySink {
+
+    private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+
+    private long maxFileBytes;
+
+    //only touched by the writer thread
+    private File partialFile;
+    private FileChannel channel;
+    private OutputStream fileOut;
+    private GZIPOutputStream gzipOut;
+    private OutputStream lineOut;
+    private long fileBytes = 0;
+    private long fileLines = 0;
+
+    public NdjsonActivitySink(String directoryName, long maxFileBytes) {
+        super(directoryName, "ndjson.gz");
+        this.maxFileBytes = maxFileBytes;
+    }
+
+    //serialised and encoded on the calling thread so the json work is spread across the fetch threads
+    @Override
+    protected Object toRecord(SyncStatistics.Source source, String activityType, JSONObject activity) {
+        StringBuilder line = new StringBuilder(256);
+        line.append("{\"source\":").append(JSONObject.quote(source.name().toLowerCase(Locale.ENGLISH)))
+                .append(",\"activityType\":").append(JSONObject.quote(activityType))
+                .append(",\"activity\":").append(activity.toString()).append("}\n");
+        return line.toString().getBytes(Charsets.UTF_8);
+    }
+
+    @Override
+    protected void writeRecord(Object record) throws IOException {
+        byte[] line = (byte[]) record;
+        if(lineOut == null) {
+            openFile();
+        }
+        lineOut.write(line);
+        fileBytes += line.length;
+        fileLines++;
+        if(fileBytes >= maxFileBytes) {
+            finishFile();
+        }
+    }
+
+    @Override
+    protected void finishFile() throws IOException {
+        if(lineOut == null) return;
+        lineOut.flush();
+        gzipOut.finish();
+        fileOut.flush();
+        channel.force(true);
+        long compressedBytes = channel.size();
+        lineOut.close();
+        lineOut = null;
+        completeFile(partialFile, fileLines, fileBytes, compressedBytes);
+    }
+
+    @Override
+    protected void abandonFile() {
+        if(lineOut == null) return;
+        try {
+            lineOut.close();
+        } catch (IOException ioe) {
+            //the file's already no good, we just don't want to leak the handle
+        }
+        lineOut = null;
+    }
+
+    private void openFile() throws IOException {
+        partialFile = newPartialFile();
+        channel = new FileOutputStream(partialFile).getChannel();
+        fileOut = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_BYTES);
+        gzipOut = new GZIPOutputStream(fileOut, WRITE_BUFFER_BYTES) {
+            {
+                //the writer has to keep up with the fan-out, a better ratio isn't worth the cpu
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+        lineOut = new BufferedOutputStream(gzipOut, WRITE_BUFFER_BYTES);
+        fileBytes = 0;
+        fileLines = 0;
+    }
+}
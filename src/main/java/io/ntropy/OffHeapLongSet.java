@@ -0,0 +1,114 @@
+package io.ntropy;
+
+import java.nio.ByteBuffer;
+
+/*
+Open addressing set of longs with linear probing, kept in a ByteBuffer so it can live off heap, either in a direct
+buffer or memory mapped from a file. Layout:
+    0   magic
+    8   capacity, a power of two
+    16  size
+    64  capacity slots of 8 bytes, 0 meaning empty
+0 can't be stored, callers have to map it to something else. Not thread safe.
+ */
+public class OffHeapLongSet {
+
+    public static final int HEADER_BYTES = 64;
+    //past this fraction of slots filled probes get long, so callers should grow the set
+    public static final double MAX_LOAD = 0.7;
+
+    private static final long MAGIC = 0x4541444544555031L; //"EADEDUP1"
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+
+    private ByteBuffer buffer;
+    private int capacity;
+    private int mask;
+    private int size;
+
+    private OffHeapLongSet(ByteBuffer buffer, int capacity, int size) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.size = size;
+    }
+
+    public static long bytesFor(int capacity) {
+        return HEADER_BYTES + 8L * capacity;
+    }
+
+    //formats a zeroed buffer of bytesFor(capacity) as an empty set
+    public static OffHeapLongSet create(ByteBuffer buffer, int capacity) {
+        if(Integer.bitCount(capacity) != 1 || buffer.capacity() < bytesFor(capacity)) {
+            throw new IllegalArgumentException(String.format("capacity %s isn't a power of two that fits in %s bytes", capacity, buffer.capacity()));
+        }
+        buffer.putLong(0, MAGIC);
+        buffer.putLong(CAPACITY_OFFSET, capacity);
+        buffer.putLong(SIZE_OFFSET, 0);
+        return new OffHeapLongSet(buffer, capacity, 0);
+    }
+
+    //reads back a set written by create, null if the buffer doesn't hold one
+    public static OffHeapLongSet open(ByteBuffer buffer) {
+        if(buffer.capacity() < HEADER_BYTES || buffer.getLong(0) != MAGIC) {
+            return null;
+        }
+        long capacity = buffer.getLong(CAPACITY_OFFSET);
+        if(capacity <= 0 || capacity > Integer.MAX_VALUE || Long.bitCount(capacity) != 1 || buffer.capacity() < bytesFor((int) capacity)) {
+            return null;
+        }
+        long size = buffer.getLong(SIZE_OFFSET);
+        return new OffHeapLongSet(buffer, (int) capacity, (int) Math.max(0, Math.min(size, capacity)));
+    }
+
+    public boolean contains(long key) {
+        for(int slot = slotFor(key); ; slot = (slot + 1) & mask) {
+            long existing = buffer.getLong(offset(slot));
+            if(existing == key) return true;
+            if(existing == 0) return false;
+        }
+    }
+
+    //false if it was already there. the caller has to keep the set under MAX_LOAD, a full set would probe forever
+    public boolean add(long key) {
+        if(key == 0) {
+            throw new IllegalArgumentException("0 marks an empty slot and can't be stored");
+        }
+        for(int slot = slotFor(key); ; slot = (slot + 1) & mask) {
+            int offset = offset(slot);
+            long existing = buffer.getLong(offset);
+            if(existing == key) return false;
+            if(existing == 0) {
+                buffer.putLong(offset, key);
+                buffer.putLong(SIZE_OFFSET, ++size);
+                return true;
+            }
+        }
+    }
+
+    //the raw slot, 0 if it's empty, for copying the set into a bigger one
+    public long getSlot(int slot) {
+        return buffer.getLong(offset(slot));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size >= capacity * MAX_LOAD;
+    }
+
+    //the keys are already well mixed hashes, so the low bits will do
+    private int slotFor(long key) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * 8;
+    }
+}
@@ -0,0 +1,218 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+
+/*
+Append-only record of how far the REST activity calls have got, so a run that dies part way can pick up where it left
+off instead of starting over. One line per record:
+    window <startSeconds> <endSeconds>          the window the run is syncing, always the first line
+    done <activityType,activityType,...> <contactIds> end
+                                                every one of those contacts has had its calls for those types processed
+    complete                                    the run finished, nothing to resume
+The contact ids are the exact contacts of a finished batch, written as runs like 1-5,7,9-12, never the range between
+a batch's first and last contact: streamed batches come in export order, so that range can hold contacts belonging to
+batches that are still going. A batch only lists the types none of its calls were dead lettered for, and a contact is
+only skipped on resume if it was done for every type, so calls that were given up on get another go and pin the
+checkpoint again if they fail again.
+Lines are flushed as they're written but only fsynced every syncIntervalMillis (and on complete/close), so recording
+progress costs next to nothing. A crash can lose the last few records, which just means that work gets done again, and
+a torn last line is ignored since it's missing its end.
+ */
+public class ProgressJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProgressJournal.class);
+
+    private static final String WINDOW = "window";
+    private static final String DONE = "done";
+    private static final String COMPLETE = "complete";
+    private static final String END = "end";
+
+    private File file;
+    private List<String> activityTypes;
+    private long syncIntervalMillis;
+    private FileOutputStream out;
+    private Writer writer;
+    private long lastSyncMillis = 0;
+
+    private Long windowStart;
+    private Long windowEnd;
+    private boolean complete = false;
+    //contacts the loaded journal has done for every one of activityTypes. a run never sees the same contact twice, so
+    // what it records itself is only written out, not added here
+    private ContactIdSet completed = new ContactIdSet();
+
+    public ProgressJournal(String fileName, List<String> activityTypes, long syncIntervalMillis) {
+        this.file = new File(fileName);
+        this.activityTypes = activityTypes;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    //reads back a previous run's journal, returns true if it was for a run that didn't finish. contacts are only counted
+    // as done if they were done for every activity type
+    public synchronized boolean load() throws IOException {
+        if(!file.exists()) {
+            return false;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                List<String> fields = Lists.newArrayList(Splitter.on(' ').omitEmptyStrings().split(line));
+                try {
+                    if(fields.size() == 3 && WINDOW.equals(fields.get(0))) {
+                        windowStart = Long.valueOf(fields.get(1));
+                        windowEnd = Long.valueOf(fields.get(2));
+                    } else if(fields.size() == 4 && DONE.equals(fields.get(0)) && END.equals(fields.get(3))) {
+                        if(Splitter.on(',').splitToList(fields.get(1)).containsAll(activityTypes)) {
+                            completed.addAll(parseContactIds(fields.get(2)));
+                        }
+                    } else if(fields.size() == 1 && COMPLETE.equals(fields.get(0))) {
+                        complete = true;
+                    } else {
+                        LOG.warn("ignoring unreadable progress journal line '{}'", line);
+                    }
+                } catch (NumberFormatException nfe) {
+                    //most likely the last line, cut off by a crash
+                    LOG.warn("ignoring unreadable progress journal line '{}'", line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return windowStart != null && !complete;
+    }
+
+    public synchronized Long getWindowStart() {
+        return windowStart;
+    }
+
+    public synchronized Long getWindowEnd() {
+        return windowEnd;
+    }
+
+    public synchronized int getCompletedContactCount() {
+        return completed.size();
+    }
+
+    //starts a fresh journal for a new run, throwing away whatever was there
+    public synchronized void begin(long startSeconds, long endSeconds) throws IOException {
+        windowStart = startSeconds;
+        windowEnd = endSeconds;
+        complete = false;
+        completed = new ContactIdSet();
+        open(false);
+        append(String.format("%s %s %s", WINDOW, startSeconds, endSeconds), true);
+    }
+
+    //carries on appending to the journal that was loaded
+    public synchronized void resume() throws IOException {
+        open(true);
+    }
+
+    //the contacts have had their calls for doneTypes processed, the types left out of doneTypes had calls given up on
+    public synchronized void recordCompleted(ContactIdSet contacts, Collection<String> doneTypes) throws IOException {
+        if(contacts.isEmpty() || doneTypes.isEmpty()) {
+            return;
+        }
+        append(String.format("%s %s %s %s", DONE, Joiner.on(',').join(doneTypes), formatContactIds(contacts), END), false);
+    }
+
+    //the contacts that haven't already been done for every activity type
+    public synchronized ContactIdSet removeCompleted(ContactIdSet contacts) {
+        if(completed.isEmpty()) {
+            return contacts;
+        }
+        return contacts.difference(completed);
+    }
+
+    public synchronized void complete() throws IOException {
+        complete = true;
+        append(COMPLETE, true);
+        close();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(writer != null) {
+            sync();
+            writer.close();
+            writer = null;
+            out = null;
+        }
+    }
+
+    private void open(boolean append) throws IOException {
+        close();
+        out = new FileOutputStream(file, append);
+        writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    private void append(String record, boolean forceSync) throws IOException {
+        if(writer == null) {
+            throw new IOException(String.format("progress journal %s isn't open", file));
+        }
+        writer.write(record);
+        writer.write('\n');
+        //into the os right away so a killed process doesn't lose it, onto the disk in batches
+        writer.flush();
+        if(forceSync || System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        writer.flush();
+        out.getFD().sync();
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    //runs of consecutive ids, e.g. 1-5,7,9-12
+    private static String formatContactIds(ContactIdSet contacts) {
+        StringBuilder ids = new StringBuilder();
+        int i = 0;
+        while(i < contacts.size()) {
+            int first = contacts.get(i);
+            int last = first;
+            while(i + 1 < contacts.size() && contacts.get(i + 1) == last + 1) {
+                last = contacts.get(++i);
+            }
+            i++;
+            if(ids.length() > 0) ids.append(',');
+            ids.append(first);
+            if(last != first) ids.append('-').append(last);
+        }
+        return ids.toString();
+    }
+
+    private static ContactIdSet parseContactIds(String runs) {
+        ContactIdSet contacts = new ContactIdSet();
+        for(String run : Splitter.on(',').omitEmptyStrings().split(runs)) {
+            int dash = run.indexOf('-');
+            int first = Integer.parseInt((dash < 0) ? run : run.substring(0, dash));
+            int last = (dash < 0) ? first : Integer.parseInt(run.substring(dash + 1));
+            for(long id = first; id <= last; id++) {
+                contacts.add((int) id);
+            }
+        }
+        return contacts;
+    }
+}
@@ -0,0 +1,32 @@
+package io.ntropy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/*
+Saves the properties files that have to survive a crash part way through a save (checkpoints, the endpoint and density
+caches). The properties are written and synced to a temp file next to the real one, then renamed over it, so the file
+is always either the old contents or the new ones.
+ */
+public class PropertiesFiles {
+
+    public static void save(Properties properties, File file, String comments) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            properties.store(out, comments);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        //rename is atomic on the same filesystem, it only fails on platforms that won't rename over an existing file
+        if(!tempFile.renameTo(file)) {
+            if(!file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException(String.format("couldn't move %s over %s", tempFile, file));
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package io.ntropy;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Hedged requests: if a request is still outstanding once it's taken longer than the given percentile of recent requests,
+send the same request again and take whichever answer comes back first. A few slow eloqua pods otherwise set the pace
+for the whole run. Hedges are capped at a small fraction of all requests so a general slowdown doesn't double our load,
+and a failure is only reported once every copy that was sent has failed. Requests and their hedges run on a pool of
+maxRequests threads plus room for the hedges, so hedging can't grow the number of threads without bound. Callers that
+have a ConcurrencyLimiter acquire it inside the request they pass in, so every copy holds its own slot. The requests
+report their own latency with recordLatency, timed from when they actually go out, as time spent waiting on a limiter
+would otherwise stretch the hedge delay.
+ */
+public class RequestHedger {
+
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    private static final double MAX_HEDGE_FRACTION = 0.05;
+    private static final int LATENCY_WINDOW = 2048;
+
+    private ListeningExecutorService requestPool;
+    private ScheduledExecutorService hedgeTimer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hedge-timer").build());
+    private LatencyTracker latencies = new LatencyTracker(LATENCY_WINDOW);
+    private double hedgePercentile;
+
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong hedges = new AtomicLong();
+    private AtomicLong hedgeWins = new AtomicLong();
+
+    public RequestHedger(double hedgePercentile, int maxRequests) {
+        this.hedgePercentile = hedgePercentile;
+        int threads = maxRequests + (int) Math.ceil(maxRequests * MAX_HEDGE_FRACTION);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hedged-request-%d").build());
+        //idle threads go away, so a quiet run doesn't keep the whole pool around
+        pool.allowCoreThreadTimeOut(true);
+        this.requestPool = MoreExecutors.listeningDecorator(pool);
+    }
+
+    public <T> T call(Callable<T> request) throws Exception {
+        ListenableFuture<T> result = submit(request);
+        try {
+            return result.get();
+        } catch (InterruptedException ie) {
+            result.cancel(true);
+            throw ie;
+        } catch (ExecutionException ee) {
+            Throwables.propagateIfPossible(ee.getCause(), Exception.class);
+            throw new Exception(ee.getCause());
+        }
+    }
+
+    public <T> ListenableFuture<T> submit(final Callable<T> request) {
+        requests.incrementAndGet();
+        final SettableFuture<T> result = SettableFuture.create();
+        final List<Future<?>> sent = Collections.synchronizedList(Lists.<Future<?>>newArrayList());
+        final AtomicInteger outstanding = new AtomicInteger(1);
+        sent.add(send(request, result, outstanding, false));
+
+        long hedgeDelayNanos = latencies.percentile(hedgePercentile);
+        if(hedgeDelayNanos > 0) {
+            sent.add(hedgeTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    //under the lock the cancel listener takes, so it either sees the hedge or runs before we check
+                    synchronized (sent) {
+                        if(result.isDone() || hedges.get() >= requests.get() * MAX_HEDGE_FRACTION) {
+                            return;
+                        }
+                        hedges.incrementAndGet();
+                        outstanding.incrementAndGet();
+                        sent.add(send(request, result, outstanding, true));
+                    }
+                }
+            }, hedgeDelayNanos, TimeUnit.NANOSECONDS));
+        }
+
+        //whoever wins, stop the rest, including a hedge that hasn't gone out yet
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sent) {
+                    for(Future<?> future : sent) {
+                        future.cancel(true);
+                    }
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    private <T> Future<T> send(final Callable<T> request, final SettableFuture<T> result, final AtomicInteger outstanding, final boolean hedge) {
+        ListenableFuture<T> attempt = requestPool.submit(request);
+        Futures.addCallback(attempt, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T response) {
+                if(result.set(response) && hedge) {
+                    hedgeWins.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if(outstanding.decrementAndGet() == 0) {
+                    result.setException(t);
+                }
+            }
+        });
+        return attempt;
+    }
+
+    //how long a successful request took, not counting any wait before it was sent
+    public void recordLatency(long latencyNanos) {
+        latencies.record(latencyNanos);
+    }
+
+    @Override
+    public String toString() {
+        long p = latencies.percentile(hedgePercentile);
+        return String.format("hedged %s of %s requests with %s hedges winning, current hedge delay %s", hedges.get(), requests.get(), hedgeWins.get(),
+                p < 0 ? "not set yet" : TimeUnit.NANOSECONDS.toMillis(p) + "ms");
+    }
+}
@@ -0,0 +1,154 @@
+package io.ntropy;
+
+import com.google.common.collect.Maps;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+Client side rate limiting shared by every request WebUtilities sends.
+Each class of endpoint gets its own token bucket, so the REST fan-out, bulk page pulls and status polling each have their
+own budget and the polling in particular can't eat into what data retrieval is allowed. Buckets refill continuously at
+their rate and can bank up to burstSeconds worth of requests. A 429 pauses the whole bucket for its Retry-After.
+ */
+public class RequestRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestRateLimiter.class);
+
+    public static final double DEFAULT_REST_V1_REQUESTS_PER_SECOND = 100;
+    public static final double DEFAULT_REST_V2_REQUESTS_PER_SECOND = 20;
+    public static final double DEFAULT_BULK_REQUESTS_PER_SECOND = 20;
+    public static final double DEFAULT_POLLING_REQUESTS_PER_SECOND = 2;
+    public static final double DEFAULT_BURST_SECONDS = 2;
+    //how long to back off a bucket on a 429 that didn't say how long to wait
+    private static final long DEFAULT_RATE_LIMITED_PAUSE_MILLIS = 5000;
+
+    private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormat.forPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'").withZoneUTC().withLocale(Locale.US);
+
+    public enum EndpointClass {
+        REST_V1_DATA, REST_V2_ASSETS, BULK_V2, POLLING, OTHER
+    }
+
+    private Map<EndpointClass, TokenBucket> buckets = Maps.newEnumMap(EndpointClass.class);
+
+    //a rate <= 0 leaves that class unlimited
+    public RequestRateLimiter(double restV1RequestsPerSecond, double restV2RequestsPerSecond, double bulkRequestsPerSecond,
+                              double pollingRequestsPerSecond, double burstSeconds) {
+        addBucket(EndpointClass.REST_V1_DATA, restV1RequestsPerSecond, burstSeconds);
+        addBucket(EndpointClass.REST_V2_ASSETS, restV2RequestsPerSecond, burstSeconds);
+        addBucket(EndpointClass.BULK_V2, bulkRequestsPerSecond, burstSeconds);
+        addBucket(EndpointClass.POLLING, pollingRequestsPerSecond, burstSeconds);
+    }
+
+    public static RequestRateLimiter withDefaults() {
+        return new RequestRateLimiter(DEFAULT_REST_V1_REQUESTS_PER_SECOND, DEFAULT_REST_V2_REQUESTS_PER_SECOND, DEFAULT_BULK_REQUESTS_PER_SECOND,
+                DEFAULT_POLLING_REQUESTS_PER_SECOND, DEFAULT_BURST_SECONDS);
+    }
+
+    private void addBucket(EndpointClass endpointClass, double requestsPerSecond, double burstSeconds) {
+        if(requestsPerSecond > 0) {
+            buckets.put(endpointClass, new TokenBucket(requestsPerSecond, Math.max(1, requestsPerSecond * burstSeconds)));
+        }
+    }
+
+    //blocks until the url's bucket has room for one more request
+    public void acquire(String url, String requestType) throws InterruptedException {
+        TokenBucket bucket = buckets.get(classify(url, requestType));
+        if(bucket != null) {
+            bucket.acquire();
+        }
+    }
+
+    //called on a 429, retryAfterHeader can be missing, a number of seconds or an http date
+    public void rateLimited(String url, String requestType, String retryAfterHeader) {
+        EndpointClass endpointClass = classify(url, requestType);
+        TokenBucket bucket = buckets.get(endpointClass);
+        long pauseMillis = retryAfterMillis(retryAfterHeader);
+        if(pauseMillis <= 0) {
+            pauseMillis = DEFAULT_RATE_LIMITED_PAUSE_MILLIS;
+        }
+        LOG.warn("rate limited on {} request to {}, pausing {} requests for {}ms", requestType, url, endpointClass, pauseMillis);
+        if(bucket != null) {
+            bucket.pause(TimeUnit.MILLISECONDS.toNanos(pauseMillis));
+        }
+    }
+
+    public static EndpointClass classify(String url, String requestType) {
+        if(url.contains("/API/REST/1.0/")) {
+            return EndpointClass.REST_V1_DATA;
+        } else if(url.contains("/API/REST/2.0/")) {
+            //segment count checks while we wait on a refresh
+            return ("GET".equals(requestType) && url.endsWith("/count")) ? EndpointClass.POLLING : EndpointClass.REST_V2_ASSETS;
+        } else if(url.contains("/API/Bulk/2.0/")) {
+            //sync status and sync log checks
+            return ("GET".equals(requestType) && url.contains("/syncs/")) ? EndpointClass.POLLING : EndpointClass.BULK_V2;
+        }
+        return EndpointClass.OTHER;
+    }
+
+    public static long retryAfterMillis(String retryAfterHeader) {
+        if(retryAfterHeader == null || retryAfterHeader.trim().isEmpty()) {
+            return -1;
+        }
+        String retryAfter = retryAfterHeader.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter));
+        } catch (NumberFormatException nfe) {
+            try {
+                return HTTP_DATE_FORMATTER.parseMillis(retryAfter) - System.currentTimeMillis();
+            } catch (IllegalArgumentException iae) {
+                LOG.debug("couldn't parse Retry-After header {}", retryAfter);
+                return -1;
+            }
+        }
+    }
+
+    private static class TokenBucket {
+        private double nanosPerToken;
+        private double capacity;
+        private double tokens;
+        //may be in the future while the bucket is paused, nothing refills before then
+        private long lastRefillNanos;
+
+        private TokenBucket(double tokensPerSecond, double capacity) {
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / tokensPerSecond;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        private void acquire() throws InterruptedException {
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                refill(now);
+                //take the token now even if it isn't there yet, anyone after us queues up behind the debt
+                tokens -= 1;
+                long readyAt = lastRefillNanos + ((tokens < 0) ? (long) (-tokens * nanosPerToken) : 0);
+                waitNanos = readyAt - now;
+            }
+            if(waitNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        }
+
+        private synchronized void pause(long pauseNanos) {
+            long now = System.nanoTime();
+            refill(now);
+            tokens = Math.min(tokens, 0);
+            lastRefillNanos = Math.max(lastRefillNanos, now + pauseNanos);
+        }
+
+        private void refill(long now) {
+            if(now > lastRefillNanos) {
+                tokens = Math.min(capacity, tokens + (now - lastRefillNanos) / nanosPerToken);
+                lastRefillNanos = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.ntropy;
+
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Decides whether and when WebUtilities retries a failed request.
+Backoff is exponential with full jitter, a random wait between 0 and min(maxBackoff, baseBackoff * 2^retry), so threads
+that failed at the same moment don't all come back at the same moment. A Retry-After from the server is a floor on the
+wait. Each error class has its own budget on top of the caller's maxRetries, e.g. a read timeout is expensive and
+likely to happen again so it gets fewer retries than a failed connect, and 4xx errors are never retried.
+ */
+public class RetryPolicy {
+
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 250;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30 * 1000;
+
+    private long baseBackoffMillis;
+    private long maxBackoffMillis;
+    private Map<WebRequestException.ErrorClass, Integer> retryBudgets = Maps.newEnumMap(WebRequestException.ErrorClass.class);
+    private Random random = new Random();
+
+    public RetryPolicy(long baseBackoffMillis, long maxBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        for(WebRequestException.ErrorClass errorClass : WebRequestException.ErrorClass.values()) {
+            retryBudgets.put(errorClass, errorClass.isRetryable() ? Integer.MAX_VALUE : 0);
+        }
+    }
+
+    public static RetryPolicy withDefaults() {
+        return new RetryPolicy(DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS)
+                .withRetryBudget(WebRequestException.ErrorClass.READ_TIMEOUT, 2)
+                .withRetryBudget(WebRequestException.ErrorClass.SERVER_ERROR, 3)
+                .withRetryBudget(WebRequestException.ErrorClass.OTHER, 1);
+    }
+
+    public RetryPolicy withRetryBudget(WebRequestException.ErrorClass errorClass, int maxRetries) {
+        retryBudgets.put(errorClass, maxRetries);
+        return this;
+    }
+
+    //the longest jittered backoff between two tries, a Retry-After from the server can still make it longer
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public Attempts newAttempts(int maxRetries) {
+        return new Attempts(maxRetries);
+    }
+
+    public static WebRequestException.ErrorClass classify(Exception e) {
+        if(e instanceof WebRequestException) {
+            return ((WebRequestException) e).getErrorClass();
+        } else if(e instanceof SocketTimeoutException) {
+            //timeouts that get this far happened while reading the body
+            return WebRequestException.ErrorClass.READ_TIMEOUT;
+        } else if(e instanceof IOException) {
+            return WebRequestException.ErrorClass.CONNECTION_FAILURE;
+        }
+        return WebRequestException.ErrorClass.OTHER;
+    }
+
+    private synchronized long jitter(long ceilingMillis) {
+        return (long) (random.nextDouble() * ceilingMillis);
+    }
+
+    //tracks the retries made for one logical request
+    public class Attempts {
+        private int maxRetries;
+        private int retries = 0;
+        private Map<WebRequestException.ErrorClass, Integer> retriesByClass = Maps.newEnumMap(WebRequestException.ErrorClass.class);
+
+        private Attempts(int maxRetries) {
+            this.maxRetries = maxRetries;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+
+        //how long to wait before trying again, or -1 if we should give up
+        public long nextBackoffMillis(Exception failure) {
+            WebRequestException.ErrorClass errorClass = classify(failure);
+            int classRetries = retriesByClass.containsKey(errorClass) ? retriesByClass.get(errorClass) : 0;
+            if(retries >= maxRetries || classRetries >= retryBudgets.get(errorClass)) {
+                return -1;
+            }
+            retriesByClass.put(errorClass, classRetries + 1);
+
+            long ceilingMillis = Math.min(maxBackoffMillis, baseBackoffMillis << Math.min(retries, 20));
+            retries++;
+            long backoffMillis = jitter(ceilingMillis);
+            if(failure instanceof WebRequestException) {
+                long retryAfterMillis = RequestRateLimiter.retryAfterMillis(((WebRequestException) failure).getRetryAfterHeader());
+                backoffMillis = Math.max(backoffMillis, Math.min(retryAfterMillis, TimeUnit.MINUTES.toMillis(10)));
+            }
+            return backoffMillis;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package io.ntropy;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+Waits on server-side jobs (bulk syncs, segment refreshes) for everyone, from a single scheduler thread, rather than
+each waiter sleeping a fixed interval on its own thread between status requests. The scheduler only keeps time, each
+check is a blocking status request (with its own timeout and retries) so it runs on a pool of maxConcurrentChecks
+threads, and the job's future completes as soon as a check returns a result. A slow check only holds up the checks
+queued behind it once every thread is busy, never the scheduler.
+
+The time between checks adapts. With nothing known about a kind of job it starts at MIN_INTERVAL_MILLIS and backs off
+by BACKOFF up to MAX_INTERVAL_MILLIS, so short jobs are noticed quickly and long ones don't cost a request every few
+seconds. Once jobs of a kind have finished, their typical duration (a moving average) is used as the estimate: the
+checks close in on it, each waiting half the time still left until it, and back off from MIN_INTERVAL_MILLIS again
+if the estimate passes without the job finishing.
+ */
+public class StatusPoller {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatusPoller.class);
+
+    private static final long MIN_INTERVAL_MILLIS = 1000;
+    private static final long MAX_INTERVAL_MILLIS = 15 * 1000;
+    //waiting on an estimate can go longer between checks, the estimate says there's nothing to see before then
+    private static final long MAX_ESTIMATED_INTERVAL_MILLIS = 60 * 1000;
+    private static final double BACKOFF = 1.5;
+    //how much the latest duration moves the typical duration of its kind
+    private static final double DURATION_WEIGHT = 0.3;
+
+    public interface Check<T> {
+        //null while the job is still running, otherwise what the future completes with
+        T poll() throws Exception;
+    }
+
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("status-poller").build());
+    private ThreadPoolExecutor checkPool;
+    //kind of job -> typical millis it takes to finish
+    private Map<String, Double> typicalMillis = Maps.newConcurrentMap();
+    private Set<PendingJob<?>> pendingJobs = Sets.newConcurrentHashSet();
+
+    public StatusPoller(int maxConcurrentChecks) {
+        checkPool = new ThreadPoolExecutor(maxConcurrentChecks, maxConcurrentChecks, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("status-check-%d").build());
+        checkPool.allowCoreThreadTimeOut(true);
+    }
+
+    //checks the job until it finishes, the future fails with a TimeoutException if it hasn't within timeoutMillis
+    public <T> ListenableFuture<T> submit(String kind, String name, Check<T> check, long timeoutMillis) {
+        final PendingJob<T> job = new PendingJob<T>(kind, name, check, timeoutMillis);
+        pendingJobs.add(job);
+        job.future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                pendingJobs.remove(job);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        schedule(job, job.nextDelayMillis(0));
+        return job.future;
+    }
+
+    //once the sync is done, any job still being waited on fails
+    public void shutdown() {
+        scheduler.shutdownNow();
+        checkPool.shutdownNow();
+        for(PendingJob<?> job : pendingJobs) {
+            job.future.setException(new IllegalStateException(String.format("stopped waiting on %s %s, the status poller was shut down", job.kind, job.name)));
+        }
+    }
+
+    //the scheduler hands the check to the pool when it's due
+    private <T> void schedule(final PendingJob<T> job, long delayMillis) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        checkPool.execute(job);
+                    } catch (RejectedExecutionException ree) {
+                        job.future.setException(ree);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            job.future.setException(ree);
+        }
+    }
+
+    private class PendingJob<T> implements Runnable {
+        private String kind;
+        private String name;
+        private Check<T> check;
+        private long timeoutMillis;
+        private SettableFuture<T> future = SettableFuture.create();
+        private long startMillis = System.currentTimeMillis();
+        private long backoffMillis = MIN_INTERVAL_MILLIS;
+        private int checks = 0;
+
+        private PendingJob(String kind, String name, Check<T> check, long timeoutMillis) {
+            this.kind = kind;
+            this.name = name;
+            this.check = check;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        @Override
+        public void run() {
+            if(future.isCancelled()) {
+                return;
+            }
+            checks++;
+            T result;
+            try {
+                result = check.poll();
+            } catch (Throwable t) {
+                future.setException(t);
+                return;
+            }
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            if(result != null) {
+                learnDuration(elapsedMillis);
+                LOG.info("{} {} finished after {} seconds and {} status checks", kind, name, elapsedMillis / 1000, checks);
+                future.set(result);
+            } else if(elapsedMillis >= timeoutMillis) {
+                future.setException(new TimeoutException(String.format("%s %s still wasn't finished after %s seconds", kind, name, elapsedMillis / 1000)));
+            } else {
+                long delayMillis = Math.min(nextDelayMillis(elapsedMillis), timeoutMillis - elapsedMillis);
+                LOG.debug("{} {} not finished after {} seconds, checking again in {}ms", kind, name, elapsedMillis / 1000, delayMillis);
+                schedule(this, delayMillis);
+            }
+        }
+
+        private long nextDelayMillis(long elapsedMillis) {
+            Double typical = typicalMillis.get(kind);
+            if(typical != null && elapsedMillis < typical) {
+                backoffMillis = MIN_INTERVAL_MILLIS;
+                return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_ESTIMATED_INTERVAL_MILLIS, (long) ((typical - elapsedMillis) / 2)));
+            }
+            long delayMillis = backoffMillis;
+            backoffMillis = Math.min(MAX_INTERVAL_MILLIS, (long) (backoffMillis * BACKOFF));
+            return delayMillis;
+        }
+
+        private void learnDuration(long elapsedMillis) {
+            Double typical = typicalMillis.get(kind);
+            typicalMillis.put(kind, (typical == null) ? elapsedMillis : typical * (1 - DURATION_WEIGHT) + elapsedMillis * DURATION_WEIGHT);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.ntropy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Counter for values that lots of threads add to and that's only read now and then, along the lines of java 8's LongAdder
+(which we don't have on java 6). Each thread adds into one of a fixed set of cells picked from its thread id, and the
+cells are spaced a cache line apart, so threads on different cells never contend or share a line. Reads sum the cells,
+so they aren't a snapshot of a single instant, which is fine for stats.
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = stripeCount();
+    //longs per 64 byte cache line, so neighbouring cells never share one
+    private static final int PADDING = 8;
+
+    private AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(cellIndex(), delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for(int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+    private static int cellIndex() {
+        //thread ids are handed out sequentially, so mix them up before picking a stripe
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return (h & (STRIPES - 1)) * PADDING;
+    }
+
+    //a power of two at least twice the cores, capped so an idle counter stays small
+    private static int stripeCount() {
+        int target = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+        int stripes = 1;
+        while(stripes < target) stripes <<= 1;
+        return stripes;
+    }
+}
@@ -0,0 +1,83 @@
+package io.ntropy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/*
+High-water marks for incremental syncs: for each mode (bulk export or per contact REST calls) and activity type, the
+end of the last window that synced successfully, e.g.
+    bulk.EmailOpen=1404172800000
+    rest.emailOpen=1404172800000
+Every update rewrites the whole file to a temp file next to it, syncs it to disk and renames it over the original, so a
+crash part way through a save leaves either the old checkpoints or the new ones, never half a file.
+ */
+public class SyncCheckpointStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncCheckpointStore.class);
+
+    public enum Mode {
+        BULK("bulk"),
+        REST("rest");
+
+        private String prefix;
+
+        Mode(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+
+    private File file;
+    private Properties checkpoints = new Properties();
+
+    public SyncCheckpointStore(String fileName) {
+        this.file = new File(fileName);
+    }
+
+    public synchronized void load() throws IOException {
+        checkpoints = new Properties();
+        if(!file.exists()) {
+            LOG.info("no sync checkpoints at {}, this run will use the default window", file);
+            return;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            checkpoints.load(in);
+        } finally {
+            in.close();
+        }
+        LOG.info("loaded {} sync checkpoints from {}", checkpoints.size(), file);
+    }
+
+    //millis up to which this mode and type have been synced, null if they never have
+    public synchronized Long getWatermark(Mode mode, String activityType) {
+        String watermark = checkpoints.getProperty(key(mode, activityType));
+        return (watermark == null) ? null : Long.valueOf(watermark);
+    }
+
+    //records a successful sync up to watermarkMillis and saves straight away. never moves a watermark backwards
+    public synchronized void advance(Mode mode, String activityType, long watermarkMillis) throws IOException {
+        Long current = getWatermark(mode, activityType);
+        if(current != null && current >= watermarkMillis) {
+            return;
+        }
+        checkpoints.setProperty(key(mode, activityType), Long.toString(watermarkMillis));
+        save();
+    }
+
+    public String getFileName() {
+        return file.getPath();
+    }
+
+    private void save() throws IOException {
+        PropertiesFiles.save(checkpoints, file, "end of the last successfully synced window per mode and activity type");
+    }
+
+    private static String key(Mode mode, String activityType) {
+        return mode.prefix + "." + activityType;
+    }
+}
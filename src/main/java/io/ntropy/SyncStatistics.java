@@ -0,0 +1,107 @@
+package io.ntropy;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Maps;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+Run-wide counters for the sync: activities per type for each source, bytes downloaded and records per second. Any
+thread can add to them without locking (see StripedCounter) and they can be read at any time for progress logging.
+Static like WebUtilities since there's one sync per process.
+ */
+public class SyncStatistics {
+
+    public enum Source {
+        //the per contact REST 1.0 activity calls
+        REST,
+        //the Bulk 2.0 activity exports
+        BULK
+    }
+
+    private static EnumMap<Source, ConcurrentMap<String, StripedCounter>> activityCounts = newActivityCounts();
+    private static EnumMap<Source, StripedCounter> sourceTotals = newSourceTotals();
+    private static StripedCounter bytesDownloaded = new StripedCounter();
+    private static Stopwatch sinceStart = Stopwatch.createStarted();
+
+    public static void recordActivity(Source source, String activityType) {
+        recordActivities(source, activityType, 1);
+    }
+
+    public static void recordActivities(Source source, String activityType, long count) {
+        getCounter(source, activityType).add(count);
+        sourceTotals.get(source).add(count);
+    }
+
+    //bytes as they came over the wire, so before any gzip/deflate decoding
+    public static void recordBytesDownloaded(long bytes) {
+        bytesDownloaded.add(bytes);
+    }
+
+    //activity type -> count for the source, sorted by type so the logs line up run to run
+    public static SortedMap<String, Long> getActivityCounts(Source source) {
+        SortedMap<String, Long> counts = Maps.newTreeMap();
+        for(Map.Entry<String, StripedCounter> typeCount : activityCounts.get(source).entrySet()) {
+            counts.put(typeCount.getKey(), typeCount.getValue().sum());
+        }
+        return counts;
+    }
+
+    public static long getActivityCount(Source source, String activityType) {
+        StripedCounter counter = activityCounts.get(source).get(activityType);
+        return (counter == null) ? 0 : counter.sum();
+    }
+
+    public static long getTotalActivities(Source source) {
+        return sourceTotals.get(source).sum();
+    }
+
+    public static long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    //averaged over the whole run so far
+    public static double getRecordsPerSecond(Source source) {
+        double seconds = sinceStart.elapsed(TimeUnit.MILLISECONDS) / 1000.0;
+        return (seconds <= 0) ? 0 : getTotalActivities(source) / seconds;
+    }
+
+    //one line for the progress logs
+    public static String summary() {
+        return String.format("%s rest activities (%.1f/s), %s bulk activities (%.1f/s), %.1f MB downloaded in %s",
+                getTotalActivities(Source.REST), getRecordsPerSecond(Source.REST),
+                getTotalActivities(Source.BULK), getRecordsPerSecond(Source.BULK),
+                getBytesDownloaded() / (1024.0 * 1024.0), sinceStart);
+    }
+
+    private static StripedCounter getCounter(Source source, String activityType) {
+        ConcurrentMap<String, StripedCounter> counts = activityCounts.get(source);
+        StripedCounter counter = counts.get(activityType);
+        if(counter == null) {
+            StripedCounter newCounter = new StripedCounter();
+            counter = counts.putIfAbsent(activityType, newCounter);
+            if(counter == null) counter = newCounter;
+        }
+        return counter;
+    }
+
+    private static EnumMap<Source, ConcurrentMap<String, StripedCounter>> newActivityCounts() {
+        EnumMap<Source, ConcurrentMap<String, StripedCounter>> counts = Maps.newEnumMap(Source.class);
+        for(Source source : Source.values()) {
+            counts.put(source, Maps.<String, StripedCounter>newConcurrentMap());
+        }
+        return counts;
+    }
+
+    private static EnumMap<Source, StripedCounter> newSourceTotals() {
+        EnumMap<Source, StripedCounter> totals = Maps.newEnumMap(Source.class);
+        for(Source source : Source.values()) {
+            totals.put(source, new StripedCounter());
+        }
+        return totals;
+    }
+}
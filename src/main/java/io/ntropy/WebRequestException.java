@@ -0,0 +1,86 @@
+package io.ntropy;
+
+/*
+A request that failed, along with what kind of failure it was so callers and the RetryPolicy can tell a timeout worth
+retrying from a 4xx that will fail the same way every time.
+ */
+public class WebRequestException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum ErrorClass {
+        CONNECT_TIMEOUT(true),
+        READ_TIMEOUT(true),
+        CONNECTION_FAILURE(true),
+        RATE_LIMITED(true),
+        SERVER_ERROR(true),
+        AUTH_ERROR(false),
+        REDIRECT(false),
+        CLIENT_ERROR(false),
+        //anything that isn't an http or connection failure, e.g. a handler that choked on a truncated page
+        OTHER(true);
+
+        private boolean retryable;
+
+        ErrorClass(boolean retryable) {
+            this.retryable = retryable;
+        }
+
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    private ErrorClass errorClass;
+    private int status;
+    private String errorBody;
+    private String retryAfterHeader;
+
+    public WebRequestException(ErrorClass errorClass, String url, Throwable cause) {
+        super(String.format("%s accessing url %s", errorClass, url), cause);
+        this.errorClass = errorClass;
+        this.status = -1;
+    }
+
+    public WebRequestException(String url, WebResponse<?> response) {
+        super(String.format("got an error code %s accessing url %s with output %s", response.getStatus(), url, response.getErrorBody()));
+        this.errorClass = classify(response.getStatus());
+        this.status = response.getStatus();
+        this.errorBody = response.getErrorBody();
+        this.retryAfterHeader = response.getHeader("Retry-After");
+    }
+
+    public static ErrorClass classify(int status) {
+        if(status == 429) {
+            return ErrorClass.RATE_LIMITED;
+        } else if(status >= 500) {
+            return ErrorClass.SERVER_ERROR;
+        } else if(status == 401 || status == 403) {
+            return ErrorClass.AUTH_ERROR;
+        } else if(status >= 300 && status < 400) {
+            return ErrorClass.REDIRECT;
+        }
+        return ErrorClass.CLIENT_ERROR;
+    }
+
+    public ErrorClass getErrorClass() {
+        return errorClass;
+    }
+
+    public boolean isRetryable() {
+        return errorClass.isRetryable();
+    }
+
+    //-1 when the request never got a response
+    public int getStatus() {
+        return status;
+    }
+
+    public String getErrorBody() {
+        return errorBody;
+    }
+
+    public String getRetryAfterHeader() {
+        return retryAfterHeader;
+    }
+}
@@ -0,0 +1,49 @@
+package io.ntropy;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+Result of a single http exchange. Successful responses carry whatever the ResponseHandler made of the body,
+anything >= 300 carries the raw error body instead (null when the server didn't send one).
+ */
+public class WebResponse<T> {
+
+    private int status;
+    private Map<String, List<String>> headers;
+    private T content;
+    private String errorBody;
+
+    public WebResponse(int status, Map<String, List<String>> headers, T content, String errorBody) {
+        this.status = status;
+        this.headers = headers;
+        this.content = content;
+        this.errorBody = errorBody;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public boolean isSuccess() {
+        return status < 300;
+    }
+
+    public String getHeader(String name) {
+        if(headers == null) return null;
+        for(Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    public T getContent() {
+        return content;
+    }
+
+    public String getErrorBody() {
+        return errorBody;
+    }
+}
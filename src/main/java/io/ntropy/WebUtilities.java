@@ -5,12 +5,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class WebUtilities {
@@ -18,6 +16,52 @@ public class WebUtilities {
     private static final int DEFAULT_RETRIES = 0; //number of retries after a failure
     private static final int DEFAULT_TIMEOUT = 10000; //millis
 
+    private static HttpTransport transport = new HttpTransport(HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    private static RequestRateLimiter rateLimiter = RequestRateLimiter.withDefaults();
+    private static RetryPolicy retryPolicy = RetryPolicy.withDefaults();
+    //told about requests that gave up, so a stale cached endpoint gets dropped
+    private static EndpointCache endpointCache;
+    //requests held back by the rate limiter or sitting out a retry backoff right now, throttled rather than stuck
+    private static AtomicInteger waitingRequests = new AtomicInteger();
+
+    //reads a successful response straight off the wire instead of buffering it into a String first.
+    // may be called more than once for the same request if an earlier attempt failed part way through
+    public interface ResponseHandler<T> {
+        T handleResponse(Reader reader) throws Exception;
+    }
+
+    private static final ResponseHandler<String> READ_STRING = new ResponseHandler<String>() {
+        @Override
+        public String handleResponse(Reader reader) throws Exception {
+            return HttpTransport.readFully(new BufferedReader(reader));
+        }
+    };
+
+    //has to be called before the first request, the jdk only reads the keep-alive pool size once
+    public static void configureTransport(int maxConnectionsPerHost) {
+        transport = new HttpTransport(maxConnectionsPerHost);
+    }
+
+    public static void configureRateLimiter(RequestRateLimiter requestRateLimiter) {
+        rateLimiter = requestRateLimiter;
+    }
+
+    public static void configureRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+    }
+
+    public static void configureEndpointCache(EndpointCache cache) {
+        endpointCache = cache;
+    }
+
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public static int getWaitingRequestCount() {
+        return waitingRequests.get();
+    }
+
     public static String sendGetRequest(String url) throws Exception {
         return sendGetRequest(url, DEFAULT_TIMEOUT, DEFAULT_RETRIES);
     }
@@ -38,6 +82,10 @@ public class WebUtilities {
         return sendWebRequest(url, timeoutMillis, maxRetries, headerProperties, "GET", null);
     }
 
+    public static <T> T sendGetRequest(String url, int timeoutMillis, int maxRetries, Map<String, String> headerProperties, ResponseHandler<T> handler) throws Exception {
+        return sendStreamingRequest(url, timeoutMillis, maxRetries, headerProperties, "GET", null, handler);
+    }
+
     public static String sendPostRequest(String url, String body) throws Exception {
         return sendPostRequest(url, DEFAULT_TIMEOUT, DEFAULT_RETRIES, body);
     }
@@ -98,91 +146,20 @@ public class WebUtilities {
         return sendWebRequest(url, timeoutMillis, maxRetries, headerProperties, "DELETE", null);
     }
 
+    //hands back the body of a successful response, anything else is thrown as a WebRequestException
     private static String sendWebRequest(String url, int timeout, int maxRetries, Map<String,String> headerProperties, String requestType, String body) throws Exception {
-        int retries = 0;
-        StringBuilder sb = new StringBuilder();
-        while(retries <= maxRetries) {
-            HttpURLConnection connection = null;
-            BufferedReader rd  = null;
-            sb = new StringBuilder();
-            String line = null;
-
-            URL serverAddress = null;
-
-            try {
-                serverAddress = new URL(url);
-                //set up out communications stuff
-                connection = null;
-
-                //Set up the initial connection
-                connection = (HttpURLConnection)serverAddress.openConnection();
-                connection.setRequestMethod(requestType);
-                for(Map.Entry<String,String> requestProperty : headerProperties.entrySet()) {
-                    connection.addRequestProperty(requestProperty.getKey(), requestProperty.getValue());
-                }
-                connection.setDoOutput(true);
-                connection.setReadTimeout(timeout);
-
-                //when the request is a GET this will be null. On a post, even if the body is empty,
-                // some servers (e.g. eloqua) require a body to be written, even if it's empty.
-                if(body != null) {
-                    final OutputStream os = connection.getOutputStream();
-                    os.write(body.getBytes());
-                    os.flush();
-                    os.close();
-                }
-
-                connection.connect();
-
-                int responseCode = connection.getResponseCode();
-                if(responseCode < 300) {
-                    //read the result from the server
-                    rd  = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        WebResponse<String> response = sendWithRetries(url, timeout, maxRetries, headerProperties, requestType, body, READ_STRING);
+        LOG.debug(response.getContent());
+        return response.getContent();
+    }
 
-                    while ((line = rd.readLine()) != null) {
-                        sb.append(line).append('\n');
-                    }
+    private static <T> T sendStreamingRequest(String url, int timeout, int maxRetries, Map<String,String> headerProperties, String requestType, String body, ResponseHandler<T> handler) throws Exception {
+        return sendWithRetries(url, timeout, maxRetries, headerProperties, requestType, body, handler).getContent();
+    }
 
-                    LOG.debug(sb.toString());
-                    return sb.toString();
-                } else {
-                    //read the error result from the server
-                    LOG.debug("error code {}", responseCode);
-                    LOG.debug("Error code {} received with presence of error stream: {}", responseCode, (connection.getErrorStream() == null) ? "false" : "true");
-                    if(connection.getErrorStream() != null) {
-                        rd  = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                        while ((line = rd.readLine()) != null) {
-                            sb.append(line).append('\n');
-                        }
-                        if (responseCode < 500) {
-                            //don't retry on 400s
-                            return sb.toString();
-                        }
-                        throw new Exception(String.format("got an error code %s accessing url %s with output %s", responseCode, url, sb.toString()));
-                    } else {
-                        if (responseCode < 500) {
-                            //don't retry on 400s
-                            return String.format("got an error code %s accessing url %s", responseCode, url);
-                        }
-                        throw new Exception(String.format("got an error code %s accessing url %s", responseCode, url));
-                    }
-                }
-            } catch (Exception e) {
-                retries++;
-                LOG.error("failure #{} for {} request to {}", retries, requestType, url);
-                Thread.sleep(500);
-                if(retries > maxRetries) {
-                    LOG.error(String.format("Giving up processing %s to url %s after #%s tries with error: ", requestType, url, retries), e);
-                    throw e;
-                }
-            } finally {
-                //close the connection, set all objects to null, sleep a bit and try the loop again
-                connection.disconnect();
-                rd = null;
-                connection = null;
-            }
-        }
-        return sb.toString();
+    //typed version of the sendXRequest methods, for callers that want the status and headers of a successful response
+    public static WebResponse<String> sendRequest(String url, int timeoutMillis, int maxRetries, Map<String,String> headerProperties, String requestType, String body) throws Exception {
+        return sendWithRetries(url, timeoutMillis, maxRetries, headerProperties, requestType, body, READ_STRING);
     }
 
     public static Map<String,String> sendGETRequestWithStatus(String url, int timeoutMillis, int maxRetries) throws Exception {
@@ -190,87 +167,75 @@ public class WebUtilities {
     }
 
     private static Map<String,String> sendWebRequestWithStatus(String url, int timeout, int maxRetries, Map<String, String> headerProperties, String requestType, String body) throws Exception {
-        int retries = 0;
         Map<String,String> result = Maps.newHashMap();
-        StringBuilder sb = new StringBuilder();
-        while(retries <= maxRetries) {
-            HttpURLConnection connection = null;
-            BufferedReader rd  = null;
-            result = Maps.newHashMap();
-            sb = new StringBuilder();
-            String line = null;
-
-            URL serverAddress = null;
+        try {
+            WebResponse<String> response = sendWithRetries(url, timeout, maxRetries, headerProperties, requestType, body, READ_STRING);
+            LOG.debug(response.getContent());
+            result.put("status", Integer.toString(response.getStatus()));
+            result.put("body", response.getContent());
+        } catch (WebRequestException wre) {
+            //the caller asked for the status, so errors we don't retry come back as a status rather than an exception
+            if(wre.isRetryable() || wre.getStatus() < 0) throw wre;
+            result.put("status", Integer.toString(wre.getStatus()));
+            result.put("body", (wre.getErrorBody() == null) ? "" : wre.getErrorBody());
+        }
+        return result;
+    }
 
+    //retries according to the retryPolicy, any response other than a success is turned into a WebRequestException
+    private static <T> WebResponse<T> sendWithRetries(String url, int timeout, int maxRetries, Map<String,String> headerProperties, String requestType, String body, ResponseHandler<T> handler) throws Exception {
+        RetryPolicy.Attempts attempts = retryPolicy.newAttempts(maxRetries);
+        while(true) {
             try {
-                serverAddress = new URL(url);
-                //set up out communications stuff
-                connection = null;
-
-                //Set up the initial connection
-                connection = (HttpURLConnection)serverAddress.openConnection();
-                connection.setRequestMethod(requestType);
-                for(Map.Entry<String,String> requestProperty : headerProperties.entrySet()) {
-                    connection.addRequestProperty(requestProperty.getKey(), requestProperty.getValue());
+                waitingRequests.incrementAndGet();
+                try {
+                    rateLimiter.acquire(url, requestType);
+                } finally {
+                    waitingRequests.decrementAndGet();
                 }
-                connection.setDoOutput(true);
-                connection.setReadTimeout(timeout);
-
-                //when the request is a GET this will be null. On a post, even if the body is empty,
-                // some servers (e.g. eloqua) require a body to be written, even if it's empty.
-                if(body != null) {
-                    final OutputStream os = connection.getOutputStream();
-                    os.write(body.getBytes());
-                    os.flush();
-                    os.close();
+                WebResponse<T> response = transport.execute(url, requestType, headerProperties, body, timeout, handler);
+                if(response.isSuccess()) {
+                    return response;
                 }
-
-                connection.connect();
-
-                int responseCode = connection.getResponseCode();
-
-                if(responseCode < 300) {
-                    //read the result from the server
-                    rd  = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-
-                    while ((line = rd.readLine()) != null) {
-                        sb.append(line).append('\n');
-                    }
-
-                    LOG.debug(sb.toString());
-                } else {
-                    //read the error result from the server
-                    rd  = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                    while ((line = rd.readLine()) != null) {
-                        sb.append(line).append('\n');
-                    }
-                }
-
-                result.put("status", Integer.toString(responseCode));
-                result.put("body", sb.toString());
-
-                //only retry on 500s
-                if (responseCode >= 500) {
-                    throw new Exception(String.format("got an error code %s accessing url %s with output %s", responseCode, url, sb.toString()));
-                } else {
-                    return result;
+                WebRequestException error = new WebRequestException(url, response);
+                LOG.debug("Error code {} received with presence of error stream: {}", response.getStatus(), (response.getErrorBody() == null) ? "false" : "true");
+                if(error.getErrorClass() == WebRequestException.ErrorClass.RATE_LIMITED) {
+                    //hold back everything else going to this kind of endpoint too, not just this request
+                    rateLimiter.rateLimited(url, requestType, error.getRetryAfterHeader());
                 }
+                throw error;
+            } catch (InterruptedException ie) {
+                //a cancelled request (a hedge that lost, a pipeline shutting down) stops here rather than using up its retries
+                Thread.currentThread().interrupt();
+                throw ie;
             } catch (Exception e) {
-                retries++;
-                LOG.error("failure #{} for {} request to {}", retries, requestType, url);
-                Thread.sleep(500);
-                if(retries > maxRetries) {
-                    LOG.error(String.format("Giving up processing %s to url %s after #%s tries with error: ", requestType, url, retries), e);
+                if(Thread.currentThread().isInterrupted()) {
+                    //interrupted part way through the request, which surfaces as an io error rather than an InterruptedException
+                    throw e;
+                }
+                long backoffMillis = attempts.nextBackoffMillis(e);
+                if(backoffMillis < 0) {
+                    if(RetryPolicy.classify(e).isRetryable()) {
+                        LOG.error(String.format("Giving up processing %s to url %s after #%s tries with error: ", requestType, url, attempts.getRetries() + 1), e);
+                    } else {
+                        LOG.debug("not retrying {} request to {}: {}", requestType, url, e.getMessage());
+                    }
+                    if(endpointCache != null && e instanceof WebRequestException) {
+                        endpointCache.requestFailed(url, (WebRequestException) e);
+                    }
                     throw e;
                 }
-            } finally {
-                //close the connection, set all objects to null, sleep a bit and try the loop again
-                connection.disconnect();
-                rd = null;
-                connection = null;
+                LOG.error("failure #{} ({}) for {} request to {}, retrying in {}ms", attempts.getRetries(), RetryPolicy.classify(e), requestType, url, backoffMillis);
+                waitingRequests.incrementAndGet();
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ie;
+                } finally {
+                    waitingRequests.decrementAndGet();
+                }
             }
         }
-
-        return result;
     }
 }
@@ -0,0 +1,122 @@
+package io.ntropy;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ActivityDedupIndexTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void secondSightingIsADuplicate() throws IOException {
+        ActivityDedupIndex index = open();
+        assertTrue(index.add("emailOpen", "123"));
+        assertFalse(index.add("emailOpen", "123"));
+        //the bulk and REST type names differ in case
+        assertFalse(index.add("EmailOpen", "123"));
+        assertTrue(index.add("emailSend", "123"));
+        assertTrue(index.add("emailOpen", "124"));
+        index.close();
+    }
+
+    @Test
+    public void restSubscriptionTypesMatchTheBulkOnes() throws IOException {
+        ActivityDedupIndex index = open();
+        assertTrue(index.add("emailSubscribe", "1"));
+        assertFalse(index.add("Subscribe", "1"));
+        assertTrue(index.add("emailUnsubscribe", "1"));
+        assertFalse(index.add("Unsubscribe", "1"));
+        index.close();
+    }
+
+    @Test
+    public void committedIdsSurviveARestart() throws IOException {
+        ActivityDedupIndex index = open();
+        index.add("emailOpen", "123");
+        index.commit();
+        index.add("emailOpen", "456");
+        index.close();
+
+        ActivityDedupIndex reopened = open();
+        assertFalse(reopened.add("emailOpen", "123"));
+        assertFalse(reopened.add("emailOpen", "456"));
+        assertTrue(reopened.add("emailOpen", "789"));
+        reopened.close();
+    }
+
+    @Test
+    public void uncommittedIdsAreForgottenByACrash() throws IOException {
+        ActivityDedupIndex index = open();
+        index.add("emailOpen", "123");
+        index.commit();
+        //never committed, as if the process died before its activities were flushed
+        index.add("emailOpen", "456");
+
+        ActivityDedupIndex afterCrash = open();
+        assertFalse(afterCrash.add("emailOpen", "123"));
+        assertTrue(afterCrash.add("emailOpen", "456"));
+        afterCrash.close();
+    }
+
+    @Test
+    public void expiredAndDamagedGenerationsAreDropped() throws IOException {
+        long today = System.currentTimeMillis() / TimeUnit.DAYS.toMillis(1);
+        File expired = new File(directory, String.format("dedup-%s.idx", today - 30));
+        File damaged = new File(directory, String.format("dedup-%s.idx", today - 1));
+        Files.write(new byte[128], expired);
+        Files.write(new byte[128], damaged);
+
+        ActivityDedupIndex index = open();
+        assertFalse(expired.exists());
+        assertFalse(damaged.exists());
+        assertTrue(index.add("emailOpen", "123"));
+        index.close();
+    }
+
+    @Test
+    public void growsPastTheInitialCapacity() throws IOException {
+        //more than the 1 << 20 slot pending set and generation can take before they have to grow
+        int ids = 800000;
+        ActivityDedupIndex index = open();
+        for(int i = 0; i < ids; i++) {
+            assertTrue(index.add("webVisit", Integer.toString(i)));
+        }
+        index.commit();
+        index.close();
+
+        ActivityDedupIndex reopened = open();
+        for(int i = 0; i < ids; i += 997) {
+            assertFalse(reopened.add("webVisit", Integer.toString(i)));
+        }
+        assertTrue(reopened.add("webVisit", Integer.toString(ids)));
+        reopened.close();
+    }
+
+    private ActivityDedupIndex open() throws IOException {
+        ActivityDedupIndex index = new ActivityDedupIndex(directory.getPath(), 7);
+        index.open();
+        return index;
+    }
+}
@@ -0,0 +1,113 @@
+package io.ntropy;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ActivityWindowSplitterTest {
+
+    @Test
+    public void ascendingPageKeepsWhatItCoveredAndSplitsTheGap() throws Exception {
+        //a row every 10 seconds from the start, so the gap after the last one needs about 900 rows' worth of windows
+        JSONArray page = page(1000, 10, 1000);
+        ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(page, 1000, 20000);
+
+        //everything but the rows on the last date, which might have been cut off part way through that second
+        assertEquals(999, split.getKept().length());
+        assertEquals("1000", split.getKept().getJSONObject(0).getString("activityDate"));
+        assertWindows(split.getWindows(), new long[]{10990, 15495}, new long[]{15496, 20000});
+    }
+
+    @Test
+    public void descendingPageSplitsTheGapBeforeItsLastDate() throws Exception {
+        JSONArray page = page(20000, -10, 1000);
+        ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(page, 1000, 20000);
+
+        assertEquals(999, split.getKept().length());
+        assertWindows(split.getWindows(), new long[]{1000, 5505}, new long[]{5506, 10010});
+    }
+
+    @Test
+    public void busyGapIsCappedAtMaxWindows() throws Exception {
+        //a row a second, so the rest of a day would want hundreds of windows
+        ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(page(0, 1, 1000), 0, 86399);
+        assertEquals(ActivityWindowSplitter.MAX_WINDOWS_PER_SPLIT, split.getWindows().size());
+        assertCovers(split.getWindows(), 999, 86399);
+    }
+
+    @Test
+    public void unorderedPageIsSplitAtItsMedian() throws Exception {
+        JSONArray page = new JSONArray();
+        for(int i = 0; i < 1000; i++) {
+            page.put(activity(1000 + (i * 7919) % 1000));
+        }
+        ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(page, 1000, 5000);
+
+        assertEquals(0, split.getKept().length());
+        assertWindows(split.getWindows(), new long[]{1000, 1500}, new long[]{1501, 5000});
+    }
+
+    @Test
+    public void pageOnASingleDateIsSplitThere() throws Exception {
+        ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(page(1500, 0, 1000), 1000, 5000);
+
+        assertEquals(0, split.getKept().length());
+        assertWindows(split.getWindows(), new long[]{1000, 1500}, new long[]{1501, 5000});
+    }
+
+    @Test
+    public void pageWithoutDatesIsSplitDownTheMiddle() throws Exception {
+        JSONArray page = page(1000, 1, 999);
+        page.put(new JSONObject().put("id", "no date"));
+        ActivityWindowSplitter.Split split = ActivityWindowSplitter.afterFullPage(page, 1000, 5001);
+
+        assertEquals(0, split.getKept().length());
+        assertWindows(split.getWindows(), new long[]{1000, 3000}, new long[]{3001, 5001});
+    }
+
+    @Test
+    public void initialWindowsFollowTheKnownDensity() {
+        assertWindows(ActivityWindowSplitter.initialWindows(0, 9999, null), new long[]{0, 9999});
+        //0.1 a second is 1000 rows over the window, two windows' worth
+        assertWindows(ActivityWindowSplitter.initialWindows(0, 9999, 0.1), new long[]{0, 4999}, new long[]{5000, 9999});
+        assertEquals(ActivityWindowSplitter.MAX_WINDOWS_PER_SPLIT, ActivityWindowSplitter.initialWindows(0, 9999, 100.0).size());
+        assertCovers(ActivityWindowSplitter.initialWindows(0, 9999, 100.0), 0, 9999);
+        //never more windows than seconds
+        assertWindows(ActivityWindowSplitter.initialWindows(5, 6, 100000.0), new long[]{5, 5}, new long[]{6, 6});
+    }
+
+    private static JSONArray page(long firstDate, long step, int rows) throws Exception {
+        JSONArray page = new JSONArray();
+        for(int i = 0; i < rows; i++) {
+            page.put(activity(firstDate + i * step));
+        }
+        return page;
+    }
+
+    //the REST api sends the date as a string of epoch seconds
+    private static JSONObject activity(long date) throws Exception {
+        return new JSONObject().put("activityDate", Long.toString(date));
+    }
+
+    private static void assertWindows(List<long[]> actual, long[]... expected) {
+        assertEquals(expected.length, actual.size());
+        for(int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual.get(i));
+        }
+    }
+
+    //the windows run back to back from start to end
+    private static void assertCovers(List<long[]> windows, long start, long end) {
+        long next = start;
+        for(long[] window : windows) {
+            assertEquals(next, window[0]);
+            next = window[1] + 1;
+        }
+        assertEquals(end + 1, next);
+    }
+}
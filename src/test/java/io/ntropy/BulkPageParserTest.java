@@ -0,0 +1,92 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkPageParserTest {
+
+    @Test
+    public void handsOverEveryRowAndTheTotals() throws Exception {
+        List<JSONObject> rows = Lists.newArrayList();
+        BulkPageParser.PageSummary summary = parse("{\"totalResults\":12345,\"limit\":2,\"offset\":0,\"count\":2,\"hasMore\":true,"
+                + "\"items\":[{\"ActivityId\":\"1\",\"Nested\":{\"a\":[1,2]}}, {\"ActivityId\":\"2\",\"Text\":\"a, b ] }\"}]}", rows);
+
+        assertEquals(12345, summary.getTotalResults());
+        assertEquals(2, summary.getItemCount());
+        assertTrue(summary.hasMore());
+        assertEquals(2, rows.size());
+        assertEquals("1", rows.get(0).getString("ActivityId"));
+        assertEquals(2, rows.get(0).getJSONObject("Nested").getJSONArray("a").getInt(1));
+        assertEquals("a, b ] }", rows.get(1).getString("Text"));
+    }
+
+    @Test
+    public void itemsCanComeBeforeTheTotals() throws Exception {
+        List<JSONObject> rows = Lists.newArrayList();
+        BulkPageParser.PageSummary summary = parse("{ \"items\" : [ {\"ActivityId\":\"1\"} ] , \"hasMore\" : false , \"totalResults\" : \"1\" }", rows);
+
+        assertEquals(1, summary.getTotalResults());
+        assertEquals(1, summary.getItemCount());
+        assertFalse(summary.hasMore());
+        assertEquals(1, rows.size());
+    }
+
+    @Test
+    public void emptyPages() throws Exception {
+        List<JSONObject> rows = Lists.newArrayList();
+        assertEquals(0, parse("{}", rows).getItemCount());
+        BulkPageParser.PageSummary summary = parse("{\"totalResults\":0,\"hasMore\":false,\"items\":[]}", rows);
+        assertEquals(0, summary.getTotalResults());
+        assertEquals(0, summary.getItemCount());
+        assertTrue(rows.isEmpty());
+    }
+
+    @Test
+    public void skipRowsStillCounts() throws Exception {
+        BulkPageParser.PageSummary summary = BulkPageParser.parse(new StringReader("{\"items\":[{},{},{}],\"totalResults\":3}"), BulkPageParser.SKIP_ROWS);
+        assertEquals(3, summary.getItemCount());
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsItemsThatArentObjects() throws Exception {
+        parse("{\"items\":[{\"a\":1},2]}", Lists.<JSONObject>newArrayList());
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsACutOffPage() throws Exception {
+        parse("{\"totalResults\":3,\"items\":[{\"a\":1},{\"a\":", Lists.<JSONObject>newArrayList());
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsSomethingThatIsntAPage() throws Exception {
+        parse("[{\"a\":1}]", Lists.<JSONObject>newArrayList());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void handlerFailuresComeStraightOut() throws Exception {
+        BulkPageParser.parse(new StringReader("{\"items\":[{\"a\":1}]}"), new BulkPageParser.RowHandler() {
+            @Override
+            public void handleRow(JSONObject row) {
+                throw new IllegalStateException("sink is full");
+            }
+        });
+    }
+
+    private static BulkPageParser.PageSummary parse(String page, final List<JSONObject> rows) throws Exception {
+        return BulkPageParser.parse(new StringReader(page), new BulkPageParser.RowHandler() {
+            @Override
+            public void handleRow(JSONObject row) {
+                rows.add(row);
+            }
+        });
+    }
+}
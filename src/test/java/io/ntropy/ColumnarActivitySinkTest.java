@@ -0,0 +1,152 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ColumnarActivitySinkTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void rowsRoundTrip() throws Exception {
+        List<JSONObject> bulk = Lists.newArrayList();
+        for(int i = 0; i < 300; i++) {
+            JSONObject row = new JSONObject();
+            //climbing ids and dates get deltas, the campaign and asset type dictionaries, the name plain strings
+            row.put("ActivityId", Integer.toString(1000 + i * 3));
+            row.put("ActivityDate", String.format("2014-07-01 10:%02d:%02d.000", i / 60, i % 60));
+            row.put("CampaignId", (i % 2 == 0) ? "17" : "42");
+            row.put("AssetType", (i % 3 == 0) ? "Email" : "Form");
+            row.put("AssetName", "asset number " + i + " é");
+            row.put("ZeroPadded", "00" + i);
+            if(i % 5 == 0) {
+                row.put("Sometimes", "there");
+            }
+            bulk.add(row);
+        }
+        List<JSONObject> rest = Lists.newArrayList();
+        for(int i = 0; i < 40; i++) {
+            JSONObject record = new JSONObject();
+            record.put("id", 5000000000L + i);
+            record.put("activityDate", Integer.toString(1404208800 + i * 7919 % 1000));
+            record.put("details", new JSONArray().put(new JSONObject().put("Key", "Subject").put("Value", "hi " + i)));
+            record.put("type", JSONObject.NULL);
+            rest.add(record);
+        }
+
+        ColumnarActivitySink sink = new ColumnarActivitySink(directory.getPath(), 1L << 30);
+        for(JSONObject row : bulk) {
+            sink.write(SyncStatistics.Source.BULK, "EmailOpen", row);
+        }
+        for(JSONObject record : rest) {
+            sink.write(SyncStatistics.Source.REST, "emailOpen", record);
+        }
+        sink.close();
+
+        ColumnarActivityReader reader = new ColumnarActivityReader(onlyFile());
+        try {
+            assertEquals(2, reader.getRowGroups().size());
+            for(ColumnarActivityReader.RowGroup group : reader.getRowGroups()) {
+                List<JSONObject> expected = (group.getSource() == SyncStatistics.Source.BULK) ? bulk : rest;
+                assertRowsEqual(expected, reader.readRows(group));
+            }
+            ColumnarActivityReader.RowGroup bulkGroup = groupFor(reader, SyncStatistics.Source.BULK);
+            assertEquals(300, bulkGroup.getRowCount());
+            assertEquals(1000L, bulkGroup.getMin("ActivityId"));
+            assertEquals(1897L, bulkGroup.getMax("ActivityId"));
+            assertEquals("2014-07-01 10:00:00.000", bulkGroup.getMin("ActivityDate"));
+            assertEquals(240, bulkGroup.getNullCount("Sometimes"));
+            assertNull(reader.readColumn(bulkGroup, "NotAColumn").get(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void mixedNumbersAndStringsAreKeptAsStrings() throws Exception {
+        ColumnarActivitySink sink = new ColumnarActivitySink(directory.getPath(), 1L << 30);
+        List<JSONObject> rows = Lists.newArrayList();
+        for(int i = 0; i < 100; i++) {
+            //few distinct values so the column is dictionary encoded
+            rows.add(new JSONObject().put("Mixed", (i % 2 == 0) ? (Object) 7L : "seven").put("Few", (i % 3 == 0) ? (Object) 3 : "n/a"));
+        }
+        for(JSONObject row : rows) {
+            sink.write(SyncStatistics.Source.REST, "webVisit", row);
+        }
+        sink.close();
+
+        ColumnarActivityReader reader = new ColumnarActivityReader(onlyFile());
+        try {
+            ColumnarActivityReader.RowGroup group = reader.getRowGroups().get(0);
+            List<Object> mixed = reader.readColumn(group, "Mixed");
+            assertEquals("7", mixed.get(0));
+            assertEquals("seven", mixed.get(1));
+            assertEquals("7", group.getMin("Mixed"));
+            assertEquals("seven", group.getMax("Mixed"));
+            assertRowsEqual(rows, reader.readRows(group));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private File onlyFile() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".eac");
+            }
+        });
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static ColumnarActivityReader.RowGroup groupFor(ColumnarActivityReader reader, SyncStatistics.Source source) {
+        for(ColumnarActivityReader.RowGroup group : reader.getRowGroups()) {
+            if(group.getSource() == source) return group;
+        }
+        throw new AssertionError("no row group for " + source);
+    }
+
+    //every non-null field comes back as the string it would print as
+    private static void assertRowsEqual(List<JSONObject> expected, List<JSONObject> actual) throws Exception {
+        assertEquals(expected.size(), actual.size());
+        for(int r = 0; r < expected.size(); r++) {
+            JSONObject want = expected.get(r);
+            JSONObject got = actual.get(r);
+            int fields = 0;
+            for(Iterator<?> keys = want.keys(); keys.hasNext(); ) {
+                String key = keys.next().toString();
+                if(want.isNull(key)) continue;
+                fields++;
+                assertEquals("row " + r + " field " + key, want.get(key).toString(), got.get(key).toString());
+            }
+            assertEquals("row " + r, fields, got.length());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.ntropy;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompletionPipelineTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void resultsComeBackInTheOrderTheyFinish() throws Exception {
+        CompletionPipeline<String> pipeline = new CompletionPipeline<String>(executor, 3);
+        final CountDownLatch slowMayFinish = new CountDownLatch(1);
+        pipeline.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                slowMayFinish.await();
+                return "slow";
+            }
+        });
+        pipeline.submit(constant("fast"));
+        SettableFuture<String> started = SettableFuture.create();
+        pipeline.submit(started);
+        assertTrue(pipeline.isFull());
+
+        assertEquals("fast", pipeline.take(5, TimeUnit.SECONDS).get());
+        assertFalse(pipeline.isFull());
+        started.set("elsewhere");
+        assertEquals("elsewhere", pipeline.take(5, TimeUnit.SECONDS).get());
+        slowMayFinish.countDown();
+        assertEquals("slow", pipeline.take(5, TimeUnit.SECONDS).get());
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    public void failuresAreTakenLikeResults() throws Exception {
+        CompletionPipeline<String> pipeline = new CompletionPipeline<String>(executor, 1);
+        pipeline.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("bad call");
+            }
+        });
+        Future<String> failed = pipeline.take(5, TimeUnit.SECONDS);
+        try {
+            failed.get();
+            fail("the task threw");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    public void takeTimesOutAndPollReturnsNull() throws Exception {
+        CompletionPipeline<String> pipeline = new CompletionPipeline<String>(executor, 2);
+        SettableFuture<String> never = SettableFuture.create();
+        pipeline.submit(never);
+        try {
+            pipeline.take(50, TimeUnit.MILLISECONDS);
+            fail("nothing finished");
+        } catch (TimeoutException te) {
+            //still pending
+        }
+        assertNull(pipeline.poll(50, TimeUnit.MILLISECONDS));
+        assertFalse(pipeline.isEmpty());
+        never.set("finally");
+        assertEquals("finally", pipeline.poll(5, TimeUnit.SECONDS).get());
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    public void cancelAbandonsEverythingInFlight() throws Exception {
+        CompletionPipeline<String> pipeline = new CompletionPipeline<String>(executor, 3);
+        SettableFuture<String> first = SettableFuture.create();
+        SettableFuture<String> second = SettableFuture.create();
+        pipeline.submit(first);
+        pipeline.submit(second);
+        second.set("done but not taken");
+        pipeline.cancel();
+
+        assertTrue(pipeline.isEmpty());
+        assertTrue(first.isCancelled());
+        //the pipeline can be used again, and nothing from before turns up in it
+        ListenableFuture<String> next = pipeline.submit(constant("next"));
+        Future<String> taken = pipeline.take(5, TimeUnit.SECONDS);
+        assertSame(next, taken);
+        assertTrue(pipeline.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void takingFromAnEmptyPipelineIsAMistake() throws Exception {
+        new CompletionPipeline<String>(executor, 1).take(1, TimeUnit.SECONDS);
+    }
+
+    private static Callable<String> constant(final String value) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContactIdSetTest {
+
+    @Test
+    public void sortsAndDedupsOutOfOrderAdds() {
+        Random random = new Random(11);
+        ContactIdSet set = new ContactIdSet(4);
+        TreeSet<Integer> expected = Sets.newTreeSet();
+        for(int i = 0; i < 50000; i++) {
+            //a narrow range so there are plenty of duplicates, and some negatives to check the sign handling
+            int id = random.nextInt(20000) - 1000;
+            set.add(id);
+            expected.add(id);
+        }
+        assertArrayEquals(Ints.toArray(expected), set.toArray());
+        assertEquals(expected.size(), set.size());
+        assertEquals((int) expected.first(), set.first());
+        assertEquals((int) expected.last(), set.last());
+        assertTrue(set.contains(expected.first()));
+        assertFalse(set.contains(20000));
+    }
+
+    @Test
+    public void addingAfterReadingSortsAgain() {
+        ContactIdSet set = ids(1, 2, 3);
+        assertEquals(3, set.size());
+        set.add(2);
+        set.add(0);
+        set.addAll(ids(3, 4));
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, set.toArray());
+    }
+
+    @Test
+    public void idsThatShareTheirHighBytes() {
+        //the usual case, the radix passes over the high bytes have nothing to move
+        ContactIdSet set = ids(1000003, 1000001, 1000002, 1000001);
+        assertArrayEquals(new int[]{1000001, 1000002, 1000003}, set.toArray());
+    }
+
+    @Test
+    public void setOperations() {
+        ContactIdSet a = ids(9, 1, 3, 5, 7);
+        ContactIdSet b = ids(4, 5, 6, 7, 8);
+        assertArrayEquals(new int[]{1, 3, 4, 5, 6, 7, 8, 9}, a.union(b).toArray());
+        assertArrayEquals(new int[]{5, 7}, a.intersect(b).toArray());
+        assertArrayEquals(new int[]{1, 3, 9}, a.difference(b).toArray());
+        assertArrayEquals(new int[]{4, 6, 8}, b.difference(a).toArray());
+        assertTrue(a.difference(a).isEmpty());
+        assertArrayEquals(a.toArray(), a.difference(new ContactIdSet()).toArray());
+    }
+
+    @Test
+    public void batchesInIdOrder() {
+        List<int[]> batches = Lists.newArrayList();
+        for(ContactIdSet batch : ids(5, 4, 3, 2, 1).batches(2)) {
+            batches.add(batch.toArray());
+        }
+        assertEquals(3, batches.size());
+        assertArrayEquals(new int[]{1, 2}, batches.get(0));
+        assertArrayEquals(new int[]{3, 4}, batches.get(1));
+        assertArrayEquals(new int[]{5}, batches.get(2));
+        assertFalse(new ContactIdSet().batches(10).iterator().hasNext());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void emptySetHasNoFirst() {
+        new ContactIdSet().first();
+    }
+
+    private static ContactIdSet ids(int... ids) {
+        ContactIdSet set = new ContactIdSet();
+        for(int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+}
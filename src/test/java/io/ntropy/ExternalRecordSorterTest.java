@@ -0,0 +1,114 @@
+package io.ntropy;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ExternalRecordSorterTest {
+
+    private static final long RECORD_BYTES = 8L * ExternalRecordSorter.RECORD_LONGS;
+
+    private File directory;
+
+    @Before
+    public void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void sortsAcrossMoreRunsThanOneMergeTakes() throws Exception {
+        //300 runs of 50, so the merge needs an extra pass over them, in 3 buffers
+        assertSorts(new ExternalRecordSorter(directory, "test", 50, 3 * 50 * RECORD_BYTES), 15000);
+    }
+
+    @Test
+    public void shortensRunsToFitTheBudget() throws Exception {
+        //not even one run of 1000 fits, so the runs come down to 20 records in a single buffer
+        assertSorts(new ExternalRecordSorter(directory, "test", 1000, 20 * RECORD_BYTES), 500);
+    }
+
+    @Test
+    public void sortsASingleRun() throws Exception {
+        assertSorts(new ExternalRecordSorter(directory, "test", 1 << 18, 1L << 30), 1000);
+    }
+
+    @Test
+    public void mergesNothing() throws Exception {
+        assertSorts(new ExternalRecordSorter(directory, "test", 100, 1L << 20), 0);
+    }
+
+    //random records with plenty of ties on the sort keys, checked against a sort of the same records in memory
+    private void assertSorts(ExternalRecordSorter sorter, int records) throws Exception {
+        Random random = new Random(records);
+        List<long[]> expected = Lists.newArrayList();
+        for(int i = 0; i < records; i++) {
+            long[] record = {random.nextInt(5), random.nextInt(200) - 100, random.nextInt(3), random.nextLong(), i};
+            expected.add(record);
+            sorter.add(record[0], record[1], record[2], record[3], record[4]);
+        }
+        assertEquals(records, sorter.getRecordCount());
+        final List<long[]> actual = Lists.newArrayList();
+        try {
+            sorter.merge(new ExternalRecordSorter.RecordHandler() {
+                @Override
+                public void handle(long[] record) {
+                    actual.add(record.clone());
+                }
+            });
+        } finally {
+            sorter.close();
+        }
+
+        assertEquals(records, actual.size());
+        for(int i = 1; i < actual.size(); i++) {
+            assertEquals("record " + i + " is out of order", true, BY_SORT_KEYS.compare(actual.get(i - 1), actual.get(i)) <= 0);
+        }
+        //records that tie on the sort keys can come out in any order, so compare them all on every long
+        Collections.sort(expected, BY_EVERY_LONG);
+        Collections.sort(actual, BY_EVERY_LONG);
+        for(int i = 0; i < records; i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private static final Comparator<long[]> BY_SORT_KEYS = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return compareLongs(a, b, 3);
+        }
+    };
+
+    private static final Comparator<long[]> BY_EVERY_LONG = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return compareLongs(a, b, ExternalRecordSorter.RECORD_LONGS);
+        }
+    };
+
+    private static int compareLongs(long[] a, long[] b, int longs) {
+        for(int i = 0; i < longs; i++) {
+            if(a[i] != b[i]) return (a[i] < b[i]) ? -1 : 1;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,88 @@
+package io.ntropy;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapLongSetTest {
+
+    @Test
+    public void addsAndFindsKeys() {
+        OffHeapLongSet set = newSet(16);
+        assertTrue(set.add(42));
+        assertTrue(set.add(-7));
+        assertFalse(set.add(42));
+        assertTrue(set.contains(42));
+        assertTrue(set.contains(-7));
+        assertFalse(set.contains(43));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void probesPastCollisions() {
+        OffHeapLongSet set = newSet(16);
+        //all land on the same slot, and the last one wraps around the end of the table
+        long[] keys = {15, 15 + 16, 15 + 32, 15 + 48};
+        for(long key : keys) {
+            assertTrue(set.add(key));
+        }
+        for(long key : keys) {
+            assertTrue(set.contains(key));
+        }
+        assertFalse(set.contains(15 + 64));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCantBeStored() {
+        newSet(16).add(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityHasToBeAPowerOfTwo() {
+        OffHeapLongSet.create(ByteBuffer.allocate((int) OffHeapLongSet.bytesFor(12)), 12);
+    }
+
+    @Test
+    public void fullAtMaxLoad() {
+        OffHeapLongSet set = newSet(16);
+        for(long key = 1; key <= 11; key++) {
+            set.add(key);
+        }
+        assertFalse(set.isFull());
+        set.add(12);
+        assertTrue(set.isFull());
+    }
+
+    @Test
+    public void reopensFromTheBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate((int) OffHeapLongSet.bytesFor(64));
+        OffHeapLongSet set = OffHeapLongSet.create(buffer, 64);
+        set.add(1234567890123L);
+        set.add(99);
+
+        OffHeapLongSet reopened = OffHeapLongSet.open(buffer);
+        assertEquals(64, reopened.capacity());
+        assertEquals(2, reopened.size());
+        assertTrue(reopened.contains(1234567890123L));
+        assertTrue(reopened.contains(99));
+    }
+
+    @Test
+    public void wontOpenSomethingElse() {
+        assertNull(OffHeapLongSet.open(ByteBuffer.allocate(1024)));
+        ByteBuffer buffer = ByteBuffer.allocate((int) OffHeapLongSet.bytesFor(64));
+        OffHeapLongSet.create(buffer, 64);
+        //claims more slots than the buffer holds
+        buffer.putLong(8, 128);
+        assertNull(OffHeapLongSet.open(buffer));
+    }
+
+    private static OffHeapLongSet newSet(int capacity) {
+        return OffHeapLongSet.create(ByteBuffer.allocateDirect((int) OffHeapLongSet.bytesFor(capacity)), capacity);
+    }
+}
@@ -0,0 +1,121 @@
+package io.ntropy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressJournalTest {
+
+    private static final List<String> TYPES = Lists.newArrayList("emailOpen", "emailSend", "webVisit");
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("progress", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void resumeSkipsOnlyTheExactContactsOfStreamedBatches() throws IOException {
+        ProgressJournal journal = new ProgressJournal(file.getPath(), TYPES, 0);
+        journal.begin(100, 200);
+        //streamed batches come in export order, the first one's range spans the second one's contacts
+        journal.recordCompleted(ids(5, 90, 91, 92, 400), TYPES);
+        journal.recordCompleted(ids(1000, 1001), TYPES);
+        journal.close();
+
+        ProgressJournal resumed = new ProgressJournal(file.getPath(), TYPES, 0);
+        assertTrue(resumed.load());
+        assertEquals(Long.valueOf(100), resumed.getWindowStart());
+        assertEquals(Long.valueOf(200), resumed.getWindowEnd());
+        assertEquals(7, resumed.getCompletedContactCount());
+        //6, 93 and 399 sit between the first batch's ends but were in a batch that never finished
+        assertArrayEquals(new int[]{6, 93, 399}, resumed.removeCompleted(ids(5, 6, 90, 93, 399, 400, 1001)).toArray());
+    }
+
+    @Test
+    public void contactsWithFailedTypesAreDoneAgain() throws IOException {
+        ProgressJournal journal = new ProgressJournal(file.getPath(), TYPES, 0);
+        journal.begin(100, 200);
+        journal.recordCompleted(ids(1, 2, 3), Lists.newArrayList("emailOpen", "webVisit"));
+        journal.recordCompleted(ids(4, 5), TYPES);
+        journal.close();
+
+        ProgressJournal resumed = new ProgressJournal(file.getPath(), TYPES, 0);
+        assertTrue(resumed.load());
+        assertArrayEquals(new int[]{1, 2, 3}, resumed.removeCompleted(ids(1, 2, 3, 4, 5)).toArray());
+    }
+
+    @Test
+    public void tornLastLineIsIgnored() throws IOException {
+        ProgressJournal journal = new ProgressJournal(file.getPath(), TYPES, 0);
+        journal.begin(100, 200);
+        journal.recordCompleted(ids(1, 2), TYPES);
+        journal.close();
+        //a crash part way through "done emailOpen,emailSend,webVisit 123 end"
+        Files.append("done emailOpen,emailSend,webVisit 12", file, Charsets.UTF_8);
+
+        ProgressJournal resumed = new ProgressJournal(file.getPath(), TYPES, 0);
+        assertTrue(resumed.load());
+        assertArrayEquals(new int[]{12}, resumed.removeCompleted(ids(1, 2, 12)).toArray());
+    }
+
+    @Test
+    public void resumedRunAppendsToTheJournal() throws IOException {
+        ProgressJournal journal = new ProgressJournal(file.getPath(), TYPES, 0);
+        journal.begin(100, 200);
+        journal.recordCompleted(ids(1), TYPES);
+        journal.close();
+
+        ProgressJournal resumed = new ProgressJournal(file.getPath(), TYPES, 0);
+        assertTrue(resumed.load());
+        resumed.resume();
+        resumed.recordCompleted(ids(2), TYPES);
+        resumed.close();
+
+        ProgressJournal again = new ProgressJournal(file.getPath(), TYPES, 0);
+        assertTrue(again.load());
+        assertArrayEquals(new int[]{3}, again.removeCompleted(ids(1, 2, 3)).toArray());
+    }
+
+    @Test
+    public void completedRunIsNotResumed() throws IOException {
+        ProgressJournal journal = new ProgressJournal(file.getPath(), TYPES, 0);
+        journal.begin(100, 200);
+        journal.recordCompleted(ids(1), TYPES);
+        journal.complete();
+
+        assertFalse(new ProgressJournal(file.getPath(), TYPES, 0).load());
+    }
+
+    @Test
+    public void missingJournalIsNotResumed() throws IOException {
+        file.delete();
+        assertFalse(new ProgressJournal(file.getPath(), TYPES, 0).load());
+    }
+
+    private static ContactIdSet ids(int... ids) {
+        ContactIdSet set = new ContactIdSet();
+        for(int id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,84 @@
+package io.ntropy;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static final String URL = "https://secure.p03.eloqua.com/api/bulk/2.0/syncs/1";
+
+    @Test
+    public void clientErrorsAreNeverRetried() {
+        RetryPolicy.Attempts attempts = RetryPolicy.withDefaults().newAttempts(5);
+        assertEquals(-1, attempts.nextBackoffMillis(response(404, null)));
+        assertEquals(-1, attempts.nextBackoffMillis(response(401, null)));
+        assertEquals(-1, attempts.nextBackoffMillis(response(302, null)));
+        assertEquals(0, attempts.getRetries());
+    }
+
+    @Test
+    public void eachClassHasItsOwnBudget() {
+        RetryPolicy.Attempts attempts = RetryPolicy.withDefaults().newAttempts(10);
+        SocketTimeoutException readTimeout = new SocketTimeoutException("Read timed out");
+        assertTrue(attempts.nextBackoffMillis(readTimeout) >= 0);
+        assertTrue(attempts.nextBackoffMillis(readTimeout) >= 0);
+        //the default budget for read timeouts is 2, but other classes can still be retried
+        assertEquals(-1, attempts.nextBackoffMillis(readTimeout));
+        assertTrue(attempts.nextBackoffMillis(new IOException("Connection reset")) >= 0);
+        assertEquals(3, attempts.getRetries());
+    }
+
+    @Test
+    public void maxRetriesCapsEveryClass() {
+        RetryPolicy.Attempts attempts = RetryPolicy.withDefaults().newAttempts(2);
+        IOException connectionFailure = new IOException("Connection refused");
+        assertTrue(attempts.nextBackoffMillis(connectionFailure) >= 0);
+        assertTrue(attempts.nextBackoffMillis(connectionFailure) >= 0);
+        assertEquals(-1, attempts.nextBackoffMillis(connectionFailure));
+    }
+
+    @Test
+    public void backoffIsJitteredUnderADoublingCeiling() {
+        for(int run = 0; run < 200; run++) {
+            RetryPolicy.Attempts attempts = new RetryPolicy(100, 1000).newAttempts(10);
+            for(int retry = 0; retry < 8; retry++) {
+                long backoffMillis = attempts.nextBackoffMillis(response(503, null));
+                long ceilingMillis = Math.min(1000, 100L << retry);
+                assertTrue(String.format("retry %s waited %sms", retry, backoffMillis), backoffMillis >= 0 && backoffMillis < ceilingMillis);
+            }
+        }
+    }
+
+    @Test
+    public void retryAfterIsAFloorUpToTenMinutes() {
+        RetryPolicy policy = new RetryPolicy(100, 1000);
+        assertTrue(policy.newAttempts(3).nextBackoffMillis(response(429, "5")) >= 5000);
+        assertEquals(TimeUnit.MINUTES.toMillis(10), policy.newAttempts(3).nextBackoffMillis(response(429, "3600")));
+        //unreadable headers leave the jittered backoff alone
+        assertTrue(policy.newAttempts(3).nextBackoffMillis(response(503, "soon")) < 100);
+    }
+
+    @Test
+    public void classifiesFailuresThatArentResponses() {
+        assertEquals(WebRequestException.ErrorClass.READ_TIMEOUT, RetryPolicy.classify(new SocketTimeoutException()));
+        assertEquals(WebRequestException.ErrorClass.CONNECTION_FAILURE, RetryPolicy.classify(new IOException()));
+        assertEquals(WebRequestException.ErrorClass.OTHER, RetryPolicy.classify(new IllegalStateException()));
+        assertEquals(WebRequestException.ErrorClass.CONNECT_TIMEOUT,
+                RetryPolicy.classify(new WebRequestException(WebRequestException.ErrorClass.CONNECT_TIMEOUT, URL, null)));
+    }
+
+    private static WebRequestException response(int status, String retryAfter) {
+        Map<String, List<String>> headers = (retryAfter == null) ? null : ImmutableMap.<String, List<String>>of("Retry-After", Lists.newArrayList(retryAfter));
+        return new WebRequestException(URL, new WebResponse<String>(status, headers, null, "error"));
+    }
+}
@@ -0,0 +1,100 @@
+package io.ntropy;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StatusPollerTest {
+
+    @Test
+    public void finishesOnceTheCheckReturnsSomething() throws Exception {
+        StatusPoller poller = new StatusPoller(2);
+        try {
+            final AtomicInteger checks = new AtomicInteger();
+            ListenableFuture<String> done = poller.submit("test", "counting", new StatusPoller.Check<String>() {
+                @Override
+                public String poll() {
+                    return (checks.incrementAndGet() < 2) ? null : "done";
+                }
+            }, 60000);
+            assertEquals("done", done.get(10, TimeUnit.SECONDS));
+            assertEquals(2, checks.get());
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void blockedCheckDoesntHoldUpTheOthers() throws Exception {
+        StatusPoller poller = new StatusPoller(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            //a status request stuck in its retries
+            poller.submit("test", "stuck", new StatusPoller.Check<String>() {
+                @Override
+                public String poll() throws Exception {
+                    release.await();
+                    return "late";
+                }
+            }, 60000);
+            ListenableFuture<String> quick = poller.submit("test", "quick", new StatusPoller.Check<String>() {
+                @Override
+                public String poll() {
+                    return "quick";
+                }
+            }, 60000);
+            assertEquals("quick", quick.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        StatusPoller poller = new StatusPoller(1);
+        try {
+            ListenableFuture<String> never = poller.submit("test", "never", new StatusPoller.Check<String>() {
+                @Override
+                public String poll() {
+                    return null;
+                }
+            }, 1500);
+            never.get(10, TimeUnit.SECONDS);
+            fail("the job never finished");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof TimeoutException);
+        } finally {
+            poller.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownFailsWhatsStillWaiting() throws Exception {
+        StatusPoller poller = new StatusPoller(1);
+        ListenableFuture<String> waiting = poller.submit("test", "waiting", new StatusPoller.Check<String>() {
+            @Override
+            public String poll() {
+                return null;
+            }
+        }, 60000);
+        poller.shutdown();
+        try {
+            waiting.get(10, TimeUnit.SECONDS);
+            fail("the poller was shut down");
+        } catch (ExecutionException ee) {
+            //failed by the shutdown
+        } catch (TimeoutException te) {
+            fail("still waiting after the poller was shut down");
+        }
+    }
+}